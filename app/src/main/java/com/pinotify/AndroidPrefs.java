@@ -0,0 +1,96 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.pinotify.activities.ConfigActivity;
+import com.pinotify.core.Prefs;
+
+/**
+ * Exposes the app's SharedPreferences to the core module.
+ */
+public class AndroidPrefs implements Prefs {
+    private final SharedPreferences prefs;
+
+    public AndroidPrefs(SharedPreferences prefs) {
+        this.prefs = prefs;
+    }
+
+    /**
+     * @param context The Android context.
+     * @return The app's PINOTIFY_PREFS.
+     */
+    public static AndroidPrefs get(Context context) {
+        return new AndroidPrefs(context.getSharedPreferences(ConfigActivity.PINOTIFY_PREFS, 0));
+    }
+
+    @Override
+    public int getInt(String key, int defValue) {
+        return prefs.getInt(key, defValue);
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        return prefs.getLong(key, defValue);
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        return prefs.getBoolean(key, defValue);
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        return prefs.getString(key, defValue);
+    }
+
+    @Override
+    public Prefs.Editor edit() {
+        return new Editor(prefs.edit());
+    }
+
+    private static class Editor implements Prefs.Editor {
+        private final SharedPreferences.Editor editor;
+
+        Editor(SharedPreferences.Editor editor) {
+            this.editor = editor;
+        }
+
+        @Override
+        public Prefs.Editor putInt(String key, int value) {
+            editor.putInt(key, value);
+            return this;
+        }
+
+        @Override
+        public Prefs.Editor putLong(String key, long value) {
+            editor.putLong(key, value);
+            return this;
+        }
+
+        @Override
+        public Prefs.Editor remove(String key) {
+            editor.remove(key);
+            return this;
+        }
+
+        @Override
+        public void apply() {
+            editor.apply();
+        }
+    }
+}
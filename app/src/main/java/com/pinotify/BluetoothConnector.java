@@ -0,0 +1,167 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.pinotify.activities.ConfigActivity;
+import com.pinotify.core.Connector;
+import com.pinotify.core.Link;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.UUID;
+
+/**
+ * Connects to bt_server.py over classic Bluetooth RFCOMM.
+ * <p>
+ * The RFCOMM channel found by the last SDP lookup is tried first, since the SDP query is the
+ * slowest and least reliable part of connecting. SDP is only used if there is no cached channel or
+ * connecting to it fails.
+ */
+class BluetoothConnector implements Connector {
+    private static final String TAG = "BluetoothConnector";
+    private static final UUID MY_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    private static final Metrics.Counter CACHED_CHANNEL_CONNECTS =
+            Metrics.counter("bt.cached_channel_connects");
+    // Connects to the cached RFCOMM channel that failed and fell back to SDP.
+    private static final Metrics.Counter CACHED_CHANNEL_FAILURES =
+            Metrics.counter("bt.cached_channel_failures");
+    private static final Metrics.Counter SDP_CONNECTS = Metrics.counter("bt.sdp_connects");
+    // How long each path's successful connect took, so that what skipping SDP saves shows. The
+    // SDP path doesn't include a failed attempt on the cached channel before it.
+    private static final Metrics.Histogram CACHED_CHANNEL_CONNECT_MS =
+            Metrics.histogram("bt.connect_ms.cached_channel");
+    private static final Metrics.Histogram SDP_CONNECT_MS =
+            Metrics.histogram("bt.connect_ms.sdp");
+
+    private final Context context;
+    private final String address;
+
+    BluetoothConnector(Context context, String address) {
+        this.context = context;
+        this.address = address;
+    }
+
+    @Override
+    public Link connect() throws IOException {
+        BluetoothAdapter btAdapter = BluetoothAdapter.getDefaultAdapter();
+        if (btAdapter == null || !btAdapter.isEnabled()) {
+            throw new IOException("Bluetooth is off");
+        }
+        if (btAdapter.isDiscovering()) {
+            btAdapter.cancelDiscovery();
+        }
+        BluetoothDevice device = btAdapter.getRemoteDevice(address);
+
+        int channel = getSharedPrefs(context).getInt(
+                ConfigActivity.relayPref(ConfigActivity.PREF_BLUETOOTH_CHANNEL, address), -1);
+        if (channel > 0) {
+            long startMs = SystemClock.elapsedRealtime();
+            BluetoothSocket sock = connectToChannel(device, channel);
+            if (sock != null) {
+                CACHED_CHANNEL_CONNECT_MS.record(SystemClock.elapsedRealtime() - startMs);
+                CACHED_CHANNEL_CONNECTS.increment();
+                return onConnected(sock, "cached channel " + channel);
+            }
+            CACHED_CHANNEL_FAILURES.increment();
+        }
+
+        long startMs = SystemClock.elapsedRealtime();
+        BluetoothSocket sock = device.createRfcommSocketToServiceRecord(MY_UUID);
+        try {
+            sock.connect();
+        } catch (IOException e) {
+            closeQuietly(sock);
+            throw e;
+        }
+        SDP_CONNECT_MS.record(SystemClock.elapsedRealtime() - startMs);
+        SDP_CONNECTS.increment();
+        saveChannel(sock);
+        return onConnected(sock, "SDP");
+    }
+
+    private Link onConnected(BluetoothSocket sock, String path) {
+        Log.i(TAG, "Connected to " + address + " via " + path + " (" +
+                CACHED_CHANNEL_CONNECTS.get() + " cached, " + CACHED_CHANNEL_FAILURES.get() +
+                " cached failures, " + SDP_CONNECTS.get() + " SDP)");
+        return new BluetoothLink(sock);
+    }
+
+    /**
+     * @return A socket connected to the RFCOMM channel without an SDP lookup, or null.
+     */
+    private BluetoothSocket connectToChannel(BluetoothDevice device, int channel) {
+        BluetoothSocket sock;
+        try {
+            // Not part of the public API, but present on all versions we run on.
+            Method createRfcommSocket = device.getClass().getMethod("createRfcommSocket",
+                    int.class);
+            sock = (BluetoothSocket) createRfcommSocket.invoke(device, channel);
+        } catch (Exception e) {
+            Log.w(TAG, "Can't create socket on channel " + channel, e);
+            return null;
+        }
+        try {
+            sock.connect();
+            return sock;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to connect to " + address + " on channel " + channel + ": " +
+                    e.getMessage());
+            closeQuietly(sock);
+            return null;
+        }
+    }
+
+    /**
+     * Remembers the RFCOMM channel that SDP resolved for the next reconnect.
+     */
+    private void saveChannel(BluetoothSocket sock) {
+        int channel;
+        try {
+            Field port = BluetoothSocket.class.getDeclaredField("mPort");
+            port.setAccessible(true);
+            channel = port.getInt(sock);
+        } catch (Exception e) {
+            Log.w(TAG, "Can't read RFCOMM channel", e);
+            return;
+        }
+        if (channel > 0) {
+            getSharedPrefs(context).edit()
+                    .putInt(ConfigActivity.relayPref(ConfigActivity.PREF_BLUETOOTH_CHANNEL,
+                            address), channel)
+                    .apply();
+        }
+    }
+
+    private static void closeQuietly(BluetoothSocket sock) {
+        try {
+            sock.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private static SharedPreferences getSharedPrefs(Context context) {
+        return context.getSharedPreferences(ConfigActivity.PINOTIFY_PREFS, 0);
+    }
+}
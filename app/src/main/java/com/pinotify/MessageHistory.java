@@ -0,0 +1,210 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * On-device history of the messages the tablet has displayed.
+ * <p>
+ * Messages are kept in a SQLite table indexed by time sent and sender, and are identified by
+ * sender, body and time sent. The history doubles as the dedup index for incoming messages: a
+ * message that was already acked is never displayed again, even if it is delivered again. History
+ * older than MAX_AGE_MS is dropped, and so is all but the newest MAX_MESSAGES messages.
+ */
+public class MessageHistory extends SQLiteOpenHelper {
+    private static final String TAG = "MessageHistory";
+
+    private static final String DATABASE_NAME = "history.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE = "messages";
+    private static final String COLUMN_ID = "_id";
+    private static final String COLUMN_SENDER = "sender";
+    private static final String COLUMN_MESSAGE = "message";
+    private static final String COLUMN_TIME_SENT_UTC = "time_sent_utc";
+    private static final String COLUMN_ACKED_AT_MS = "acked_at_ms";
+    private static final String MATCH_CLAUSE = COLUMN_TIME_SENT_UTC + " = ? AND " +
+            COLUMN_SENDER + " = ? AND " + COLUMN_MESSAGE + " = ?";
+
+    private static final int MAX_MESSAGES = 1000;
+    private static final long MAX_AGE_MS = 90L * 24L * 60L * 60L * 1000L;
+    // Retention is enforced once per this many inserts.
+    private static final int PRUNE_INTERVAL = 50;
+
+    private static MessageHistory instance;
+
+    private int insertsSincePrune;
+    // Bumped whenever a message is recorded or acked. Written under this.
+    private volatile int changeCount;
+
+    /**
+     * A message from the history.
+     */
+    public static class Entry {
+        public final long id;
+        public final StateController.ActiveMessage message;
+        public final boolean acked;
+
+        Entry(long id, StateController.ActiveMessage message, boolean acked) {
+            this.id = id;
+            this.message = message;
+            this.acked = acked;
+        }
+    }
+
+    public static synchronized MessageHistory get(Context context) {
+        if (instance == null) {
+            instance = new MessageHistory(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private MessageHistory(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE + " (" +
+                COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                COLUMN_SENDER + " TEXT NOT NULL, " +
+                COLUMN_MESSAGE + " TEXT NOT NULL, " +
+                COLUMN_TIME_SENT_UTC + " INTEGER NOT NULL, " +
+                COLUMN_ACKED_AT_MS + " INTEGER, " +
+                "UNIQUE (" + COLUMN_TIME_SENT_UTC + ", " + COLUMN_SENDER + ", " + COLUMN_MESSAGE +
+                "))");
+        // The UNIQUE constraint's index serves dedup lookups and the age cutoff; paging uses the
+        // primary key.
+        db.execSQL("CREATE INDEX " + TABLE + "_" + COLUMN_SENDER + " ON " + TABLE + " (" +
+                COLUMN_SENDER + ", " + COLUMN_TIME_SENT_UTC + ")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    }
+
+    /**
+     * Records that a message was displayed. Recording a message twice has no effect.
+     *
+     * @return true if the message wasn't in the history yet.
+     */
+    public synchronized boolean record(StateController.ActiveMessage message) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_SENDER, message.sender);
+        values.put(COLUMN_MESSAGE, message.message);
+        values.put(COLUMN_TIME_SENT_UTC, message.timeSentUtc);
+        long id = getWritableDatabase().insertWithOnConflict(TABLE, null, values,
+                SQLiteDatabase.CONFLICT_IGNORE);
+        if (id == -1) {
+            return false;
+        }
+        changeCount++;
+        if (++insertsSincePrune >= PRUNE_INTERVAL) {
+            insertsSincePrune = 0;
+            prune();
+        }
+        return true;
+    }
+
+    /**
+     * Records that a message was acked.
+     */
+    public synchronized void markAcked(StateController.ActiveMessage message) {
+        record(message);
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_ACKED_AT_MS, System.currentTimeMillis());
+        if (getWritableDatabase().update(TABLE, values, MATCH_CLAUSE + " AND " +
+                COLUMN_ACKED_AT_MS + " IS NULL", matchArgs(message)) > 0) {
+            changeCount++;
+        }
+    }
+
+    /**
+     * @return A count that changes whenever a message is recorded or acked, so that a view of the
+     *         history knows when to reload. Doesn't touch the database.
+     */
+    public int getChangeCount() {
+        return changeCount;
+    }
+
+    /**
+     * @return true if the message was acked before, so it must not be displayed again.
+     */
+    public synchronized boolean isAcked(StateController.ActiveMessage message) {
+        Cursor cursor = getReadableDatabase().query(TABLE, new String[]{COLUMN_ID},
+                MATCH_CLAUSE + " AND " + COLUMN_ACKED_AT_MS + " IS NOT NULL", matchArgs(message),
+                null, null, null, "1");
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Loads a page of history, newest first. Must not be called on the UI thread.
+     *
+     * @param beforeId Only entries older than the entry with this ID are loaded, or pass
+     *                 Long.MAX_VALUE for the newest page.
+     * @param limit    The most entries to load.
+     * @return The entries.
+     */
+    public synchronized List<Entry> loadPage(long beforeId, int limit) {
+        List<Entry> entries = new ArrayList<Entry>();
+        // Paging by ID, rather than by offset, keeps each page an index range scan.
+        Cursor cursor = getReadableDatabase().query(TABLE,
+                new String[]{COLUMN_ID, COLUMN_SENDER, COLUMN_MESSAGE, COLUMN_TIME_SENT_UTC,
+                        COLUMN_ACKED_AT_MS},
+                COLUMN_ID + " < ?", new String[]{Long.toString(beforeId)}, null, null,
+                COLUMN_ID + " DESC", Integer.toString(limit));
+        try {
+            while (cursor.moveToNext()) {
+                StateController.ActiveMessage message = new StateController.ActiveMessage();
+                message.sender = cursor.getString(1);
+                message.message = cursor.getString(2);
+                message.timeSentUtc = cursor.getLong(3);
+                entries.add(new Entry(cursor.getLong(0), message, !cursor.isNull(4)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return entries;
+    }
+
+    private static String[] matchArgs(StateController.ActiveMessage message) {
+        return new String[]{Long.toString(message.timeSentUtc), message.sender, message.message};
+    }
+
+    private void prune() {
+        SQLiteDatabase db = getWritableDatabase();
+        long cutoffUtc = (System.currentTimeMillis() - MAX_AGE_MS) / 1000L;
+        int deleted = db.delete(TABLE, COLUMN_TIME_SENT_UTC + " < ?",
+                new String[]{Long.toString(cutoffUtc)});
+        deleted += db.delete(TABLE, COLUMN_ID + " NOT IN (SELECT " + COLUMN_ID + " FROM " + TABLE +
+                " ORDER BY " + COLUMN_ID + " DESC LIMIT " + MAX_MESSAGES + ")", null);
+        if (deleted > 0) {
+            Log.i(TAG, "Pruned " + deleted + " messages from history");
+        }
+    }
+}
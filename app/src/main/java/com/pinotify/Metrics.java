@@ -0,0 +1,218 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide registry of counters, gauges and latency histograms.
+ * <p>
+ * Metrics are registered by name, normally once into a static field, and updating one is a few
+ * atomic operations with no locking or allocation. Histograms count samples into fixed buckets, so
+ * they take the same memory however many samples they see, and report percentiles to within a
+ * bucket.
+ */
+public class Metrics {
+    // Upper bounds of the histogram buckets, in ms. Samples above the last bound are counted in an
+    // overflow bucket.
+    private static final long[] BUCKET_BOUNDS_MS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 50000, 100000,
+            200000, 500000};
+
+    private static final ConcurrentMap<String, Counter> counters =
+            new ConcurrentHashMap<String, Counter>();
+    private static final ConcurrentMap<String, Gauge> gauges =
+            new ConcurrentHashMap<String, Gauge>();
+    private static final ConcurrentMap<String, Histogram> histograms =
+            new ConcurrentHashMap<String, Histogram>();
+
+    /**
+     * A count of events since the process started.
+     */
+    public static class Counter {
+        private final AtomicLong value = new AtomicLong();
+
+        public void increment() {
+            value.incrementAndGet();
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    /**
+     * The latest value of something.
+     */
+    public static class Gauge {
+        private final AtomicLong value = new AtomicLong();
+
+        public void set(long newValue) {
+            value.set(newValue);
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    /**
+     * A distribution of latencies.
+     */
+    public static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS_MS.length + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalMs = new AtomicLong();
+        private final AtomicLong maxMs = new AtomicLong();
+
+        public void record(long latencyMs) {
+            long sample = Math.max(0, latencyMs);
+            int i = 0;
+            while (i < BUCKET_BOUNDS_MS.length && sample > BUCKET_BOUNDS_MS[i]) {
+                i++;
+            }
+            buckets.incrementAndGet(i);
+            count.incrementAndGet();
+            totalMs.addAndGet(sample);
+            long max = maxMs.get();
+            while (sample > max && !maxMs.compareAndSet(max, sample)) {
+                max = maxMs.get();
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getMeanMs() {
+            long n = count.get();
+            return n == 0 ? 0 : totalMs.get() / n;
+        }
+
+        public long getMaxMs() {
+            return maxMs.get();
+        }
+
+        /**
+         * @param percentile The percentile, 0 - 100.
+         * @return The upper bound of the bucket the percentile falls in, capped at the maximum, or
+         *         0 if there are no samples.
+         */
+        public long getPercentileMs(double percentile) {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(n * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_BOUNDS_MS.length; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(BUCKET_BOUNDS_MS[i], getMaxMs());
+                }
+            }
+            return getMaxMs();
+        }
+    }
+
+    public static Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            Counter created = new Counter();
+            counter = counters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+    public static Gauge gauge(String name) {
+        Gauge gauge = gauges.get(name);
+        if (gauge == null) {
+            Gauge created = new Gauge();
+            gauge = gauges.putIfAbsent(name, created);
+            if (gauge == null) {
+                gauge = created;
+            }
+        }
+        return gauge;
+    }
+
+    public static Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram();
+            histogram = histograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * @return Every metric as a flat map of values, sorted by name. Histograms are reported as
+     *         their count, p50, p99 and max.
+     */
+    public static Map<String, Long> getValues() {
+        Map<String, Long> values = new TreeMap<String, Long>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().get());
+        }
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().get());
+        }
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            values.put(entry.getKey() + ".count", histogram.getCount());
+            values.put(entry.getKey() + ".p50", histogram.getPercentileMs(50));
+            values.put(entry.getKey() + ".p99", histogram.getPercentileMs(99));
+            values.put(entry.getKey() + ".max", histogram.getMaxMs());
+        }
+        return values;
+    }
+
+    /**
+     * @return Every metric as text, one per line, sorted by name.
+     */
+    public static String format() {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Counter> entry :
+                new TreeMap<String, Counter>(counters).entrySet()) {
+            text.append(entry.getKey()).append(' ').append(entry.getValue().get()).append('\n');
+        }
+        for (Map.Entry<String, Gauge> entry : new TreeMap<String, Gauge>(gauges).entrySet()) {
+            text.append(entry.getKey()).append(' ').append(entry.getValue().get()).append('\n');
+        }
+        for (Map.Entry<String, Histogram> entry :
+                new TreeMap<String, Histogram>(histograms).entrySet()) {
+            Histogram histogram = entry.getValue();
+            text.append(entry.getKey())
+                    .append(" n=").append(histogram.getCount())
+                    .append(" mean=").append(histogram.getMeanMs())
+                    .append(" p50=").append(histogram.getPercentileMs(50))
+                    .append(" p99=").append(histogram.getPercentileMs(99))
+                    .append(" max=").append(histogram.getMaxMs())
+                    .append('\n');
+        }
+        return text.toString();
+    }
+}
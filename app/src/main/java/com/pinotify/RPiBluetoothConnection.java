@@ -1,163 +1,834 @@
-// Copyright 2017 Google Inc.
-//
-// Licensed under the Apache License, Version 2.0 (the "License");
-// you may not use this file except in compliance with the License.
-// You may obtain a copy of the License at
-//
-//     https://www.apache.org/licenses/LICENSE-2.0
-//
-// Unless required by applicable law or agreed to in writing, software
-// distributed under the License is distributed on an "AS IS" BASIS,
-// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
-// See the License for the specific language governing permissions and
-// limitations under the License.
-
-package com.pinotify;
-
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
-import android.content.Context;
-import android.content.SharedPreferences;
-import android.util.Log;
-
-import com.pinotify.activities.ConfigActivity;
-
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.Arrays;
-import java.util.UUID;
-
-public class RPiBluetoothConnection {
-    private static final int NUM_RETRIES = 3;
-    private static BluetoothSocket btSocket;
-    private static final UUID MY_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
-    private static OutputStream out;
-    private static BluetoothDevice device;
-    private static RPiBluetoothListener listener = new RPiBluetoothListener();
-
-    private static void discoverDevice(Context context) {
-        BluetoothSocket sock;
-        if (btSocket == null) {
-            BluetoothAdapter btAdapter = BluetoothAdapter.getDefaultAdapter();
-            String btAddress = getSharedPrefs(context).getString(ConfigActivity
-                    .PREF_BLUETOOTH_ADDRESS, null);
-            device = btAdapter.getRemoteDevice(btAddress);
-            try {
-                sock = device.createRfcommSocketToServiceRecord(MY_UUID);
-            } catch (Exception e) {
-                e.printStackTrace();
-                return;
-            }
-            btAdapter.cancelDiscovery();
-            try {
-                sock.connect();
-            } catch (IOException e) {
-                e.printStackTrace();
-                try {
-                    sock.close();
-                } catch (Exception b) {
-                }
-            }
-            btSocket = sock;
-        }
-    }
-
-    public static interface Receiver {
-        // Called when a byte is received on the socket.
-        void receivedByte(byte b);
-    }
-
-    // Sets
-    public static void setReceiver(Receiver receiver) {
-        listener.setReceiver(receiver);
-    }
-
-    public static void sendMessage(Context context, byte msg) {
-        if (btSocket == null) {
-            discoverDevice(context);
-            if (btSocket == null) {
-                return;
-            }
-        }
-        for (int i = 0; i < NUM_RETRIES; i++) {
-            try {
-                out = btSocket.getOutputStream();
-                out.write(msg);
-                listener.start(btSocket);
-                break;
-            } catch (Exception a) {
-                a.printStackTrace();
-                try {
-                    btSocket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                btSocket = null;
-                discoverDevice(context);
-                if (btSocket == null) {
-                    return;
-                }
-            }
-        }
-
-    }
-
-    private static SharedPreferences getSharedPrefs(Context context) {
-        return context.getSharedPreferences(ConfigActivity.PINOTIFY_PREFS, 0);
-    }
-}
-
-/**
- * Listens for responses from the remote.
- */
-class RPiBluetoothListener {
-    private static String TAG = "RPiBluetoothListener";
-    private BluetoothSocket _btSocket;
-    private RPiBluetoothConnection.Receiver receiver;
-
-    public void start(final BluetoothSocket btSocket) {
-        if (_btSocket == btSocket) {
-            Log.d(TAG, "Already listening on socket " + btSocket);
-            return;
-        }
-        _btSocket = btSocket;
-
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                Log.i(TAG, "Starting new listener.");
-                try {
-                    byte[] buf = new byte[1024];
-                    InputStream is = btSocket.getInputStream();
-                    while (true) {
-                        int len = is.read(buf);
-                        if (len == -1) {
-                            Log.e(TAG, "Unexpected EOF from remote.");
-                            btSocket.close();
-                            return;
-                        }
-                        if (len != 1) {
-                            Log.e(TAG, "Unexpectedly got input of size " + len + ": " +
-                                    Arrays.copyOfRange(buf, 0, len));
-                            btSocket.close();
-                            return;
-                        }
-                        if (receiver != null) {
-                            receiver.receivedByte(buf[0]);
-                        }
-                        Log.i(TAG, "Got a byte: " + buf[0]);
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                Log.i(TAG, "Exited listener");
-            }
-        }).start();
-    }
-
-    public void setReceiver(RPiBluetoothConnection.Receiver receiver) {
-        this.receiver = receiver;
-    }
-}
\ No newline at end of file
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.pinotify.activities.ConfigActivity;
+import com.pinotify.core.Connector;
+import com.pinotify.core.Link;
+import com.pinotify.core.RelayTransport;
+import com.pinotify.core.TcpConnector;
+import com.pinotify.protocol.FrameCodec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Manages the connection to one Pi, over Bluetooth or over TCP on the LAN. Each Pi configured has
+ * a connection of its own; see RelayFanOut.
+ * <p>
+ * Links are opened by a Connector, so nothing here depends on the transport beyond its streams.
+ * Metrics and trace spans are named after the transport ("bt" or "tcp"), so that the two can be
+ * compared.
+ * <p>
+ * All socket I/O happens on the connection's own I/O thread. Callers queue commands, which returns
+ * immediately, and are told through a DeliveryCallback whether the command was written. While
+ * queued, commands are collapsed: a newer blink replaces a queued blink, and a dismiss cancels
+ * any queued blink.
+ * <p>
+ * The link is kept up for as long as the connection exists, so that sending a command normally
+ * costs only a write. The I/O thread connects as soon as the connection is created. On a version 2
+ * link, it sends a heartbeat when the link has been idle, and treats the link as dead if the Pi
+ * stops answering. Version 1 has no heartbeat, so a version 1 link is only found dead when a read
+ * or write on the socket fails, or on TCP, when keepalive gives up.
+ * Lost links are reconnected in the background with exponential backoff and jitter, and the last
+ * blink or dismiss is re-sent once reconnected.
+ * <p>
+ * On connect, the framed version 2 protocol (see FrameCodec) is negotiated with a HELLO. Under
+ * version 2, commands are numbered and several can be in flight, and a command counts as delivered
+ * once the Pi acks it, or as failed if the ack doesn't come within a few seconds. Pis that only
+ * speak the single octet version 1 protocol close the link on a HELLO, and are spoken to in
+ * version 1, where a command counts as delivered once written. A Pi that answers the HELLO in
+ * version 1, or fails it on several connects in a row, is remembered as speaking version 1, so that
+ * reconnects skip the HELLO; it's sent a HELLO again after an hour, in case it was updated. A Pi
+ * that fails the HELLO only once is spoken to in version 1 on that link alone.
+ * <p>
+ * DeliveryCallbacks are called on the I/O or listener thread.
+ */
+public class RPiBluetoothConnection implements RelayTransport {
+    private static final String TAG = "RPiBtConnection";
+    private static final int MAX_QUEUED_COMMANDS = 8;
+
+    // Version 1 messages.
+    private static final byte STOP_MSG = 0;
+    static final byte DISMISS_MSG = 0;
+
+    // The most version 2 commands written but not yet acked.
+    private static final int MAX_IN_FLIGHT = 8;
+    // A version 2 command the Pi hasn't acked in this long is failed, freeing its slot.
+    private static final long ACK_TIMEOUT_MS = 5L * 1000L;
+    private static final long NEGOTIATION_TIMEOUT_MS = 2000L;
+    private static final byte[] HELLO_PAYLOAD = {(byte) FrameCodec.VERSION};
+    private static final int PROTOCOL_UNKNOWN = 0;
+    // A Pi that fails the HELLO on this many connects in a row is remembered as speaking version 1.
+    private static final int HELLO_FAILURES_FOR_VERSION_1 = 3;
+    // How long a Pi is remembered as speaking version 1 before it's sent a HELLO again.
+    private static final long VERSION_1_RECHECK_MS = 60L * 60L * 1000L;
+    private static final long HEARTBEAT_INTERVAL_MS = 15L * 1000L;
+    // A link the Pi hasn't sent anything on for this long is considered dead.
+    private static final long DEAD_LINK_TIMEOUT_MS = 40L * 1000L;
+    private static final long INITIAL_RECONNECT_DELAY_MS = 1000L;
+    private static final long MAX_RECONNECT_DELAY_MS = 5L * 60L * 1000L;
+
+    private static final int COMMAND_BLINK = 1;
+    private static final int COMMAND_DISMISS = 2;
+
+    private static final AtomicInteger connectedCount = new AtomicInteger();
+    // The number of Pis with a link up, across all connections.
+    private static final Metrics.Gauge CONNECTED = Metrics.gauge("relays.connected");
+
+    private static class Command {
+        final int type;
+        final int onSec;
+        final int offSec;
+        final DeliveryCallback callback;
+        // The key its spans are traced under, or null.
+        final String traceKey;
+        // When the command was written, for tracing the Pi's ack.
+        long writtenAt;
+        // When the command is failed if the Pi hasn't acked it.
+        long ackDeadlineMs;
+
+        Command(int type, int onSec, int offSec, String traceKey, DeliveryCallback callback) {
+            this.type = type;
+            this.onSec = onSec;
+            this.offSec = offSec;
+            this.traceKey = traceKey;
+            this.callback = callback;
+        }
+
+        void complete(boolean delivered) {
+            if (callback != null) {
+                callback.onResult(delivered);
+            }
+        }
+    }
+
+    private final Context context;
+    private final String address;
+    private final Connector connector;
+    // Named after the transport, e.g. "bt.connect_ms".
+    private final String metricPrefix;
+    private final Metrics.Histogram connectMs;
+    private final Metrics.Histogram writeMs;
+    private final Metrics.Counter writeFailures;
+    // From writing a version 2 command until the Pi acks it.
+    private final Metrics.Histogram ackMs;
+    private final Metrics.Counter ackTimeouts;
+    private final RPiBluetoothListener listener = new RPiBluetoothListener(this);
+    private final Thread ioThread;
+    // Guarded by queue.
+    private final ArrayDeque<Command> queue = new ArrayDeque<Command>();
+    // Version 2 commands awaiting an ack, indexed by SEQ.
+    private final Command[] inFlight = new Command[256];
+    private int inFlightCount;
+    // No in flight command has an earlier deadline. Guarded by queue.
+    private long nextAckDeadlineMs = Long.MAX_VALUE;
+    // SEQs of frames from the Pi that the I/O thread must ack.
+    private final ArrayDeque<Integer> pendingAcks = new ArrayDeque<Integer>();
+    private boolean reconnectRequested;
+    // A link the listener saw the Pi close.
+    private Link closedLink;
+    private volatile boolean closed;
+    private final Random random = new Random();
+    // Written on the I/O thread only.
+    private volatile int protocolVersion = PROTOCOL_UNKNOWN;
+    private volatile CountDownLatch helloLatch;
+    private volatile int peerVersion;
+    // Whether the Pi answered the HELLO with version 1 octets.
+    private volatile boolean peerSpokeVersion1;
+    // Only accessed on the I/O thread.
+    private Link link;
+    private final byte[] writeBuf = new byte[FrameCodec.MAX_FRAME_LENGTH];
+    private int nextSeq;
+    private long lastWriteMs;
+    private long reconnectDelayMs = INITIAL_RECONNECT_DELAY_MS;
+    private long nextConnectAttemptMs;
+    // The last blink or dismiss written, which is re-sent after a reconnect.
+    private Command lastStateCommand;
+
+    /**
+     * Creates a connection, which starts connecting right away.
+     *
+     * @param context   The Android context.
+     * @param transport ConfigActivity.TRANSPORT_BLUETOOTH or TRANSPORT_TCP.
+     * @param address   The Pi's Bluetooth address, or its "host[:port]".
+     * @return The connection, or null if address is malformed.
+     */
+    public static RPiBluetoothConnection open(Context context, String transport,
+                                              String address) {
+        Context appContext = context.getApplicationContext();
+        Connector connector;
+        if (ConfigActivity.TRANSPORT_TCP.equals(transport)) {
+            try {
+                connector = TcpConnector.parse(address);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Bad TCP address " + address);
+                return null;
+            }
+        } else {
+            connector = new BluetoothConnector(appContext, address);
+        }
+        return new RPiBluetoothConnection(appContext, transport, address, connector);
+    }
+
+    private RPiBluetoothConnection(Context context, String transport, String address,
+                                   Connector connector) {
+        this.context = context;
+        this.address = address;
+        this.connector = connector;
+        metricPrefix = ConfigActivity.TRANSPORT_TCP.equals(transport) ? "tcp" : "bt";
+        connectMs = Metrics.histogram(metricPrefix + ".connect_ms");
+        writeMs = Metrics.histogram(metricPrefix + ".write_ms");
+        writeFailures = Metrics.counter(metricPrefix + ".write_failures");
+        ackMs = Metrics.histogram(metricPrefix + ".ack_ms");
+        ackTimeouts = Metrics.counter(metricPrefix + ".ack_timeouts");
+        ioThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runIoLoop();
+            }
+        }, TAG);
+        ioThread.start();
+    }
+
+    /**
+     * Subscribes receiver to dismisses from the Pi. Receivers are called on a shared dispatch
+     * thread, and subscribing a receiver twice has no effect.
+     */
+    @Override
+    public void addReceiver(Receiver receiver) {
+        listener.addReceiver(receiver);
+    }
+
+    @Override
+    public void removeReceiver(Receiver receiver) {
+        listener.removeReceiver(receiver);
+    }
+
+    /**
+     * Queues a blink command, replacing any blink command that hasn't been sent yet.
+     *
+     * @param onSec    Seconds the lights are on in each blink, 0 - 15.
+     * @param offSec   Seconds the lights are off in each blink, 0 - 15.
+     * @param traceKey The key to trace the command's connect, write and ack under, or null.
+     * @param callback Told whether the command was delivered, or null.
+     */
+    @Override
+    public void sendBlink(int onSec, int offSec, String traceKey, DeliveryCallback callback) {
+        enqueue(new Command(COMMAND_BLINK, onSec, offSec, traceKey, callback));
+    }
+
+    /**
+     * Queues a command to stop blinking, cancelling any blink command that hasn't been sent yet.
+     *
+     * @param traceKey The key to trace the command's connect, write and ack under, or null.
+     * @param callback Told whether the command was delivered, or null.
+     */
+    @Override
+    public void sendDismiss(String traceKey, DeliveryCallback callback) {
+        enqueue(new Command(COMMAND_DISMISS, 0, 0, traceKey, callback));
+    }
+
+    /**
+     * Stops the I/O thread and closes the socket. Queued commands are reported as not delivered.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        ioThread.interrupt();
+        synchronized (queue) {
+            for (Command command : queue) {
+                command.complete(false);
+            }
+            queue.clear();
+        }
+    }
+
+    /**
+     * Reconnects right away if the link is down, rather than once the backoff elapses. For use
+     * when the link is likely to work again, e.g. once the Bluetooth adapter or Wi-Fi is back.
+     */
+    public void reconnectNow() {
+        synchronized (queue) {
+            reconnectRequested = true;
+            queue.notify();
+        }
+    }
+
+    private void enqueue(Command command) {
+        synchronized (queue) {
+            if (closed) {
+                command.complete(false);
+                return;
+            }
+            // Both blinks and dismisses supersede any queued blink.
+            Iterator<Command> it = queue.iterator();
+            while (it.hasNext()) {
+                Command queued = it.next();
+                if (queued.type == COMMAND_BLINK) {
+                    it.remove();
+                    queued.complete(false);
+                }
+            }
+            if (queue.size() >= MAX_QUEUED_COMMANDS) {
+                Log.w(TAG, "Command queue full, dropping command " + command.type);
+                command.complete(false);
+                return;
+            }
+            queue.addLast(command);
+            queue.notify();
+        }
+    }
+
+    private void runIoLoop() {
+        while (!closed) {
+            Command command = null;
+            Integer ackSeq;
+            boolean reconnect;
+            Link remoteClosed;
+            synchronized (queue) {
+                long waitMs = getIdleWaitMs();
+                if (!hasWork() && waitMs > 0) {
+                    try {
+                        queue.wait(waitMs);
+                    } catch (InterruptedException e) {
+                        // Interrupted by close().
+                    }
+                }
+                if (closed) {
+                    break;
+                }
+                ackSeq = pendingAcks.pollFirst();
+                if (ackSeq == null && inFlightCount < MAX_IN_FLIGHT) {
+                    command = queue.pollFirst();
+                }
+                reconnect = reconnectRequested;
+                reconnectRequested = false;
+                remoteClosed = closedLink;
+                closedLink = null;
+            }
+            expireInFlight();
+            if (remoteClosed != null && remoteClosed == link) {
+                Log.w(TAG, "Link to " + address + " closed by remote");
+                onLinkLost();
+            }
+            if (reconnect && link == null) {
+                reconnectDelayMs = INITIAL_RECONNECT_DELAY_MS;
+                nextConnectAttemptMs = 0;
+            }
+            if (ackSeq != null) {
+                if (link != null) {
+                    writeFrame(FrameCodec.TYPE_ACK, ackSeq);
+                }
+            } else if (command != null) {
+                handleCommand(command);
+            } else {
+                maintainLink();
+            }
+        }
+        listener.stop();
+        closeSocket();
+        failInFlight();
+        Log.i(TAG, "I/O thread for " + address + " exited");
+    }
+
+    // Must hold queue.
+    private boolean hasWork() {
+        return !pendingAcks.isEmpty() || (!queue.isEmpty() && inFlightCount < MAX_IN_FLIGHT) ||
+                reconnectRequested || closedLink != null;
+    }
+
+    /**
+     * @return How long the I/O thread may sleep before the link needs attention. Must hold queue.
+     */
+    private long getIdleWaitMs() {
+        long now = SystemClock.elapsedRealtime();
+        if (link == null) {
+            return nextConnectAttemptMs - now;
+        }
+        // Version 1 links have no heartbeat, so they only need attention once there is work.
+        long dueMs = protocolVersion >= FrameCodec.VERSION ?
+                lastWriteMs + HEARTBEAT_INTERVAL_MS : Long.MAX_VALUE;
+        if (listener.heardFrame()) {
+            dueMs = Math.min(dueMs, listener.getLastReceivedMs() + DEAD_LINK_TIMEOUT_MS);
+        }
+        if (inFlightCount > 0) {
+            dueMs = Math.min(dueMs, nextAckDeadlineMs);
+        }
+        return dueMs - now;
+    }
+
+    /**
+     * Fails the in flight commands the Pi hasn't acked in time, freeing their slots.
+     */
+    private void expireInFlight() {
+        long now = SystemClock.elapsedRealtime();
+        ArrayList<Command> expired = null;
+        synchronized (queue) {
+            if (inFlightCount == 0 || now < nextAckDeadlineMs) {
+                return;
+            }
+            long nextDeadlineMs = Long.MAX_VALUE;
+            for (int i = 0; i < inFlight.length; i++) {
+                Command command = inFlight[i];
+                if (command == null) {
+                    continue;
+                }
+                if (now >= command.ackDeadlineMs) {
+                    if (expired == null) {
+                        expired = new ArrayList<Command>();
+                    }
+                    expired.add(command);
+                    inFlight[i] = null;
+                    inFlightCount--;
+                } else {
+                    nextDeadlineMs = Math.min(nextDeadlineMs, command.ackDeadlineMs);
+                }
+            }
+            nextAckDeadlineMs = nextDeadlineMs;
+        }
+        if (expired == null) {
+            return;
+        }
+        Log.w(TAG, "No ack from " + address + " for " + expired.size() + " command(s)");
+        for (Command command : expired) {
+            ackTimeouts.increment();
+            command.complete(false);
+        }
+    }
+
+    /**
+     * Reconnects a lost link once its backoff has elapsed, and heartbeats or drops an idle
+     * version 2 one.
+     */
+    private void maintainLink() {
+        long now = SystemClock.elapsedRealtime();
+        if (link == null) {
+            // The reconnect is traced as part of the command it re-sends.
+            if (now >= nextConnectAttemptMs && connect(traceKey(lastStateCommand)) &&
+                    lastStateCommand != null) {
+                Log.i(TAG, "Re-sending last command " + lastStateCommand.type +
+                        " after reconnect");
+                writeCommand(lastStateCommand, null);
+            }
+            return;
+        }
+        if (listener.heardFrame() &&
+                now - listener.getLastReceivedMs() >= DEAD_LINK_TIMEOUT_MS) {
+            // Only servers that have sent a frame are expected to answer heartbeats.
+            Log.w(TAG, "No response from " + address + ", dropping link");
+            onLinkLost();
+            return;
+        }
+        if (protocolVersion >= FrameCodec.VERSION && now - lastWriteMs >= HEARTBEAT_INTERVAL_MS) {
+            writeFrame(FrameCodec.TYPE_HEARTBEAT, takeSeq());
+        }
+    }
+
+    private void handleCommand(Command command) {
+        lastStateCommand = command;
+        if (link == null) {
+            // A pending command is worth an immediate attempt, regardless of backoff.
+            connect(traceKey(command));
+        }
+        if (link == null) {
+            command.complete(false);
+            return;
+        }
+        writeCommand(command, command);
+    }
+
+    /**
+     * Writes a command. Under version 2, tracked is completed when the Pi acks the command; under
+     * version 1, once it is written. Pass a null tracked to write without tracking.
+     */
+    private void writeCommand(Command command, Command tracked) {
+        long begin = Tracer.begin();
+        String traceKey = traceKey(command);
+        if (protocolVersion < FrameCodec.VERSION) {
+            byte msg = command.type == COMMAND_BLINK ?
+                    FrameCodec.encodeV1Blink(command.onSec, command.offSec) : STOP_MSG;
+            boolean written = writeV1(msg);
+            Tracer.end(metricPrefix + "_write", traceKey, begin,
+                    address + (written ? " v1" : " v1 failed"));
+            if (tracked != null) {
+                tracked.complete(written);
+            }
+            return;
+        }
+        int seq = takeSeq();
+        if (tracked != null) {
+            tracked.writtenAt = begin;
+            tracked.ackDeadlineMs = SystemClock.elapsedRealtime() + ACK_TIMEOUT_MS;
+            // Registered before writing, since the ack can arrive before write() returns.
+            synchronized (queue) {
+                inFlight[seq] = tracked;
+                inFlightCount++;
+                nextAckDeadlineMs = Math.min(nextAckDeadlineMs, tracked.ackDeadlineMs);
+            }
+        }
+        int len = command.type == COMMAND_BLINK ?
+                FrameCodec.encode(writeBuf, 0, FrameCodec.TYPE_BLINK, seq, command.onSec,
+                        command.offSec) :
+                FrameCodec.encode(writeBuf, 0, FrameCodec.TYPE_STOP, seq);
+        // On failure, onLinkLost() fails the tracked command along with the rest in flight.
+        boolean written = writeBytes(len);
+        Tracer.end(metricPrefix + "_write", traceKey, begin,
+                address + (written ? " seq=" + seq : " failed"));
+    }
+
+    /**
+     * @return The key for spans of command, or for spans of the link alone if command is null.
+     */
+    private static String traceKey(Command command) {
+        return command != null && command.traceKey != null ? command.traceKey :
+                Tracer.key(null, 0);
+    }
+
+    /**
+     * @return The next SEQ that no in flight command holds.
+     */
+    private int takeSeq() {
+        synchronized (queue) {
+            // At most MAX_IN_FLIGHT SEQs are held, so this ends quickly.
+            while (inFlight[nextSeq] != null) {
+                nextSeq = (nextSeq + 1) & 0xFF;
+            }
+            int seq = nextSeq;
+            nextSeq = (nextSeq + 1) & 0xFF;
+            return seq;
+        }
+    }
+
+    /**
+     * Connects to the Pi through the connector, and negotiates the protocol. Runs on the I/O
+     * thread.
+     *
+     * @param traceKey The key of the command the connect is for, from traceKey().
+     * @return true if connected. On failure, the next background attempt is scheduled.
+     */
+    private boolean connect(String traceKey) {
+        if (!openLink(traceKey)) {
+            scheduleReconnect();
+            return false;
+        }
+        if (negotiate()) {
+            return true;
+        }
+        if (link == null) {
+            return false;
+        }
+        // The Pi only speaks version 1 and hung up on the HELLO, so reconnect speaking version 1.
+        closeSocket();
+        if (!openLink(traceKey)) {
+            scheduleReconnect();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param traceKey The key to trace the connect under.
+     * @return true if the link is connected.
+     */
+    private boolean openLink(String traceKey) {
+        long startMs = SystemClock.elapsedRealtime();
+        Link newLink;
+        try {
+            newLink = connector.connect();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to connect to " + address + ": " + e.getMessage());
+            Tracer.end(metricPrefix + "_connect", traceKey, startMs, address + " failed");
+            return false;
+        }
+        long elapsedMs = SystemClock.elapsedRealtime() - startMs;
+        connectMs.record(elapsedMs);
+        Tracer.end(metricPrefix + "_connect", traceKey, startMs, address + " " + newLink);
+        Log.i(TAG, "Connected to " + address + " over " + newLink + " in " + elapsedMs + "ms");
+        link = newLink;
+        CONNECTED.set(connectedCount.incrementAndGet());
+        lastWriteMs = SystemClock.elapsedRealtime();
+        reconnectDelayMs = INITIAL_RECONNECT_DELAY_MS;
+        listener.start(link);
+        return true;
+    }
+
+    /**
+     * Negotiates the protocol version on a freshly connected link.
+     *
+     * @return true if the link is ready to use. false if the link was lost, in which case link
+     *         is null, or if the Pi hung up on the HELLO, in which case the link must be reopened
+     *         speaking version 1.
+     */
+    private boolean negotiate() {
+        SharedPreferences prefs = getSharedPrefs(context);
+        int knownVersion = prefs.getInt(
+                ConfigActivity.relayPref(ConfigActivity.PREF_BLUETOOTH_PROTOCOL, address),
+                PROTOCOL_UNKNOWN);
+        long recheckMs = prefs.getLong(
+                ConfigActivity.relayPref(ConfigActivity.PREF_BLUETOOTH_PROTOCOL_RECHECK, address),
+                0);
+        if (knownVersion == 1 && System.currentTimeMillis() < recheckMs) {
+            protocolVersion = 1;
+            return true;
+        }
+        CountDownLatch latch = new CountDownLatch(1);
+        helloLatch = latch;
+        peerVersion = PROTOCOL_UNKNOWN;
+        peerSpokeVersion1 = false;
+        // Frames from the Pi must be decoded while we wait for its HELLO.
+        protocolVersion = FrameCodec.VERSION;
+        int len = FrameCodec.encode(writeBuf, 0, FrameCodec.TYPE_HELLO, takeSeq(), HELLO_PAYLOAD,
+                0, HELLO_PAYLOAD.length);
+        if (!writeBytes(len)) {
+            return false;
+        }
+        try {
+            latch.await(NEGOTIATION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            // Interrupted by close().
+        }
+        helloLatch = null;
+        int version = peerVersion;
+        if (version >= FrameCodec.VERSION) {
+            Log.i(TAG, "Speaking version " + FrameCodec.VERSION + " to " + address);
+            saveProtocolVersion(FrameCodec.VERSION);
+            return true;
+        }
+        protocolVersion = 1;
+        if (peerSpokeVersion1) {
+            Log.i(TAG, "Speaking version 1 to " + address);
+            saveProtocolVersion(1);
+            return true;
+        }
+        // Neither a closed link nor silence proves the Pi only speaks version 1 by itself; it may
+        // just have dropped the link. Old servers close the link on every HELLO though, so
+        // repeated failures do.
+        recordHelloFailure();
+        if (latch.getCount() == 0) {
+            Log.i(TAG, "Link to " + address + " closed on HELLO, speaking version 1");
+            return false;
+        }
+        Log.w(TAG, "No HELLO from " + address + ", assuming version 1");
+        return true;
+    }
+
+    /**
+     * Remembers the version the Pi speaks. Version 1 is remembered for VERSION_1_RECHECK_MS.
+     */
+    private void saveProtocolVersion(int version) {
+        SharedPreferences.Editor editor = getSharedPrefs(context).edit()
+                .putInt(ConfigActivity.relayPref(ConfigActivity.PREF_BLUETOOTH_PROTOCOL, address),
+                        version);
+        String recheckPref =
+                ConfigActivity.relayPref(ConfigActivity.PREF_BLUETOOTH_PROTOCOL_RECHECK, address);
+        if (version == 1) {
+            editor.putLong(recheckPref, System.currentTimeMillis() + VERSION_1_RECHECK_MS);
+        } else {
+            editor.remove(recheckPref)
+                    .remove(ConfigActivity.relayPref(ConfigActivity.PREF_BLUETOOTH_HELLO_FAILURES,
+                            address));
+        }
+        editor.apply();
+    }
+
+    /**
+     * Counts a connect on which the Pi didn't answer the HELLO, and remembers the Pi as speaking
+     * version 1 once that happened HELLO_FAILURES_FOR_VERSION_1 times in a row. The count is only
+     * reset by a version 2 HELLO, so a Pi that still fails it once rechecked is remembered again
+     * at once.
+     */
+    private void recordHelloFailure() {
+        SharedPreferences prefs = getSharedPrefs(context);
+        String failuresPref =
+                ConfigActivity.relayPref(ConfigActivity.PREF_BLUETOOTH_HELLO_FAILURES, address);
+        int failures = prefs.getInt(failuresPref, 0) + 1;
+        prefs.edit().putInt(failuresPref, failures).apply();
+        if (failures >= HELLO_FAILURES_FOR_VERSION_1) {
+            Log.i(TAG, address + " failed the HELLO " + failures + " times in a row, " +
+                    "remembering version 1");
+            saveProtocolVersion(1);
+        }
+    }
+
+    private void scheduleReconnect() {
+        // Wait somewhere between half and all of the current delay, so that a Pi restart doesn't
+        // see every tablet reconnect at the same instant.
+        long delayMs = reconnectDelayMs / 2 + (long) (random.nextDouble() * (reconnectDelayMs / 2));
+        nextConnectAttemptMs = SystemClock.elapsedRealtime() + delayMs;
+        reconnectDelayMs = Math.min(reconnectDelayMs * 2, MAX_RECONNECT_DELAY_MS);
+        Log.d(TAG, "Next connect attempt to " + address + " in " + delayMs + "ms");
+    }
+
+    private boolean writeV1(byte msg) {
+        writeBuf[0] = msg;
+        return writeBytes(1);
+    }
+
+    private boolean writeFrame(int type, int seq) {
+        return writeBytes(FrameCodec.encode(writeBuf, 0, type, seq));
+    }
+
+    /**
+     * Writes the first len octets of writeBuf to the Pi. Runs on the I/O thread, with the link
+     * connected.
+     *
+     * @return true if written. On failure, the link is dropped and a background reconnect is
+     *         scheduled.
+     */
+    private boolean writeBytes(int len) {
+        long startMs = SystemClock.elapsedRealtime();
+        try {
+            OutputStream out = link.getOutputStream();
+            out.write(writeBuf, 0, len);
+            lastWriteMs = SystemClock.elapsedRealtime();
+            writeMs.record(lastWriteMs - startMs);
+            return true;
+        } catch (IOException e) {
+            writeFailures.increment();
+            Log.w(TAG, "Write to " + address + " failed: " + e.getMessage());
+            onLinkLost();
+            return false;
+        }
+    }
+
+    private void onLinkLost() {
+        closeSocket();
+        failInFlight();
+        reconnectDelayMs = INITIAL_RECONNECT_DELAY_MS;
+        scheduleReconnect();
+    }
+
+    private void failInFlight() {
+        ArrayList<Command> failed = new ArrayList<Command>();
+        synchronized (queue) {
+            for (int i = 0; i < inFlight.length; i++) {
+                if (inFlight[i] != null) {
+                    failed.add(inFlight[i]);
+                    inFlight[i] = null;
+                }
+            }
+            inFlightCount = 0;
+            nextAckDeadlineMs = Long.MAX_VALUE;
+            pendingAcks.clear();
+        }
+        for (Command command : failed) {
+            command.complete(false);
+        }
+    }
+
+    /**
+     * @return The protocol version spoken on the current link.
+     */
+    int getProtocolVersion() {
+        return protocolVersion;
+    }
+
+    /**
+     * Called by the listener when the Pi answers our HELLO.
+     */
+    void onHello(int version) {
+        peerVersion = version;
+        CountDownLatch latch = helloLatch;
+        if (latch != null) {
+            latch.countDown();
+        }
+    }
+
+    /**
+     * Called by the listener when the Pi sends octets that aren't part of a frame. While
+     * negotiating, this means the Pi answered the HELLO in version 1.
+     */
+    void onUnframedReply() {
+        CountDownLatch latch = helloLatch;
+        if (latch != null) {
+            peerSpokeVersion1 = true;
+            latch.countDown();
+        }
+    }
+
+    /**
+     * Called by the listener when the Pi closes the link, so it is dropped without waiting
+     * for a write to fail.
+     */
+    void onRemoteClosed(Link closed) {
+        CountDownLatch latch = helloLatch;
+        if (latch != null) {
+            latch.countDown();
+        }
+        synchronized (queue) {
+            closedLink = closed;
+            queue.notify();
+        }
+    }
+
+    /**
+     * Called by the listener when the Pi acks the frame numbered seq.
+     */
+    void onAck(int seq) {
+        Command command;
+        synchronized (queue) {
+            command = inFlight[seq];
+            if (command == null) {
+                return;
+            }
+            inFlight[seq] = null;
+            inFlightCount--;
+            queue.notify();
+        }
+        ackMs.record(SystemClock.elapsedRealtime() - command.writtenAt);
+        Tracer.end("pi_ack", traceKey(command), command.writtenAt, address + " seq=" + seq);
+        command.complete(true);
+    }
+
+    /**
+     * Called by the listener for frames from the Pi that need an ack.
+     */
+    void queueAck(int seq) {
+        synchronized (queue) {
+            pendingAcks.addLast(seq);
+            queue.notify();
+        }
+    }
+
+    private void closeSocket() {
+        if (link == null) {
+            return;
+        }
+        try {
+            link.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        link = null;
+        CONNECTED.set(connectedCount.decrementAndGet());
+    }
+
+    private static SharedPreferences getSharedPrefs(Context context) {
+        return context.getSharedPreferences(ConfigActivity.PINOTIFY_PREFS, 0);
+    }
+}
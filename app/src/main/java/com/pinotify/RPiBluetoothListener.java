@@ -0,0 +1,229 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.pinotify.core.Link;
+import com.pinotify.core.RelayTransport;
+import com.pinotify.protocol.FrameCodec;
+import com.pinotify.protocol.FrameDecoder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Listens for responses from the remote.
+ * <p>
+ * Each connection has one long-lived reader thread, which reads whichever socket the connection
+ * last handed to start() into a reused buffer and decodes it incrementally, so reads may split or
+ * coalesce messages. The thread is restarted by start() should it ever die. Dismisses are handed
+ * to receivers on a single thread shared by all listeners.
+ */
+class RPiBluetoothListener implements FrameDecoder.Handler {
+    private static final String TAG = "RPiBluetoothListener";
+    private static final int READ_BUFFER_SIZE = 1024;
+
+    private static final ExecutorService dispatcher = Executors.newSingleThreadExecutor();
+
+    private final RPiBluetoothConnection connection;
+    private final CopyOnWriteArrayList<RelayTransport.Receiver> receivers =
+            new CopyOnWriteArrayList<RelayTransport.Receiver>();
+    // Only accessed on the reader thread.
+    private final byte[] readBuf = new byte[READ_BUFFER_SIZE];
+    private final FrameDecoder decoder = new FrameDecoder();
+    // Guarded by this.
+    private Thread readerThread;
+    private Link socket;
+    private boolean stopped;
+    private volatile long lastReceivedMs;
+    private volatile boolean heardFrame;
+
+    private final Runnable dispatchDismiss = new Runnable() {
+        @Override
+        public void run() {
+            for (RelayTransport.Receiver receiver : receivers) {
+                try {
+                    receiver.receivedDismiss();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Receiver failed", e);
+                }
+            }
+        }
+    };
+
+    RPiBluetoothListener(RPiBluetoothConnection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Starts listening on link, in place of any previous link.
+     */
+    synchronized void start(Link link) {
+        if (socket == link) {
+            Log.d(TAG, "Already listening on link " + link);
+            return;
+        }
+        socket = link;
+        lastReceivedMs = SystemClock.elapsedRealtime();
+        heardFrame = false;
+        if (readerThread == null || !readerThread.isAlive()) {
+            if (readerThread != null) {
+                Log.w(TAG, "Reader thread died, restarting it");
+            }
+            readerThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runReader();
+                }
+            }, TAG);
+            readerThread.start();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Stops the reader thread once the current socket is closed.
+     */
+    synchronized void stop() {
+        stopped = true;
+        socket = null;
+        notifyAll();
+    }
+
+    void addReceiver(RelayTransport.Receiver receiver) {
+        receivers.addIfAbsent(receiver);
+    }
+
+    void removeReceiver(RelayTransport.Receiver receiver) {
+        receivers.remove(receiver);
+    }
+
+    /**
+     * @return The elapsed realtime at which the remote last sent anything, or at which listening
+     *         started.
+     */
+    long getLastReceivedMs() {
+        return lastReceivedMs;
+    }
+
+    /**
+     * @return true if the remote has sent a frame on the current socket, so it's expected to
+     *         answer heartbeats.
+     */
+    boolean heardFrame() {
+        return heardFrame;
+    }
+
+    private void runReader() {
+        Log.i(TAG, "Reader thread started");
+        while (true) {
+            Link sock = awaitSocket();
+            if (sock == null) {
+                break;
+            }
+            readUntilClosed(sock);
+            synchronized (this) {
+                if (socket != sock) {
+                    // Already replaced; the connection knows this socket is gone.
+                    continue;
+                }
+                socket = null;
+            }
+            connection.onRemoteClosed(sock);
+        }
+        Log.i(TAG, "Reader thread exited");
+    }
+
+    /**
+     * @return The socket to read next, or null once stopped.
+     */
+    private synchronized Link awaitSocket() {
+        while (socket == null && !stopped) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // Keep waiting; only stop() ends the thread.
+            }
+        }
+        return stopped ? null : socket;
+    }
+
+    private void readUntilClosed(Link sock) {
+        decoder.reset();
+        try {
+            InputStream is = sock.getInputStream();
+            while (true) {
+                int len = is.read(readBuf);
+                if (len == -1) {
+                    Log.e(TAG, "Unexpected EOF from remote.");
+                    sock.close();
+                    return;
+                }
+                lastReceivedMs = SystemClock.elapsedRealtime();
+                if (connection.getProtocolVersion() >= FrameCodec.VERSION) {
+                    decoder.feed(readBuf, 0, len, this);
+                } else {
+                    for (int i = 0; i < len; i++) {
+                        receivedV1Byte(readBuf[i]);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.i(TAG, "Read failed: " + e.getMessage());
+        }
+    }
+
+    private void receivedV1Byte(byte b) {
+        if (b == RPiBluetoothConnection.DISMISS_MSG) {
+            Log.i(TAG, "Got a dismiss");
+            dispatcher.execute(dispatchDismiss);
+        } else {
+            Log.w(TAG, "Unexpected byte from remote: " + b);
+        }
+    }
+
+    @Override
+    public void onFrame(int type, int seq, byte[] payload, int payloadOff, int payloadLen) {
+        // Any frame shows the remote is alive and answering.
+        heardFrame = true;
+        switch (type) {
+            case FrameCodec.TYPE_HELLO:
+                connection.onHello(payloadLen > 0 ? payload[payloadOff] & 0xFF :
+                        FrameCodec.VERSION);
+                break;
+            case FrameCodec.TYPE_ACK:
+                connection.onAck(seq);
+                break;
+            case FrameCodec.TYPE_DISMISS:
+                Log.i(TAG, "Got a dismiss");
+                connection.queueAck(seq);
+                dispatcher.execute(dispatchDismiss);
+                break;
+            default:
+                Log.w(TAG, "Ignoring frame of type " + type);
+        }
+    }
+
+    @Override
+    public void onBadFrame(byte b) {
+        Log.w(TAG, "Unexpected byte outside a frame: " + b);
+        connection.onUnframedReply();
+    }
+}
@@ -1,142 +1,234 @@
-// Copyright 2017 Google Inc.
-//
-// Licensed under the Apache License, Version 2.0 (the "License");
-// you may not use this file except in compliance with the License.
-// You may obtain a copy of the License at
-//
-//     https://www.apache.org/licenses/LICENSE-2.0
-//
-// Unless required by applicable law or agreed to in writing, software
-// distributed under the License is distributed on an "AS IS" BASIS,
-// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
-// See the License for the specific language governing permissions and
-// limitations under the License.
-
-package com.pinotify;
-
-import android.content.Context;
-import android.content.Intent;
-import android.content.SharedPreferences;
-import android.support.annotation.Nullable;
-
-import com.pinotify.activities.MessageActivity;
-import com.pinotify.api.BackendApi;
-import com.pinotify.api.RPiApi;
-
-/**
- * Manages message persistent state held locally.
- */
-public class StateController {
-    public static final String PINOTIFY_PREFS = "PINOTIFY_PREFS";
-
-    private static final String ACTIVE_MESSAGE_SENDER = "ACTIVE_MESSAGE_SENDER";
-    private static final String ACTIVE_MESSAGE_MESSAGE = "ACTIVE_MESSAGE_MESSAGE";
-    private static final String ACKED_UNTIL_UTC = "ACKED_UNTIL_UTC";
-    private static final String FCM_ID = "FCM_ID";
-    private static final String ACTIVE_MESSAGE_TIME_SENT_UTC = "ACTIVE_MESSAGE_TIME_SENT_UTC";
-
-    private static SharedPreferences getSharedPrefs(Context context) {
-        return context.getSharedPreferences(PINOTIFY_PREFS, 0);
-    }
-
-    private static SharedPreferences.Editor getEditor(Context context) {
-        return getSharedPrefs(context).edit();
-    }
-
-    // TODO: These shouldn't do work on the UI thread.
-
-    public static void setFcmId(Context context, String fcmId) {
-        SharedPreferences.Editor editor = getEditor(context);
-        editor.putString(FCM_ID, fcmId);
-        editor.commit();
-        BackendApi.makeDeviceRequest(context, null);
-    }
-
-    public static String getFcmId(Context context) {
-        SharedPreferences settings = getSharedPrefs(context);
-        return settings.getString(FCM_ID, null);
-    }
-
-    public static void ackCurrentMessage(Context context) {
-        ActiveMessage message = getActiveMessage(context);
-        if (message == null) {
-            return;
-        }
-        SharedPreferences.Editor editor = getEditor(context);
-        editor.putLong(ACKED_UNTIL_UTC, message.timeSentUtc);
-        editor.commit();
-        BackendApi.makeDeviceRequest(context, null);
-
-        // Clear the currently displayed message.
-        setActiveMessage(context, null);
-    }
-
-    public static long getAckedUntilUtc(Context context) {
-        SharedPreferences settings = getSharedPrefs(context);
-        return settings.getLong(ACKED_UNTIL_UTC, -1L);
-    }
-
-    public static class ActiveMessage {
-        public String sender;
-        public String message;
-        public long timeSentUtc;
-
-        @Override
-        public boolean equals(Object obj) {
-            if (obj == null) {
-                return false;
-            }
-            if (!(obj instanceof ActiveMessage)) {
-                return false;
-            }
-            ActiveMessage other = (ActiveMessage) obj;
-            return sender.equals(other.sender) && message.equals(other.message) &&
-                    timeSentUtc == other.timeSentUtc;
-        }
-    }
-
-    public static synchronized void setActiveMessage(final Context context, ActiveMessage message) {
-        SharedPreferences.Editor editor = getEditor(context);
-        ActiveMessage old_message = getActiveMessage(context);
-        if (message == null) {
-            editor.putString(ACTIVE_MESSAGE_SENDER, null);
-            editor.putString(ACTIVE_MESSAGE_MESSAGE, null);
-            editor.putString(ACTIVE_MESSAGE_TIME_SENT_UTC, null);
-        } else {
-            editor.putString(ACTIVE_MESSAGE_SENDER, message.sender);
-            editor.putString(ACTIVE_MESSAGE_MESSAGE, message.message);
-            editor.putLong(ACTIVE_MESSAGE_TIME_SENT_UTC, message.timeSentUtc);
-            RPiApi.setDismisser(context, new RPiApi.Dismisser() {
-                @Override
-                public void Dismiss(Context context) {
-                    ackCurrentMessage(context);
-                }
-            });
-            RPiApi.startBlinking(context);
-        }
-        editor.commit();
-
-        if ((message == null && old_message != null) ||
-                (message != null && (!message.equals(old_message)))) {
-            // If the message changed, update the message display activity. This method is
-            // synchronized to prevent races in this conditional.
-            Intent intent = new Intent(context, MessageActivity.class);
-            intent.putExtra(MessageActivity.EXTRA_MESSAGE, true);
-            intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-            context.startActivity(intent);
-        }
-    }
-
-    @Nullable
-    public static ActiveMessage getActiveMessage(Context context) {
-        SharedPreferences settings = getSharedPrefs(context);
-        ActiveMessage message = new ActiveMessage();
-        message.sender = settings.getString(ACTIVE_MESSAGE_SENDER, null);
-        message.message = settings.getString(ACTIVE_MESSAGE_MESSAGE, null);
-        message.timeSentUtc = settings.getLong(ACTIVE_MESSAGE_TIME_SENT_UTC, -1L);
-        if (message.sender == null || message.message == null || message.timeSentUtc == -1) {
-            return null;
-        }
-        return message;
-    }
-}
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify;
+
+import android.content.Context;
+import android.support.annotation.Nullable;
+
+import com.pinotify.api.BackendApi;
+import com.pinotify.core.Message;
+
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Manages message persistent state held locally.
+ */
+public class StateController {
+    public static final String PINOTIFY_PREFS = "PINOTIFY_PREFS";
+
+    // Message priorities, as in the backend's model.PRIORITY_* values.
+    public static final int PRIORITY_ROUTINE = Message.PRIORITY_ROUTINE;
+    public static final int PRIORITY_HIGH = Message.PRIORITY_HIGH;
+    public static final int PRIORITY_URGENT = Message.PRIORITY_URGENT;
+
+    public static final Comparator<Message> DISPLAY_ORDER = Message.DISPLAY_ORDER;
+
+    // How long the ack path waits for the acked state to reach disk.
+    private static final long ACK_DURABILITY_TIMEOUT_MS = 2000L;
+
+    public static void setFcmId(Context context, String fcmId) {
+        StateStore.get(context).setFcmId(fcmId);
+        BackendApi.makeDeviceRequest(context, null);
+    }
+
+    public static String getFcmId(Context context) {
+        return StateStore.get(context).getFcmId();
+    }
+
+    /**
+     * Acks the displayed message, if any, and clears it. The transition is applied asynchronously,
+     * and only if the same message is still displayed then, so that an ack can't land on a message
+     * set by a transition queued ahead of it.
+     *
+     * @param context The Android context.
+     */
+    public static void ackCurrentMessage(Context context) {
+        StateMachine.get(context).ackMessage(StateStore.get(context).getActiveMessage());
+    }
+
+    public static long getAckedUntilUtc(Context context) {
+        return StateStore.get(context).getAckedUntilUtc();
+    }
+
+    /**
+     * Durability barrier for acks: blocks until the acked state is on disk, so that the backend is
+     * never told about an ack the device could forget on a crash. Must not be called on the UI
+     * thread.
+     *
+     * @param context The Android context.
+     * @return true if the state is on disk, false if the wait timed out or was interrupted.
+     */
+    public static boolean awaitStateDurable(Context context) {
+        try {
+            return StateStore.get(context).awaitDurable(ACK_DURABILITY_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @param context The Android context.
+     * @return The IDs of messages acked ahead of older ones that the backend hasn't received yet.
+     */
+    public static List<Long> getAckedMessageIds(Context context) {
+        return StateStore.get(context).getAckedMessageIds();
+    }
+
+    /**
+     * @param context The Android context.
+     * @return The number of ackedUntil, acked message ID and FCM ID updates the backend hasn't
+     *         received yet. Updates collapse, since a device request always carries the newest
+     *         values.
+     */
+    public static int getUndeliveredUpdates(Context context) {
+        return StateStore.get(context).getUndeliveredUpdates();
+    }
+
+    /**
+     * Records that the backend received a device request carrying the given state.
+     *
+     * @param context         The Android context.
+     * @param ackedUntilUtc   The ackedUntil the request carried.
+     * @param fcmId           The FCM ID the request carried.
+     * @param ackedMessageIds The acked message IDs the request carried.
+     * @return How long the oldest undelivered update waited, or -1 if updates made since the
+     *         request was built are still undelivered, or there were none.
+     */
+    public static long markStateDelivered(Context context, long ackedUntilUtc, String fcmId,
+                                          List<Long> ackedMessageIds) {
+        return StateStore.get(context).markDelivered(ackedUntilUtc, fcmId, ackedMessageIds);
+    }
+
+    /**
+     * Listens for changes to the displayed state.
+     */
+    public interface StateListener {
+        /**
+         * Called on the main thread when the state changes.
+         */
+        void onStateChanged(StateSnapshot snapshot);
+    }
+
+    /**
+     * An immutable snapshot of the displayed state.
+     */
+    public static class StateSnapshot {
+        // The displayed message, or null.
+        public final ActiveMessage activeMessage;
+        // The number of messages waiting to be displayed after it.
+        public final int queuedMessages;
+
+        StateSnapshot(ActiveMessage activeMessage, int queuedMessages) {
+            this.activeMessage = activeMessage;
+            this.queuedMessages = queuedMessages;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof StateSnapshot)) {
+                return false;
+            }
+            StateSnapshot other = (StateSnapshot) obj;
+            return (activeMessage == null ? other.activeMessage == null :
+                    activeMessage.equals(other.activeMessage)) &&
+                    queuedMessages == other.queuedMessages;
+        }
+
+        @Override
+        public int hashCode() {
+            return (activeMessage == null ? 0 : activeMessage.hashCode()) * 31 + queuedMessages;
+        }
+    }
+
+    /**
+     * Subscribes listener to state changes. The listener is handed the current state right away.
+     * Must be called on the main thread.
+     *
+     * @param context  The Android context.
+     * @param listener The listener.
+     */
+    public static void subscribe(Context context, StateListener listener) {
+        StateMachine.get(context).getStream().subscribe(listener);
+    }
+
+    public static void unsubscribe(Context context, StateListener listener) {
+        StateMachine.get(context).getStream().unsubscribe(listener);
+    }
+
+    /**
+     * @param context The Android context.
+     * @return The latest state published to listeners.
+     */
+    public static StateSnapshot getStateSnapshot(Context context) {
+        return StateMachine.get(context).getStream().getLatest();
+    }
+
+    public static class ActiveMessage extends Message {
+        // The push that carried the message, for tracing, or null. Not persisted.
+        public Long pushId;
+    }
+
+    /**
+     * Sets the message to display and blink for, or clears it if message is null. The transition is
+     * applied asynchronously.
+     *
+     * @param context The Android context.
+     * @param message The message to display, or null.
+     */
+    public static void setActiveMessage(Context context, ActiveMessage message) {
+        StateMachine.get(context).setActiveMessage(message);
+    }
+
+    /**
+     * Shows a message carried by a push ahead of the backend confirming it. If a message is
+     * already displayed, the pushed message preempts it if it has a higher priority, and is queued
+     * otherwise. Ignored if the message was already acked. The transition is applied
+     * asynchronously.
+     *
+     * @param context The Android context.
+     * @param message The pushed message.
+     */
+    public static void showPushedMessage(Context context, ActiveMessage message) {
+        message.provisional = true;
+        StateMachine.get(context).showPushedMessage(message);
+    }
+
+    /**
+     * Replaces the local inbox with the backend's unacked messages. The first in DISPLAY_ORDER is
+     * displayed, and the rest are queued to be displayed in turn as messages are acked, without
+     * waiting for the backend. The transition is applied asynchronously.
+     *
+     * @param context  The Android context.
+     * @param messages The backend's unacked messages.
+     */
+    public static void setInbox(Context context, List<ActiveMessage> messages) {
+        StateMachine.get(context).setInbox(messages);
+    }
+
+    /**
+     * @param context The Android context.
+     * @return The messages waiting to be displayed after the active one, in DISPLAY_ORDER.
+     */
+    public static List<ActiveMessage> getQueuedMessages(Context context) {
+        return StateStore.get(context).getQueuedMessages();
+    }
+
+    @Nullable
+    public static ActiveMessage getActiveMessage(Context context) {
+        return StateStore.get(context).getActiveMessage();
+    }
+}
@@ -0,0 +1,304 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.pinotify.activities.MessageActivity;
+import com.pinotify.api.BackendApi;
+import com.pinotify.api.RPiApi;
+import com.pinotify.core.InboxLogic;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Applies state transitions one at a time on a dedicated thread.
+ * <p>
+ * Transitions only update the StateStore, which is in memory, and hand their side effects off to
+ * other threads: Bluetooth commands to the connection's I/O thread, state snapshots and activity
+ * launches to the main thread, and backend requests to the DeviceRequestCoordinator. No lock is
+ * held while any of these run, so a slow Bluetooth reconnect can't hold up an ack.
+ */
+class StateMachine {
+    private static final String TAG = "StateMachine";
+
+    private static final int MSG_SET_ACTIVE_MESSAGE = 1;
+    private static final int MSG_ACK_MESSAGE = 2;
+    private static final int MSG_SHOW_PUSHED_MESSAGE = 3;
+    private static final int MSG_SET_INBOX = 4;
+
+    // Latency from when a transition is queued until it's applied.
+    private static final Metrics.Histogram TRANSITION_MS =
+            Metrics.histogram("state.transition_ms");
+    private static final Metrics.Gauge QUEUE_DEPTH = Metrics.gauge("state.queue_depth");
+    // Latency from when a message was sent until it's first displayed, by priority, so it includes
+    // any clock skew with the backend.
+    private static final Metrics.Histogram[] DISPLAY_MS = {
+            Metrics.histogram("display_ms.routine"),
+            Metrics.histogram("display_ms.high"),
+            Metrics.histogram("display_ms.urgent"),
+    };
+
+    private static StateMachine instance;
+
+    private final Context context;
+    private final Handler handler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final StateStream stream;
+
+    private final AtomicInteger queueDepth = new AtomicInteger();
+
+    /**
+     * A queued transition.
+     */
+    private static class Transition {
+        final StateController.ActiveMessage message;
+        final List<StateController.ActiveMessage> messages;
+        final long queuedAtMs = SystemClock.elapsedRealtime();
+
+        Transition(StateController.ActiveMessage message) {
+            this.message = message;
+            this.messages = null;
+        }
+
+        Transition(List<StateController.ActiveMessage> messages) {
+            this.message = null;
+            this.messages = messages;
+        }
+    }
+
+    static synchronized StateMachine get(Context context) {
+        if (instance == null) {
+            instance = new StateMachine(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private StateMachine(Context context) {
+        this.context = context;
+        stream = new StateStream(snapshot(StateStore.get(context)));
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        handler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                QUEUE_DEPTH.set(queueDepth.decrementAndGet());
+                Transition transition = (Transition) msg.obj;
+                switch (msg.what) {
+                    case MSG_SET_ACTIVE_MESSAGE:
+                        applySetActiveMessage(transition.message);
+                        break;
+                    case MSG_ACK_MESSAGE:
+                        applyAckMessage(transition.message);
+                        break;
+                    case MSG_SHOW_PUSHED_MESSAGE:
+                        applyShowPushedMessage(transition.message);
+                        break;
+                    case MSG_SET_INBOX:
+                        applySetInbox(transition.messages);
+                        break;
+                    default:
+                        Log.e(TAG, "Unknown transition " + msg.what);
+                        return;
+                }
+                stream.publish(snapshot(StateStore.get(StateMachine.this.context)));
+                long latencyMs = SystemClock.elapsedRealtime() - transition.queuedAtMs;
+                TRANSITION_MS.record(latencyMs);
+                Log.d(TAG, "Applied transition " + msg.what + " after " + latencyMs +
+                        "ms, queue depth " + queueDepth.get());
+            }
+        };
+    }
+
+    void setActiveMessage(StateController.ActiveMessage message) {
+        enqueue(MSG_SET_ACTIVE_MESSAGE, new Transition(message));
+    }
+
+    /**
+     * @param message The message displayed when the ack was made, or null if none was.
+     */
+    void ackMessage(StateController.ActiveMessage message) {
+        if (message == null) {
+            return;
+        }
+        enqueue(MSG_ACK_MESSAGE, new Transition(message));
+    }
+
+    void showPushedMessage(StateController.ActiveMessage message) {
+        enqueue(MSG_SHOW_PUSHED_MESSAGE, new Transition(message));
+    }
+
+    void setInbox(List<StateController.ActiveMessage> messages) {
+        enqueue(MSG_SET_INBOX, new Transition(messages));
+    }
+
+    StateStream getStream() {
+        return stream;
+    }
+
+    private static StateController.StateSnapshot snapshot(StateStore store) {
+        return new StateController.StateSnapshot(store.getActiveMessage(),
+                store.getQueuedMessages().size());
+    }
+
+    private void enqueue(int what, Transition transition) {
+        QUEUE_DEPTH.set(queueDepth.incrementAndGet());
+        handler.sendMessage(handler.obtainMessage(what, transition));
+    }
+
+    private static void recordDisplayLatency(StateController.ActiveMessage message) {
+        long latencyMs = Math.max(0, System.currentTimeMillis() - message.timeSentUtc * 1000L);
+        DISPLAY_MS[Math.max(0, Math.min(message.priority, DISPLAY_MS.length - 1))]
+                .record(latencyMs);
+        Log.d(TAG, "Displayed priority " + message.priority + " message " + latencyMs +
+                "ms after it was sent");
+    }
+
+    private void applyAckMessage(StateController.ActiveMessage acked) {
+        StateStore store = StateStore.get(context);
+        StateController.ActiveMessage message = store.getActiveMessage();
+        if (message == null || !message.equals(acked)) {
+            // A transition queued ahead of the ack replaced the message it was meant for.
+            Log.i(TAG, "Dropping ack for message from " + acked.timeSentUtc +
+                    ", no longer displayed");
+            return;
+        }
+        String ackedBy;
+        if (InboxLogic.acksById(message)) {
+            store.addAckedMessageId(message.id);
+            ackedBy = "by id";
+        } else if (InboxLogic.acksUntil(message)) {
+            store.setAckedUntilUtc(message.timeSentUtc);
+            ackedBy = "until";
+        } else {
+            // A pushed message without an ID can't be acked at the backend until it's confirmed,
+            // and ackedUntil must not skip older messages the backend may hold. The history keeps
+            // it from being displayed again.
+            ackedBy = "locally";
+        }
+        Tracer.event("ack", Tracer.key(null, message.timeSentUtc), ackedBy);
+        BackendApi.makeDeviceRequest(context, null);
+        MessageHistory.get(context).markAcked(message);
+
+        // Move on to the next queued message, if any, without waiting for the backend.
+        List<StateController.ActiveMessage> queued = store.getQueuedMessages();
+        StateController.ActiveMessage next =
+                InboxLogic.takeNext(queued, message, store.getAckedUntilUtc());
+        store.setQueuedMessages(queued);
+        applySetActiveMessage(next);
+    }
+
+    private void applyShowPushedMessage(StateController.ActiveMessage message) {
+        StateStore store = StateStore.get(context);
+        StateController.ActiveMessage active = store.getActiveMessage();
+        if (message.timeSentUtc <= store.getAckedUntilUtc() || message.equals(active) ||
+                MessageHistory.get(context).isAcked(message)) {
+            Log.d(TAG, "Not showing pushed message from " + message.timeSentUtc);
+            return;
+        }
+        if (active == null) {
+            applySetActiveMessage(message);
+            return;
+        }
+        List<StateController.ActiveMessage> queued = store.getQueuedMessages();
+        if (InboxLogic.preempts(message, active)) {
+            // Preempt the displayed message, which goes back to the queue until this is acked.
+            Log.i(TAG, "Priority " + message.priority + " message preempts priority " +
+                    active.priority + " message");
+            InboxLogic.insertInDisplayOrder(queued, active);
+            store.setQueuedMessages(queued);
+            applySetActiveMessage(message);
+            return;
+        }
+        if (InboxLogic.insertInDisplayOrder(queued, message)) {
+            store.setQueuedMessages(queued);
+        }
+    }
+
+    /**
+     * Replaces the local inbox with the backend's unacked messages. The backend is authoritative,
+     * except that messages acked while the request was in flight are dropped, and pushed messages
+     * newer than the backend's may have been posted after it answered. The first message in
+     * display order is displayed, preempting the displayed message if that has a lower priority.
+     */
+    private void applySetInbox(List<StateController.ActiveMessage> messages) {
+        StateStore store = StateStore.get(context);
+        final MessageHistory history = MessageHistory.get(context);
+        StateController.ActiveMessage active = store.getActiveMessage();
+        List<StateController.ActiveMessage> inbox = InboxLogic.mergeInbox(messages, active,
+                store.getQueuedMessages(), store.getAckedUntilUtc(),
+                new InboxLogic.AckedFilter<StateController.ActiveMessage>() {
+                    @Override
+                    public boolean isAcked(StateController.ActiveMessage message) {
+                        return history.isAcked(message);
+                    }
+                });
+        if (inbox.isEmpty()) {
+            store.setQueuedMessages(inbox);
+            if (active != null) {
+                // A pushed message the backend doesn't confirm, or one acked on another device.
+                Log.i(TAG, "Backend has no message, clearing " +
+                        (active.provisional ? "pushed message" : "message acked elsewhere"));
+                applySetActiveMessage(null);
+            }
+            return;
+        }
+        store.setQueuedMessages(inbox.subList(1, inbox.size()));
+        applySetActiveMessage(inbox.get(0));
+    }
+
+    private void applySetActiveMessage(StateController.ActiveMessage message) {
+        StateStore store = StateStore.get(context);
+        StateController.ActiveMessage oldMessage = store.getActiveMessage();
+        store.setActiveMessage(message);
+        if (message != null) {
+            if (MessageHistory.get(context).record(message)) {
+                recordDisplayLatency(message);
+            }
+            RPiApi.setDismisser(context, new RPiApi.Dismisser() {
+                @Override
+                public void Dismiss(Context context) {
+                    StateController.ackCurrentMessage(context);
+                }
+            });
+            RPiApi.startBlinking(context, message);
+        } else if (oldMessage != null) {
+            // Nothing is left to show, e.g. the message was acked on another device.
+            RPiApi.stopBlinking(context, oldMessage);
+        }
+
+        if (message != null && !message.equals(oldMessage) && !stream.hasSubscribers()) {
+            // A visible MessageActivity picks the new message up from the stream, so it's only
+            // launched when it isn't visible.
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Intent intent = new Intent(context, MessageActivity.class);
+                    intent.putExtra(MessageActivity.EXTRA_MESSAGE, true);
+                    intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                    context.startActivity(intent);
+                }
+            });
+        }
+    }
+}
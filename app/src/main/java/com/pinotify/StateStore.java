@@ -0,0 +1,393 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Authoritative in-memory copy of the state managed by StateController.
+ * <p>
+ * Reads never touch disk. Writes update memory immediately and are written behind to
+ * SharedPreferences on a background thread, which commits as soon as it's scheduled so a crash
+ * loses as little as possible. Callers that must not proceed before a write is on disk use
+ * awaitDurable().
+ * <p>
+ * The store also serves as the outbox for state the backend must learn: ackedUntil, the IDs of
+ * messages acked out of order, and the FCM ID are undelivered until a device request carrying them
+ * succeeds. Since a request always carries the newest values, updates collapse, and the outbox
+ * only tracks how many updates are waiting and since when.
+ */
+class StateStore {
+    private static final String TAG = "StateStore";
+
+    private static final String ACTIVE_MESSAGE_SENDER = "ACTIVE_MESSAGE_SENDER";
+    private static final String ACTIVE_MESSAGE_MESSAGE = "ACTIVE_MESSAGE_MESSAGE";
+    private static final String ACKED_UNTIL_UTC = "ACKED_UNTIL_UTC";
+    private static final String FCM_ID = "FCM_ID";
+    private static final String ACTIVE_MESSAGE_TIME_SENT_UTC = "ACTIVE_MESSAGE_TIME_SENT_UTC";
+    private static final String ACTIVE_MESSAGE_PROVISIONAL = "ACTIVE_MESSAGE_PROVISIONAL";
+    private static final String ACTIVE_MESSAGE_ID = "ACTIVE_MESSAGE_ID";
+    private static final String ACTIVE_MESSAGE_PRIORITY = "ACTIVE_MESSAGE_PRIORITY";
+    private static final String UNDELIVERED_SINCE_MS = "UNDELIVERED_SINCE_MS";
+    private static final String UNDELIVERED_UPDATES = "UNDELIVERED_UPDATES";
+    private static final String QUEUED_MESSAGES = "QUEUED_MESSAGES";
+    private static final String ACKED_MESSAGE_IDS = "ACKED_MESSAGE_IDS";
+
+    private static final Metrics.Counter WRITES = Metrics.counter("state.writes");
+    private static final Metrics.Histogram COMMIT_MS = Metrics.histogram("state.commit_ms");
+    private static final Metrics.Counter COMMIT_FAILURES = Metrics.counter("state.commit_failures");
+
+    // Backoff between retries of a failed commit.
+    private static final long INITIAL_RETRY_DELAY_MS = 100L;
+    private static final long MAX_RETRY_DELAY_MS = 10L * 1000L;
+
+    private static StateStore instance;
+
+    private final SharedPreferences prefs;
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor();
+
+    // Guarded by this.
+    private String fcmId;
+    private long ackedUntilUtc;
+    private StateController.ActiveMessage activeMessage;
+    // Messages waiting to be displayed after activeMessage, in display order.
+    private List<StateController.ActiveMessage> queuedMessages =
+            new ArrayList<StateController.ActiveMessage>();
+    // Messages acked ahead of older ones, which the backend hasn't received yet.
+    private List<Long> ackedMessageIds = new ArrayList<Long>();
+    // Wall clock time of the oldest update the backend hasn't received, or 0 if none.
+    private long undeliveredSinceMs;
+    private int undeliveredUpdates;
+    // Incremented on every change; a generation is durable once writtenGeneration reaches it.
+    private long generation;
+    private long writtenGeneration;
+    private boolean flushScheduled;
+    // True while the latest commit failed and its retry hasn't succeeded yet.
+    private boolean commitFailing;
+    private long retryDelayMs = INITIAL_RETRY_DELAY_MS;
+
+    static synchronized StateStore get(Context context) {
+        if (instance == null) {
+            instance = new StateStore(context.getApplicationContext()
+                    .getSharedPreferences(StateController.PINOTIFY_PREFS, 0));
+        }
+        return instance;
+    }
+
+    private StateStore(SharedPreferences prefs) {
+        this.prefs = prefs;
+        fcmId = prefs.getString(FCM_ID, null);
+        ackedUntilUtc = prefs.getLong(ACKED_UNTIL_UTC, -1L);
+        StateController.ActiveMessage message = new StateController.ActiveMessage();
+        message.sender = prefs.getString(ACTIVE_MESSAGE_SENDER, null);
+        message.message = prefs.getString(ACTIVE_MESSAGE_MESSAGE, null);
+        message.timeSentUtc = prefs.getLong(ACTIVE_MESSAGE_TIME_SENT_UTC, -1L);
+        message.provisional = prefs.getBoolean(ACTIVE_MESSAGE_PROVISIONAL, false);
+        message.id = prefs.getLong(ACTIVE_MESSAGE_ID, 0L);
+        message.priority = prefs.getInt(ACTIVE_MESSAGE_PRIORITY,
+                StateController.PRIORITY_ROUTINE);
+        if (message.sender != null && message.message != null && message.timeSentUtc != -1) {
+            activeMessage = message;
+        }
+        undeliveredSinceMs = prefs.getLong(UNDELIVERED_SINCE_MS, 0L);
+        queuedMessages = decodeMessages(prefs.getString(QUEUED_MESSAGES, null));
+        ackedMessageIds = decodeIds(prefs.getString(ACKED_MESSAGE_IDS, null));
+        undeliveredUpdates = prefs.getInt(UNDELIVERED_UPDATES, 0);
+    }
+
+    synchronized String getFcmId() {
+        return fcmId;
+    }
+
+    synchronized void setFcmId(String fcmId) {
+        this.fcmId = fcmId;
+        onUndeliveredUpdate();
+        onChanged();
+    }
+
+    synchronized long getAckedUntilUtc() {
+        return ackedUntilUtc;
+    }
+
+    synchronized void setAckedUntilUtc(long ackedUntilUtc) {
+        this.ackedUntilUtc = ackedUntilUtc;
+        onUndeliveredUpdate();
+        onChanged();
+    }
+
+    /**
+     * @return A copy of the IDs of messages acked ahead of older ones, not yet delivered.
+     */
+    synchronized List<Long> getAckedMessageIds() {
+        return new ArrayList<Long>(ackedMessageIds);
+    }
+
+    /**
+     * Acks a message by ID, for a message acked ahead of older ones, which ackedUntil can't cover.
+     */
+    synchronized void addAckedMessageId(long id) {
+        if (ackedMessageIds.contains(id)) {
+            return;
+        }
+        ackedMessageIds.add(id);
+        onUndeliveredUpdate();
+        onChanged();
+    }
+
+    /**
+     * @return A copy of the messages waiting to be displayed, in display order.
+     */
+    synchronized List<StateController.ActiveMessage> getQueuedMessages() {
+        return new ArrayList<StateController.ActiveMessage>(queuedMessages);
+    }
+
+    synchronized void setQueuedMessages(List<StateController.ActiveMessage> messages) {
+        queuedMessages = new ArrayList<StateController.ActiveMessage>(messages);
+        onChanged();
+    }
+
+    synchronized int getUndeliveredUpdates() {
+        return undeliveredUpdates;
+    }
+
+    /**
+     * Marks the outbox delivered, if the backend has received its newest state.
+     *
+     * @param deliveredAckedUntilUtc   The ackedUntil the backend received.
+     * @param deliveredFcmId           The FCM ID the backend received.
+     * @param deliveredAckedMessageIds The acked message IDs the backend received.
+     * @return How long the oldest update waited for delivery, or -1 if newer updates are still
+     *         undelivered or there were none.
+     */
+    synchronized long markDelivered(long deliveredAckedUntilUtc, String deliveredFcmId,
+                                    List<Long> deliveredAckedMessageIds) {
+        // The backend keeps message IDs once it has them, so they're only sent until delivered.
+        if (ackedMessageIds.removeAll(deliveredAckedMessageIds)) {
+            onChanged();
+        }
+        if (undeliveredUpdates == 0 || deliveredAckedUntilUtc != ackedUntilUtc ||
+                !equal(deliveredFcmId, fcmId) || !ackedMessageIds.isEmpty()) {
+            return -1;
+        }
+        long waitedMs = Math.max(0, System.currentTimeMillis() - undeliveredSinceMs);
+        undeliveredUpdates = 0;
+        undeliveredSinceMs = 0;
+        onChanged();
+        return waitedMs;
+    }
+
+    synchronized StateController.ActiveMessage getActiveMessage() {
+        return activeMessage;
+    }
+
+    synchronized void setActiveMessage(StateController.ActiveMessage activeMessage) {
+        this.activeMessage = activeMessage;
+        onChanged();
+    }
+
+    /**
+     * Blocks until every change made before this call has been committed to disk. Must not be
+     * called on the UI thread.
+     *
+     * @param timeoutMs The maximum time to wait.
+     * @return true if the changes are on disk, false if the wait timed out or a commit failed.
+     *         Failed commits are retried in the background.
+     */
+    synchronized boolean awaitDurable(long timeoutMs) throws InterruptedException {
+        long target = generation;
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (writtenGeneration < target) {
+            if (commitFailing) {
+                return false;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        return true;
+    }
+
+    private void onUndeliveredUpdate() {
+        if (undeliveredUpdates == 0) {
+            undeliveredSinceMs = System.currentTimeMillis();
+        }
+        undeliveredUpdates++;
+    }
+
+    private static String encodeMessages(List<StateController.ActiveMessage> messages) {
+        JSONArray array = new JSONArray();
+        try {
+            for (StateController.ActiveMessage message : messages) {
+                array.put(new JSONObject()
+                        .put("sender", message.sender)
+                        .put("message", message.message)
+                        .put("timeSentUtc", message.timeSentUtc)
+                        .put("provisional", message.provisional)
+                        .put("id", message.id)
+                        .put("priority", message.priority));
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return array.toString();
+    }
+
+    private static List<StateController.ActiveMessage> decodeMessages(String encoded) {
+        List<StateController.ActiveMessage> messages =
+                new ArrayList<StateController.ActiveMessage>();
+        if (encoded == null) {
+            return messages;
+        }
+        try {
+            JSONArray array = new JSONArray(encoded);
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject object = array.getJSONObject(i);
+                StateController.ActiveMessage message = new StateController.ActiveMessage();
+                message.sender = object.getString("sender");
+                message.message = object.getString("message");
+                message.timeSentUtc = object.getLong("timeSentUtc");
+                message.provisional = object.optBoolean("provisional");
+                message.id = object.optLong("id");
+                message.priority = object.optInt("priority", StateController.PRIORITY_ROUTINE);
+                messages.add(message);
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Dropping unreadable message queue", e);
+        }
+        return messages;
+    }
+
+    private static String encodeIds(List<Long> ids) {
+        return new JSONArray(ids).toString();
+    }
+
+    private static List<Long> decodeIds(String encoded) {
+        List<Long> ids = new ArrayList<Long>();
+        if (encoded == null) {
+            return ids;
+        }
+        try {
+            JSONArray array = new JSONArray(encoded);
+            for (int i = 0; i < array.length(); i++) {
+                ids.add(array.getLong(i));
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, "Dropping unreadable acked message IDs", e);
+        }
+        return ids;
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private void onChanged() {
+        WRITES.increment();
+        generation++;
+        if (flushScheduled) {
+            return;
+        }
+        flushScheduled = true;
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        });
+    }
+
+    /**
+     * Commits the current snapshot. Changes made while committing are picked up by the next flush.
+     */
+    private void flush() {
+        SharedPreferences.Editor editor = prefs.edit();
+        long flushedGeneration;
+        String traceKey;
+        synchronized (this) {
+            traceKey = Tracer.key(null, activeMessage == null ? 0 : activeMessage.timeSentUtc);
+            flushScheduled = false;
+            flushedGeneration = generation;
+            editor.putString(FCM_ID, fcmId);
+            editor.putLong(ACKED_UNTIL_UTC, ackedUntilUtc);
+            editor.putLong(UNDELIVERED_SINCE_MS, undeliveredSinceMs);
+            editor.putInt(UNDELIVERED_UPDATES, undeliveredUpdates);
+            editor.putString(QUEUED_MESSAGES, encodeMessages(queuedMessages));
+            editor.putString(ACKED_MESSAGE_IDS, encodeIds(ackedMessageIds));
+            if (activeMessage == null) {
+                editor.remove(ACTIVE_MESSAGE_SENDER);
+                editor.remove(ACTIVE_MESSAGE_MESSAGE);
+                editor.remove(ACTIVE_MESSAGE_TIME_SENT_UTC);
+                editor.remove(ACTIVE_MESSAGE_PROVISIONAL);
+                editor.remove(ACTIVE_MESSAGE_ID);
+                editor.remove(ACTIVE_MESSAGE_PRIORITY);
+            } else {
+                editor.putString(ACTIVE_MESSAGE_SENDER, activeMessage.sender);
+                editor.putString(ACTIVE_MESSAGE_MESSAGE, activeMessage.message);
+                editor.putLong(ACTIVE_MESSAGE_TIME_SENT_UTC, activeMessage.timeSentUtc);
+                editor.putBoolean(ACTIVE_MESSAGE_PROVISIONAL, activeMessage.provisional);
+                editor.putLong(ACTIVE_MESSAGE_ID, activeMessage.id);
+                editor.putInt(ACTIVE_MESSAGE_PRIORITY, activeMessage.priority);
+            }
+        }
+        long begin = Tracer.begin();
+        boolean committed = editor.commit();
+        COMMIT_MS.record(SystemClock.elapsedRealtime() - begin);
+        if (!committed) {
+            COMMIT_FAILURES.increment();
+            Tracer.end("prefs_commit", traceKey, begin, "failed");
+            synchronized (this) {
+                commitFailing = true;
+                // Wake awaitDurable() callers, which fail rather than wait out their timeout.
+                notifyAll();
+                if (!flushScheduled) {
+                    flushScheduled = true;
+                    Log.e(TAG, "Failed to commit state, retrying in " + retryDelayMs + "ms");
+                    writer.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            flush();
+                        }
+                    }, retryDelayMs, TimeUnit.MILLISECONDS);
+                    retryDelayMs = Math.min(retryDelayMs * 2, MAX_RETRY_DELAY_MS);
+                }
+            }
+            return;
+        }
+        Tracer.end("prefs_commit", traceKey, begin, null);
+        synchronized (this) {
+            commitFailing = false;
+            retryDelayMs = INITIAL_RETRY_DELAY_MS;
+            if (flushedGeneration > writtenGeneration) {
+                writtenGeneration = flushedGeneration;
+            }
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Publishes snapshots of the displayed state to in-process listeners.
+ * <p>
+ * The state machine publishes a snapshot after every transition, and a snapshot equal to the last
+ * one published is dropped, so listeners only hear about actual changes. Listeners are called on
+ * the main thread, in order, and are given the latest snapshot as soon as they subscribe.
+ */
+class StateStream {
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final CopyOnWriteArrayList<StateController.StateListener> listeners =
+            new CopyOnWriteArrayList<StateController.StateListener>();
+    private volatile StateController.StateSnapshot latest;
+
+    StateStream(StateController.StateSnapshot initial) {
+        latest = initial;
+    }
+
+    /**
+     * Publishes snapshot, unless it equals the last snapshot published. Called on the state
+     * machine thread.
+     */
+    void publish(final StateController.StateSnapshot snapshot) {
+        if (snapshot.equals(latest)) {
+            return;
+        }
+        latest = snapshot;
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (StateController.StateListener listener : listeners) {
+                    listener.onStateChanged(snapshot);
+                }
+            }
+        });
+    }
+
+    StateController.StateSnapshot getLatest() {
+        return latest;
+    }
+
+    /**
+     * Subscribes listener and hands it the latest snapshot. Must be called on the main thread.
+     */
+    void subscribe(StateController.StateListener listener) {
+        if (listeners.addIfAbsent(listener)) {
+            listener.onStateChanged(latest);
+        }
+    }
+
+    void unsubscribe(StateController.StateListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return true if anything, such as a visible MessageActivity, is listening.
+     */
+    boolean hasSubscribers() {
+        return !listeners.isEmpty();
+    }
+}
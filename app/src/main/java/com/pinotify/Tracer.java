@@ -0,0 +1,182 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Records timed spans along the path of a message, from the push that announces it to the ack that
+ * clears it, in an in-memory ring buffer.
+ * <p>
+ * Spans are keyed by the push ID and the message's time sent, where known, so that the spans of
+ * one message can be picked out of the buffer. A span is started by taking begin(), which costs a
+ * clock read, and is recorded by end(); events are spans with no duration. Once the buffer is full,
+ * the oldest spans are overwritten.
+ */
+public class Tracer {
+    private static final int CAPACITY = 512;
+    private static final String DUMP_FILE_NAME = "pinotify-trace.txt";
+
+    // Guarded by Tracer.class.
+    private static final Span[] spans = new Span[CAPACITY];
+    private static int next;
+    private static long recorded;
+
+    /**
+     * A recorded span.
+     */
+    public static class Span {
+        public final String name;
+        public final String key;
+        // Wall clock time the span started.
+        public final long startMs;
+        public final long durationMs;
+        public final String detail;
+
+        Span(String name, String key, long startMs, long durationMs, String detail) {
+            this.name = name;
+            this.key = key;
+            this.startMs = startMs;
+            this.durationMs = durationMs;
+            this.detail = detail;
+        }
+    }
+
+    /**
+     * @param pushId      The ID of the push, or null if none.
+     * @param timeSentUtc The time the message was sent, or 0 if unknown.
+     * @return The key for spans of the push and message.
+     */
+    public static String key(Long pushId, long timeSentUtc) {
+        StringBuilder key = new StringBuilder();
+        if (pushId != null) {
+            key.append("push=").append(pushId);
+        }
+        if (timeSentUtc > 0) {
+            if (key.length() > 0) {
+                key.append('/');
+            }
+            key.append("msg=").append(timeSentUtc);
+        }
+        return key.length() > 0 ? key.toString() : "-";
+    }
+
+    /**
+     * @return The start of a span, to be passed to end().
+     */
+    public static long begin() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Records a span that started at begin.
+     *
+     * @param name   What the span measured.
+     * @param key    The span's key, from key().
+     * @param begin  The value begin() returned when the span started.
+     * @param detail Anything else worth knowing, such as the outcome, or null.
+     */
+    public static void end(String name, String key, long begin, String detail) {
+        long durationMs = SystemClock.elapsedRealtime() - begin;
+        record(new Span(name, key, System.currentTimeMillis() - durationMs, durationMs, detail));
+    }
+
+    /**
+     * Records an event, a span with no duration.
+     */
+    public static void event(String name, String key, String detail) {
+        record(new Span(name, key, System.currentTimeMillis(), 0, detail));
+    }
+
+    private static synchronized void record(Span span) {
+        spans[next] = span;
+        next = (next + 1) % CAPACITY;
+        recorded++;
+    }
+
+    /**
+     * @return The spans in the buffer, oldest first.
+     */
+    public static synchronized List<Span> getSpans() {
+        List<Span> result = new ArrayList<Span>(CAPACITY);
+        for (int i = 0; i < CAPACITY; i++) {
+            Span span = spans[(next + i) % CAPACITY];
+            if (span != null) {
+                result.add(span);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The spans in the buffer as text, one per line, oldest first.
+     */
+    public static String format() {
+        List<Span> snapshot = getSpans();
+        long total;
+        synchronized (Tracer.class) {
+            total = recorded;
+        }
+        SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+        StringBuilder text = new StringBuilder();
+        text.append(snapshot.size()).append(" of ").append(total).append(" spans\n");
+        for (Span span : snapshot) {
+            text.append(timeFormat.format(new Date(span.startMs)))
+                    .append(' ').append(span.name)
+                    .append(' ').append(span.key)
+                    .append(' ').append(span.durationMs).append("ms");
+            if (span.detail != null) {
+                text.append(' ').append(span.detail);
+            }
+            text.append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Writes the spans to a file in the app's external files directory, where it can be pulled
+     * with adb. Must not be called on the UI thread.
+     *
+     * @param context The Android context.
+     * @return The file written.
+     * @throws IOException If the file couldn't be written.
+     */
+    public static File dump(Context context) throws IOException {
+        File dir = context.getExternalFilesDir(null);
+        if (dir == null) {
+            throw new IOException("External storage is not available");
+        }
+        File file = new File(dir, DUMP_FILE_NAME);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(format());
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+}
@@ -1,92 +1,111 @@
-// Copyright 2017 Google Inc.
-//
-// Licensed under the Apache License, Version 2.0 (the "License");
-// you may not use this file except in compliance with the License.
-// You may obtain a copy of the License at
-//
-//     https://www.apache.org/licenses/LICENSE-2.0
-//
-// Unless required by applicable law or agreed to in writing, software
-// distributed under the License is distributed on an "AS IS" BASIS,
-// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
-// See the License for the specific language governing permissions and
-// limitations under the License.
-
-package com.pinotify.activities;
-
-import android.app.Activity;
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.content.Intent;
-import android.os.Bundle;
-import android.util.Log;
-import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ArrayAdapter;
-import android.widget.ListView;
-import android.widget.TextView;
-
-import com.pinotify.R;
-
-import java.util.Set;
-
-public class BluetoothSelectActivity extends Activity {
-    private static final String TAG = "BlueSelAct";
-
-    /**
-     * The name of the string field containing the device address in the returned intent.
-     */
-    public static final String DEVICE_ADDRESS = "DEVICE_ADDRESS";
-    public static final String DEVICE_NAME = "DEVICE_NAME";
-
-    private static final String SEPARATOR_CHAR = "\n";
-
-    private ArrayAdapter<String> devicesArrayAdapter;
-    private ListView bluetoothListView;
-    private BluetoothAdapter bluetoothAdapter;
-
-    @Override
-    public void onCreate(Bundle savedInstanceState) {
-        super.onCreate(savedInstanceState);
-        setContentView(R.layout.bluetooth_select);
-
-        bluetoothListView = (ListView) findViewById(R.id.bluetoothListView);
-        devicesArrayAdapter = new ArrayAdapter<String>(this, R.layout.bluetooth_item);
-        bluetoothListView.setAdapter(devicesArrayAdapter);
-        bluetoothListView.setOnItemClickListener(bluetoothListViewListener);
-
-        bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-        Set<BluetoothDevice> pairedDevices = bluetoothAdapter.getBondedDevices();
-
-        for (BluetoothDevice device : pairedDevices) {
-            devicesArrayAdapter.add(device.getName() + SEPARATOR_CHAR + device.getAddress());
-        }
-    }
-
-    @Override
-    protected void onDestroy() {
-        super.onDestroy();
-        if (bluetoothAdapter != null) {
-            bluetoothAdapter.cancelDiscovery();
-        }
-    }
-
-    private AdapterView.OnItemClickListener bluetoothListViewListener =
-            new AdapterView.OnItemClickListener() {
-                @Override
-                public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
-                    bluetoothAdapter.cancelDiscovery();
-                    final String selectedDeviceString = ((TextView) view).getText().toString();
-                    Log.d(TAG, "Selected device info " + selectedDeviceString);
-
-                    final String[] parts = selectedDeviceString.split(SEPARATOR_CHAR);
-                    final String bluetoothDeviceName = parts[0];
-                    final String bluetoothAddress = parts[1];
-                    Intent backIntent = new Intent();
-                    backIntent.putExtra(DEVICE_NAME, bluetoothDeviceName);
-                    backIntent.putExtra(DEVICE_ADDRESS, bluetoothAddress);
-                    setResult(Activity.RESULT_OK, backIntent);
-                    finish();
-                }
-            };
-}
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.activities;
+
+import android.app.Activity;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.Intent;
+import android.os.Bundle;
+import android.util.Log;
+import android.util.SparseBooleanArray;
+import android.view.View;
+import android.widget.ArrayAdapter;
+import android.widget.Button;
+import android.widget.ListView;
+
+import com.pinotify.R;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+public class BluetoothSelectActivity extends Activity {
+    private static final String TAG = "BlueSelAct";
+
+    /**
+     * The name of the string array field containing the selected devices' addresses in the
+     * returned intent.
+     */
+    public static final String DEVICE_ADDRESSES = "DEVICE_ADDRESSES";
+    public static final String DEVICE_NAMES = "DEVICE_NAMES";
+
+    private static final String SEPARATOR_CHAR = "\n";
+
+    private ArrayAdapter<String> devicesArrayAdapter;
+    private ListView bluetoothListView;
+    private Button bluetoothDoneBtn;
+    private BluetoothAdapter bluetoothAdapter;
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.bluetooth_select);
+
+        bluetoothListView = (ListView) findViewById(R.id.bluetoothListView);
+        devicesArrayAdapter = new ArrayAdapter<String>(this, R.layout.bluetooth_multi_item);
+        bluetoothListView.setAdapter(devicesArrayAdapter);
+        bluetoothListView.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE);
+        bluetoothDoneBtn = (Button) findViewById(R.id.bluetoothDoneBtn);
+        bluetoothDoneBtn.setOnClickListener(bluetoothDoneBtnListener);
+
+        bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        Set<BluetoothDevice> pairedDevices = bluetoothAdapter.getBondedDevices();
+
+        // The Pis selected so far start out checked.
+        List<String> selected = Arrays.asList(getSharedPreferences(ConfigActivity.PINOTIFY_PREFS, 0)
+                .getString(ConfigActivity.PREF_BLUETOOTH_ADDRESS, "").split(","));
+        for (BluetoothDevice device : pairedDevices) {
+            devicesArrayAdapter.add(device.getName() + SEPARATOR_CHAR + device.getAddress());
+            if (selected.contains(device.getAddress())) {
+                bluetoothListView.setItemChecked(devicesArrayAdapter.getCount() - 1, true);
+            }
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (bluetoothAdapter != null) {
+            bluetoothAdapter.cancelDiscovery();
+        }
+    }
+
+    private Button.OnClickListener bluetoothDoneBtnListener = new Button.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            bluetoothAdapter.cancelDiscovery();
+            ArrayList<String> names = new ArrayList<String>();
+            ArrayList<String> addresses = new ArrayList<String>();
+            SparseBooleanArray checked = bluetoothListView.getCheckedItemPositions();
+            for (int i = 0; i < devicesArrayAdapter.getCount(); i++) {
+                if (!checked.get(i)) {
+                    continue;
+                }
+                final String selectedDeviceString = devicesArrayAdapter.getItem(i);
+                Log.d(TAG, "Selected device info " + selectedDeviceString);
+                final String[] parts = selectedDeviceString.split(SEPARATOR_CHAR);
+                names.add(parts[0]);
+                addresses.add(parts[1]);
+            }
+            Intent backIntent = new Intent();
+            backIntent.putExtra(DEVICE_NAMES, names.toArray(new String[names.size()]));
+            backIntent.putExtra(DEVICE_ADDRESSES, addresses.toArray(new String[addresses.size()]));
+            setResult(Activity.RESULT_OK, backIntent);
+            finish();
+        }
+    };
+}
@@ -1,223 +1,456 @@
-// Copyright 2017 Google Inc.
-//
-// Licensed under the Apache License, Version 2.0 (the "License");
-// you may not use this file except in compliance with the License.
-// You may obtain a copy of the License at
-//
-//     https://www.apache.org/licenses/LICENSE-2.0
-//
-// Unless required by applicable law or agreed to in writing, software
-// distributed under the License is distributed on an "AS IS" BASIS,
-// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
-// See the License for the specific language governing permissions and
-// limitations under the License.
-
-package com.pinotify.activities;
-
-import android.accounts.AccountManager;
-import android.app.Activity;
-import android.bluetooth.BluetoothAdapter;
-import android.content.Context;
-import android.content.Intent;
-import android.content.SharedPreferences;
-import android.os.Bundle;
-import android.text.Editable;
-import android.text.TextWatcher;
-import android.view.View;
-import android.widget.Button;
-import android.widget.EditText;
-import android.widget.TextView;
-import android.widget.Toast;
-
-import com.google.api.client.googleapis.extensions.android.gms.auth.GoogleAccountCredential;
-import com.pinotify.api.BackendApi;
-import com.pinotify.R;
-import com.pinotify.receivers.HealthChecker;
-
-public class ConfigActivity extends Activity {
-    private TextView bluetoothName;
-    private Button bluetoothBtn;
-    private TextView userName;
-    private Button loginBtn;
-    private EditText backendTxt;
-    private Button startStopBtn;
-    private Button aboutBtn;
-
-    public static final String PINOTIFY_PREFS = "PINOTIFY_PREFS";
-    public static final String PREF_ACCOUNT_NAME = "prefAccount";
-    public static final String PREF_BLUETOOTH_NAME = "prefBtName";
-    public static final String PREF_BLUETOOTH_ADDRESS = "prefBtAddress";
-    public static final String PREF_BACKEND_URL = "prefBackendUrl";
-    public static final String PREF_STARTED = "prefStarted";
-
-    private static final int REQUEST_BLUETOOTH_SELECT = 1;
-    private static final int REQUEST_ACCOUNT_PICKER = 2;
-    private static final int REQUEST_BLUETOOTH_ENABLE = 3;
-    private GoogleAccountCredential credential;
-
-    public void onCreate(Bundle savedInstanceState) {
-        super.onCreate(savedInstanceState);
-        setContentView(R.layout.config);
-
-        bluetoothName = (TextView) findViewById(R.id.bluetoothName);
-        bluetoothBtn = (Button) findViewById(R.id.bluetoothBtn);
-        userName = (TextView) findViewById(R.id.userName);
-        loginBtn = (Button) findViewById(R.id.loginBtn);
-        backendTxt = (EditText) findViewById(R.id.backendTxt);
-        startStopBtn = (Button) findViewById(R.id.startStopBtn);
-        aboutBtn = (Button) findViewById(R.id.aboutBtn);
-
-        bluetoothBtn.setOnClickListener(bluetoothBtnListener);
-        loginBtn.setOnClickListener(loginBtnListener);
-        startStopBtn.setOnClickListener(startStopBtnListener);
-        aboutBtn.setOnClickListener(aboutBtnListener);
-        backendTxt.addTextChangedListener(backendTxtTextChanged);
-
-        SharedPreferences sharedPrefs = getSharedPrefs(this);
-        bluetoothName.setText(sharedPrefs.getString(PREF_BLUETOOTH_NAME, "") + " " +
-                sharedPrefs.getString(PREF_BLUETOOTH_ADDRESS, ""));
-        userName.setText(sharedPrefs.getString(PREF_ACCOUNT_NAME, ""));
-        backendTxt.setText(sharedPrefs.getString(PREF_BACKEND_URL, ""));
-        setUIElemsEnabled(!sharedPrefs.getBoolean(PREF_STARTED, false));
-    }
-
-    private void setUIElemsEnabled(boolean enabled) {
-        bluetoothBtn.setEnabled(enabled);
-        loginBtn.setEnabled(enabled);
-        backendTxt.setEnabled(enabled);
-        startStopBtn.setText(enabled ? "Start" : "Stop");
-    }
-
-    private Button.OnClickListener bluetoothBtnListener = new Button.OnClickListener() {
-        @Override
-        public void onClick(View v) {
-            Intent intent = new Intent(getApplicationContext(), BluetoothSelectActivity.class);
-            startActivityForResult(intent, REQUEST_BLUETOOTH_SELECT);
-        }
-    };
-
-    private TextWatcher backendTxtTextChanged = new TextWatcher() {
-        @Override
-        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
-        }
-
-        @Override
-        public void onTextChanged(CharSequence s, int start, int before, int count) {
-            SharedPreferences.Editor editor = getSharedPrefs(getApplicationContext()).edit();
-            editor.putString(PREF_BACKEND_URL, backendTxt.getText().toString());
-            editor.apply();
-        }
-
-        @Override
-        public void afterTextChanged(Editable s) {
-        }
-    };
-
-    private Button.OnClickListener loginBtnListener = new Button.OnClickListener() {
-        @Override
-        public void onClick(View v) {
-            credential = GoogleAccountCredential.usingAudience(getApplicationContext(),
-                    BackendApi.AUDIENCE);
-            startActivityForResult(credential.newChooseAccountIntent(),
-                    REQUEST_ACCOUNT_PICKER);
-
-        }
-    };
-
-    private Button.OnClickListener startStopBtnListener = new Button.OnClickListener() {
-        @Override
-        public void onClick(View v) {
-            final Context context = getApplicationContext();
-            final SharedPreferences sharedPrefs = getSharedPrefs(context);
-            final boolean wasStarted = sharedPrefs.getBoolean(PREF_STARTED,
-                    false);
-            if (!wasStarted) {
-                // First, let's make sure Bluetooth is on before doing anything else.
-                if (!BluetoothAdapter.getDefaultAdapter().isEnabled()) {
-                    Intent enableBluetoothIntent = new Intent(BluetoothAdapter
-                            .ACTION_REQUEST_ENABLE);
-                    startActivityForResult(enableBluetoothIntent, REQUEST_BLUETOOTH_ENABLE);
-                    return;
-                }
-            }
-            setAppStarted(!wasStarted);
-        }
-    };
-
-    /**
-     * @param shouldBeStarted true if should be started, false if should be stopped.
-     */
-    private void setAppStarted(boolean shouldBeStarted) {
-        final SharedPreferences sharedPrefs = getSharedPrefs(this);
-        // We disable the config UI when we start.
-        setUIElemsEnabled(!shouldBeStarted);
-        sharedPrefs.edit().putBoolean(PREF_STARTED, shouldBeStarted).commit();
-        if (shouldBeStarted) {
-            HealthChecker.startAlarm(this);
-            BackendApi.makeDeviceRequest(this, null);
-        } else {
-            HealthChecker.cancelAlarm(this);
-        }
-    }
-
-
-    private Button.OnClickListener aboutBtnListener = new Button.OnClickListener() {
-        @Override
-        public void onClick(View v) {
-            Intent intent = new Intent(getApplicationContext(), AboutActivity.class);
-            startActivity(intent);
-        }
-    };
-
-    private static SharedPreferences getSharedPrefs(Context context) {
-        return context.getSharedPreferences(PINOTIFY_PREFS, 0);
-    }
-
-    @Override
-    protected void onActivityResult(int requestCode, int resultCode,
-                                    Intent data) {
-        super.onActivityResult(requestCode, resultCode, data);
-        switch (requestCode) {
-            case REQUEST_BLUETOOTH_SELECT:
-                if (resultCode == Activity.RESULT_OK) {
-                    final String deviceName =
-                            data.getStringExtra(BluetoothSelectActivity.DEVICE_NAME);
-                    final String deviceAddress =
-                            data.getStringExtra(BluetoothSelectActivity.DEVICE_ADDRESS);
-                    bluetoothName.setText(deviceName + " " + deviceAddress);
-                    SharedPreferences.Editor editor = getSharedPrefs(this).edit();
-                    editor.putString(PREF_BLUETOOTH_NAME, deviceName);
-                    editor.putString(PREF_BLUETOOTH_ADDRESS, deviceAddress);
-                    editor.commit();
-                }
-                break;
-            case REQUEST_ACCOUNT_PICKER:
-                if (data != null && data.getExtras() != null) {
-                    String accountName =
-                            data.getExtras().getString(
-                                    AccountManager.KEY_ACCOUNT_NAME);
-                    if (accountName != null) {
-                        setSelectedAccountName(accountName);
-                        BackendApi.makeDeviceRequest(this, null);
-                    }
-                }
-                break;
-            case REQUEST_BLUETOOTH_ENABLE:
-                if (BluetoothAdapter.getDefaultAdapter().isEnabled()) {
-                    setAppStarted(true);
-                } else {
-                    Toast.makeText(this, "Bluetooth must be enabled.", Toast.LENGTH_SHORT).show();
-                }
-        }
-    }
-
-    private void setSelectedAccountName(String accountName) {
-        SharedPreferences settings = getApplicationContext().getSharedPreferences(
-                PINOTIFY_PREFS, 0);
-        SharedPreferences.Editor editor = settings.edit();
-        editor.putString(PREF_ACCOUNT_NAME, accountName);
-        editor.commit();
-        credential.setSelectedAccountName(accountName);
-        userName.setText(accountName);
-    }
-}
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.activities;
+
+import android.accounts.AccountManager;
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.bluetooth.BluetoothAdapter;
+import android.content.Context;
+import android.content.DialogInterface;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextUtils;
+import android.text.TextWatcher;
+import android.view.View;
+import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
+import android.widget.EditText;
+import android.widget.RadioGroup;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.google.api.client.googleapis.extensions.android.gms.auth.GoogleAccountCredential;
+import com.pinotify.api.BackendApi;
+import com.pinotify.api.RPiApi;
+import com.pinotify.R;
+import com.pinotify.core.RelayDiscovery;
+import com.pinotify.receivers.HealthChecker;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ConfigActivity extends Activity {
+    private TextView bluetoothName;
+    private Button bluetoothBtn;
+    private RadioGroup transportGroup;
+    private EditText tcpHostTxt;
+    private Button discoverBtn;
+    private CheckBox fanOutAllChk;
+    private TextView userName;
+    private Button loginBtn;
+    private EditText backendTxt;
+    private Button startStopBtn;
+    private Button aboutBtn;
+    private Button debugBtn;
+
+    public static final String PINOTIFY_PREFS = "PINOTIFY_PREFS";
+    public static final String PREF_ACCOUNT_NAME = "prefAccount";
+    // The names of the selected Pis, one per line.
+    public static final String PREF_BLUETOOTH_NAME = "prefBtName";
+    // The addresses of the selected Pis, separated by commas.
+    public static final String PREF_BLUETOOTH_ADDRESS = "prefBtAddress";
+    // Per Pi, see relayPref(): the RFCOMM channel the Pi was last found on.
+    public static final String PREF_BLUETOOTH_CHANNEL = "prefBtChannel";
+    // Per Pi, see relayPref(): the protocol version the Pi was found to speak.
+    public static final String PREF_BLUETOOTH_PROTOCOL = "prefBtProtocol";
+    // Per Pi, see relayPref(): when a Pi remembered as speaking version 1 is next sent a HELLO, in
+    // wall clock ms.
+    public static final String PREF_BLUETOOTH_PROTOCOL_RECHECK = "prefBtProtocolRecheck";
+    // Per Pi, see relayPref(): connects in a row on which the Pi didn't answer the HELLO.
+    public static final String PREF_BLUETOOTH_HELLO_FAILURES = "prefBtHelloFailures";
+    // How the Pis are reached: TRANSPORT_BLUETOOTH, or TRANSPORT_TCP at PREF_TCP_HOST.
+    public static final String PREF_RELAY_TRANSPORT = "prefRelayTransport";
+    public static final String TRANSPORT_BLUETOOTH = "bluetooth";
+    public static final String TRANSPORT_TCP = "tcp";
+    // The Pis' "host[:port]"s on the LAN, separated by commas.
+    public static final String PREF_TCP_HOST = "prefTcpHost";
+    // true if a command counts as delivered once every Pi has it, false if once any Pi has it.
+    public static final String PREF_FAN_OUT_ALL = "prefFanOutAll";
+    public static final String PREF_BACKEND_URL = "prefBackendUrl";
+    public static final String PREF_STARTED = "prefStarted";
+
+    private static final int REQUEST_BLUETOOTH_SELECT = 1;
+    private static final int REQUEST_ACCOUNT_PICKER = 2;
+    private static final int REQUEST_BLUETOOTH_ENABLE = 3;
+    private static final int DISCOVERY_TIMEOUT_MS = 1500;
+    private GoogleAccountCredential credential;
+
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.config);
+
+        bluetoothName = (TextView) findViewById(R.id.bluetoothName);
+        bluetoothBtn = (Button) findViewById(R.id.bluetoothBtn);
+        transportGroup = (RadioGroup) findViewById(R.id.transportGroup);
+        tcpHostTxt = (EditText) findViewById(R.id.tcpHostTxt);
+        discoverBtn = (Button) findViewById(R.id.discoverBtn);
+        fanOutAllChk = (CheckBox) findViewById(R.id.fanOutAllChk);
+        userName = (TextView) findViewById(R.id.userName);
+        loginBtn = (Button) findViewById(R.id.loginBtn);
+        backendTxt = (EditText) findViewById(R.id.backendTxt);
+        startStopBtn = (Button) findViewById(R.id.startStopBtn);
+        aboutBtn = (Button) findViewById(R.id.aboutBtn);
+        debugBtn = (Button) findViewById(R.id.debugBtn);
+
+        bluetoothBtn.setOnClickListener(bluetoothBtnListener);
+        discoverBtn.setOnClickListener(discoverBtnListener);
+        loginBtn.setOnClickListener(loginBtnListener);
+        startStopBtn.setOnClickListener(startStopBtnListener);
+        aboutBtn.setOnClickListener(aboutBtnListener);
+        debugBtn.setOnClickListener(debugBtnListener);
+        backendTxt.addTextChangedListener(backendTxtTextChanged);
+
+        SharedPreferences sharedPrefs = getSharedPrefs(this);
+        bluetoothName.setText(formatDevices(sharedPrefs.getString(PREF_BLUETOOTH_NAME, ""),
+                sharedPrefs.getString(PREF_BLUETOOTH_ADDRESS, "")));
+        transportGroup.check(isTcpTransport(this) ? R.id.transportTcp : R.id.transportBluetooth);
+        tcpHostTxt.setText(sharedPrefs.getString(PREF_TCP_HOST, ""));
+        // Registered after restoring the settings, so that restoring doesn't count as a change.
+        transportGroup.setOnCheckedChangeListener(transportGroupListener);
+        tcpHostTxt.addTextChangedListener(tcpHostTxtTextChanged);
+        fanOutAllChk.setChecked(sharedPrefs.getBoolean(PREF_FAN_OUT_ALL, false));
+        fanOutAllChk.setOnCheckedChangeListener(fanOutAllChkListener);
+        userName.setText(sharedPrefs.getString(PREF_ACCOUNT_NAME, ""));
+        backendTxt.setText(sharedPrefs.getString(PREF_BACKEND_URL, ""));
+        setUIElemsEnabled(!sharedPrefs.getBoolean(PREF_STARTED, false));
+    }
+
+    private void setUIElemsEnabled(boolean enabled) {
+        bluetoothBtn.setEnabled(enabled);
+        for (int i = 0; i < transportGroup.getChildCount(); i++) {
+            transportGroup.getChildAt(i).setEnabled(enabled);
+        }
+        tcpHostTxt.setEnabled(enabled);
+        discoverBtn.setEnabled(enabled);
+        fanOutAllChk.setEnabled(enabled);
+        loginBtn.setEnabled(enabled);
+        backendTxt.setEnabled(enabled);
+        startStopBtn.setText(enabled ? "Start" : "Stop");
+    }
+
+    private Button.OnClickListener bluetoothBtnListener = new Button.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            Intent intent = new Intent(getApplicationContext(), BluetoothSelectActivity.class);
+            startActivityForResult(intent, REQUEST_BLUETOOTH_SELECT);
+        }
+    };
+
+    private RadioGroup.OnCheckedChangeListener transportGroupListener =
+            new RadioGroup.OnCheckedChangeListener() {
+                @Override
+                public void onCheckedChanged(RadioGroup group, int checkedId) {
+                    String transport = checkedId == R.id.transportTcp ? TRANSPORT_TCP :
+                            TRANSPORT_BLUETOOTH;
+                    getSharedPrefs(getApplicationContext()).edit()
+                            .putString(PREF_RELAY_TRANSPORT, transport)
+                            .apply();
+                }
+            };
+
+    private TextWatcher tcpHostTxtTextChanged = new TextWatcher() {
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        }
+
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+            getSharedPrefs(getApplicationContext()).edit()
+                    .putString(PREF_TCP_HOST, tcpHostTxt.getText().toString().trim())
+                    .apply();
+        }
+
+        @Override
+        public void afterTextChanged(Editable s) {
+        }
+    };
+
+    private Button.OnClickListener discoverBtnListener = new Button.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            discoverBtn.setEnabled(false);
+            (new AsyncTask<Void, Void, List<RelayDiscovery.Relay>>() {
+                @Override
+                protected List<RelayDiscovery.Relay> doInBackground(Void... voids) {
+                    try {
+                        return RelayDiscovery.discover(DISCOVERY_TIMEOUT_MS);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        return null;
+                    }
+                }
+
+                @Override
+                protected void onPostExecute(List<RelayDiscovery.Relay> relays) {
+                    discoverBtn.setEnabled(!getSharedPrefs(ConfigActivity.this)
+                            .getBoolean(PREF_STARTED, false));
+                    onRelaysDiscovered(relays);
+                }
+            }).execute();
+        }
+    };
+
+    private void onRelaysDiscovered(final List<RelayDiscovery.Relay> relays) {
+        if (relays == null || relays.isEmpty()) {
+            Toast.makeText(this, relays == null ? "Discovery failed, is Wi-Fi on?" :
+                    "No Pi found on this network.", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        if (relays.size() == 1) {
+            tcpHostTxt.setText(relays.get(0).getHostPort());
+            return;
+        }
+        String[] names = new String[relays.size()];
+        final boolean[] selected = new boolean[relays.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = relays.get(i).toString();
+            selected[i] = true;
+        }
+        new AlertDialog.Builder(this)
+                .setTitle("Select Pis")
+                .setMultiChoiceItems(names, selected,
+                        new DialogInterface.OnMultiChoiceClickListener() {
+                            @Override
+                            public void onClick(DialogInterface dialog, int which,
+                                                boolean isChecked) {
+                                selected[which] = isChecked;
+                            }
+                        })
+                .setPositiveButton("OK", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        StringBuilder hosts = new StringBuilder();
+                        for (int i = 0; i < selected.length; i++) {
+                            if (selected[i]) {
+                                hosts.append(hosts.length() > 0 ? ", " : "")
+                                        .append(relays.get(i).getHostPort());
+                            }
+                        }
+                        tcpHostTxt.setText(hosts);
+                    }
+                })
+                .show();
+    }
+
+    private CompoundButton.OnCheckedChangeListener fanOutAllChkListener =
+            new CompoundButton.OnCheckedChangeListener() {
+                @Override
+                public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+                    getSharedPrefs(getApplicationContext()).edit()
+                            .putBoolean(PREF_FAN_OUT_ALL, isChecked)
+                            .apply();
+                }
+            };
+
+    private TextWatcher backendTxtTextChanged = new TextWatcher() {
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+        }
+
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+            SharedPreferences.Editor editor = getSharedPrefs(getApplicationContext()).edit();
+            editor.putString(PREF_BACKEND_URL, backendTxt.getText().toString());
+            editor.apply();
+        }
+
+        @Override
+        public void afterTextChanged(Editable s) {
+        }
+    };
+
+    private Button.OnClickListener loginBtnListener = new Button.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            credential = GoogleAccountCredential.usingAudience(getApplicationContext(),
+                    BackendApi.AUDIENCE);
+            startActivityForResult(credential.newChooseAccountIntent(),
+                    REQUEST_ACCOUNT_PICKER);
+
+        }
+    };
+
+    private Button.OnClickListener startStopBtnListener = new Button.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            final Context context = getApplicationContext();
+            final SharedPreferences sharedPrefs = getSharedPrefs(context);
+            final boolean wasStarted = sharedPrefs.getBoolean(PREF_STARTED,
+                    false);
+            if (!wasStarted) {
+                // First, let's make sure Bluetooth is on before doing anything else.
+                if (!isTcpTransport(context) &&
+                        !BluetoothAdapter.getDefaultAdapter().isEnabled()) {
+                    Intent enableBluetoothIntent = new Intent(BluetoothAdapter
+                            .ACTION_REQUEST_ENABLE);
+                    startActivityForResult(enableBluetoothIntent, REQUEST_BLUETOOTH_ENABLE);
+                    return;
+                }
+            }
+            setAppStarted(!wasStarted);
+        }
+    };
+
+    /**
+     * @param shouldBeStarted true if should be started, false if should be stopped.
+     */
+    private void setAppStarted(boolean shouldBeStarted) {
+        final SharedPreferences sharedPrefs = getSharedPrefs(this);
+        // We disable the config UI when we start.
+        setUIElemsEnabled(!shouldBeStarted);
+        sharedPrefs.edit().putBoolean(PREF_STARTED, shouldBeStarted).commit();
+        if (shouldBeStarted) {
+            HealthChecker.startAlarm(this);
+            RPiApi.connect(this);
+            BackendApi.makeDeviceRequest(this, null);
+        } else {
+            HealthChecker.cancelAlarm(this);
+            RPiApi.disconnect();
+        }
+    }
+
+
+    private Button.OnClickListener aboutBtnListener = new Button.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            Intent intent = new Intent(getApplicationContext(), AboutActivity.class);
+            startActivity(intent);
+        }
+    };
+
+    private Button.OnClickListener debugBtnListener = new Button.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            Intent intent = new Intent(getApplicationContext(), DebugActivity.class);
+            startActivity(intent);
+        }
+    };
+
+    private static SharedPreferences getSharedPrefs(Context context) {
+        return context.getSharedPreferences(PINOTIFY_PREFS, 0);
+    }
+
+    /**
+     * @param context The Android context.
+     * @return true if the Pi is reached over TCP rather than Bluetooth.
+     */
+    public static boolean isTcpTransport(Context context) {
+        return TRANSPORT_TCP.equals(getSharedPrefs(context).getString(PREF_RELAY_TRANSPORT,
+                TRANSPORT_BLUETOOTH));
+    }
+
+    /**
+     * @param context The Android context.
+     * @return The addresses of the Pis configured for the current transport, in the order given.
+     */
+    public static List<String> getRelayAddresses(Context context) {
+        String addresses = getSharedPrefs(context).getString(
+                isTcpTransport(context) ? PREF_TCP_HOST : PREF_BLUETOOTH_ADDRESS, "");
+        List<String> result = new ArrayList<String>();
+        for (String address : addresses.split(",")) {
+            address = address.trim();
+            if (!address.isEmpty() && !result.contains(address)) {
+                result.add(address);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param pref    A setting kept per Pi, such as PREF_BLUETOOTH_CHANNEL.
+     * @param address The Pi's address.
+     * @return The key of the setting for the Pi.
+     */
+    public static String relayPref(String pref, String address) {
+        return pref + "." + address;
+    }
+
+    private static String formatDevices(String names, String addresses) {
+        String[] nameList = names.split("\n");
+        String[] addressList = addresses.split(",");
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < addressList.length; i++) {
+            if (text.length() > 0) {
+                text.append('\n');
+            }
+            text.append(i < nameList.length ? nameList[i] : "").append(' ')
+                    .append(addressList[i]);
+        }
+        return text.toString();
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode,
+                                    Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        switch (requestCode) {
+            case REQUEST_BLUETOOTH_SELECT:
+                if (resultCode == Activity.RESULT_OK) {
+                    final String[] deviceNames =
+                            data.getStringArrayExtra(BluetoothSelectActivity.DEVICE_NAMES);
+                    final String[] deviceAddresses =
+                            data.getStringArrayExtra(BluetoothSelectActivity.DEVICE_ADDRESSES);
+                    String names = TextUtils.join("\n", deviceNames);
+                    String addresses = TextUtils.join(",", deviceAddresses);
+                    bluetoothName.setText(formatDevices(names, addresses));
+                    SharedPreferences.Editor editor = getSharedPrefs(this).edit();
+                    editor.putString(PREF_BLUETOOTH_NAME, names);
+                    editor.putString(PREF_BLUETOOTH_ADDRESS, addresses);
+                    // Selecting a Pi again looks its channel and protocol up afresh.
+                    for (String address : deviceAddresses) {
+                        editor.remove(relayPref(PREF_BLUETOOTH_CHANNEL, address));
+                        editor.remove(relayPref(PREF_BLUETOOTH_PROTOCOL, address));
+                        editor.remove(relayPref(PREF_BLUETOOTH_PROTOCOL_RECHECK, address));
+                        editor.remove(relayPref(PREF_BLUETOOTH_HELLO_FAILURES, address));
+                    }
+                    editor.commit();
+                }
+                break;
+            case REQUEST_ACCOUNT_PICKER:
+                if (data != null && data.getExtras() != null) {
+                    String accountName =
+                            data.getExtras().getString(
+                                    AccountManager.KEY_ACCOUNT_NAME);
+                    if (accountName != null) {
+                        setSelectedAccountName(accountName);
+                        BackendApi.makeDeviceRequest(this, null);
+                    }
+                }
+                break;
+            case REQUEST_BLUETOOTH_ENABLE:
+                if (BluetoothAdapter.getDefaultAdapter().isEnabled()) {
+                    setAppStarted(true);
+                } else {
+                    Toast.makeText(this, "Bluetooth must be enabled.", Toast.LENGTH_SHORT).show();
+                }
+        }
+    }
+
+    private void setSelectedAccountName(String accountName) {
+        SharedPreferences settings = getApplicationContext().getSharedPreferences(
+                PINOTIFY_PREFS, 0);
+        SharedPreferences.Editor editor = settings.edit();
+        editor.putString(PREF_ACCOUNT_NAME, accountName);
+        editor.commit();
+        credential.setSelectedAccountName(accountName);
+        userName.setText(accountName);
+    }
+}
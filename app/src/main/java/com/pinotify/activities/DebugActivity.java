@@ -0,0 +1,76 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.activities;
+
+import android.app.Activity;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.view.View;
+import android.widget.Button;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.pinotify.Metrics;
+import com.pinotify.R;
+import com.pinotify.Tracer;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Shows the app's Metrics and the spans recorded by the Tracer, and saves the spans to a file.
+ */
+public class DebugActivity extends Activity {
+    private TextView debugText;
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.debug);
+        debugText = (TextView) findViewById(R.id.debugText);
+        ((Button) findViewById(R.id.dumpBtn)).setOnClickListener(dumpBtnListener);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        debugText.setText(Metrics.format() + "\n" + Tracer.format());
+    }
+
+    private Button.OnClickListener dumpBtnListener = new Button.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            final Context context = getApplicationContext();
+            (new AsyncTask<Void, Void, String>() {
+                @Override
+                protected String doInBackground(Void... voids) {
+                    try {
+                        File file = Tracer.dump(context);
+                        return "Saved to " + file.getPath();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        return "Couldn't save: " + e.getMessage();
+                    }
+                }
+
+                @Override
+                protected void onPostExecute(String result) {
+                    Toast.makeText(context, result, Toast.LENGTH_LONG).show();
+                }
+            }).execute();
+        }
+    };
+}
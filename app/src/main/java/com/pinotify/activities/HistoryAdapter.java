@@ -0,0 +1,135 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.activities;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.text.format.DateUtils;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.TextView;
+
+import com.pinotify.MessageHistory;
+import com.pinotify.R;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shows the message history, newest first, loading it a page at a time as the list is scrolled.
+ */
+class HistoryAdapter extends BaseAdapter {
+    private static final int PAGE_SIZE = 30;
+    // The next page is loaded once the list is shown within this many entries of the end.
+    private static final int PREFETCH_DISTANCE = 10;
+
+    private final Context context;
+    private final LayoutInflater inflater;
+    private final List<MessageHistory.Entry> entries = new ArrayList<MessageHistory.Entry>();
+    // Only accessed on the UI thread.
+    private AsyncTask<Void, Void, List<MessageHistory.Entry>> loadTask;
+    private boolean exhausted;
+
+    HistoryAdapter(Context context) {
+        this.context = context.getApplicationContext();
+        this.inflater = LayoutInflater.from(context);
+    }
+
+    /**
+     * Drops the loaded history and loads the newest page again.
+     */
+    void reload() {
+        if (loadTask != null) {
+            loadTask.cancel(false);
+            loadTask = null;
+        }
+        entries.clear();
+        exhausted = false;
+        notifyDataSetChanged();
+        loadNextPage();
+    }
+
+    /**
+     * Stops any load in progress.
+     */
+    void cancel() {
+        if (loadTask != null) {
+            loadTask.cancel(false);
+            loadTask = null;
+        }
+    }
+
+    @Override
+    public int getCount() {
+        return entries.size();
+    }
+
+    @Override
+    public MessageHistory.Entry getItem(int position) {
+        return entries.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return entries.get(position).id;
+    }
+
+    @Override
+    public boolean hasStableIds() {
+        return true;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        if (position >= entries.size() - PREFETCH_DISTANCE) {
+            loadNextPage();
+        }
+        View view = convertView;
+        if (view == null) {
+            view = inflater.inflate(R.layout.history_item, parent, false);
+        }
+        MessageHistory.Entry entry = entries.get(position);
+        ((TextView) view.findViewById(R.id.historySender)).setText(entry.message.sender);
+        ((TextView) view.findViewById(R.id.historyMessage)).setText(entry.message.message);
+        ((TextView) view.findViewById(R.id.historyTime)).setText(
+                DateUtils.getRelativeTimeSpanString(entry.message.timeSentUtc * 1000L));
+        return view;
+    }
+
+    private void loadNextPage() {
+        if (loadTask != null || exhausted) {
+            return;
+        }
+        final long beforeId = entries.isEmpty() ? Long.MAX_VALUE :
+                entries.get(entries.size() - 1).id;
+        loadTask = new AsyncTask<Void, Void, List<MessageHistory.Entry>>() {
+            @Override
+            protected List<MessageHistory.Entry> doInBackground(Void... voids) {
+                return MessageHistory.get(context).loadPage(beforeId, PAGE_SIZE);
+            }
+
+            @Override
+            protected void onPostExecute(List<MessageHistory.Entry> page) {
+                loadTask = null;
+                exhausted = page.size() < PAGE_SIZE;
+                entries.addAll(page);
+                notifyDataSetChanged();
+            }
+        };
+        loadTask.execute();
+    }
+}
@@ -0,0 +1,96 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.api;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.pinotify.Metrics;
+import com.pinotify.StateController;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Retries delivering acks and FCM ID updates until the backend has them.
+ * <p>
+ * The outbox itself is persisted by the StateStore, and every device request, whatever triggered
+ * it, carries the newest state and so flushes the outbox. This class only reacts to the outcome of
+ * each request: after a failure with updates still undelivered, it schedules a retry with
+ * exponential backoff and jitter, and after a success it records how long the updates waited.
+ */
+class AckOutbox {
+    private static final String TAG = "AckOutbox";
+
+    private static final long INITIAL_RETRY_DELAY_MS = 1000L;
+    private static final long MAX_RETRY_DELAY_MS = 5L * 60L * 1000L;
+
+    // How long undelivered updates waited until a request delivered them.
+    private static final Metrics.Histogram FLUSH_WAIT_MS =
+            Metrics.histogram("outbox.flush_wait_ms");
+    private static final Metrics.Counter RETRIES = Metrics.counter("outbox.retries");
+    // The number of updates the backend hasn't received.
+    private static final Metrics.Gauge BACKLOG = Metrics.gauge("outbox.backlog");
+
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+    private static final Random random = new Random();
+
+    // Guarded by AckOutbox.class.
+    private static long retryDelayMs = INITIAL_RETRY_DELAY_MS;
+    private static boolean retryScheduled;
+
+    /**
+     * Called once a device request carrying the given state succeeded.
+     */
+    static synchronized void onRequestSucceeded(Context context, long ackedUntilUtc,
+                                                String fcmId, List<Long> ackedMessageIds) {
+        retryDelayMs = INITIAL_RETRY_DELAY_MS;
+        long waitedMs = StateController.markStateDelivered(context, ackedUntilUtc, fcmId,
+                ackedMessageIds);
+        BACKLOG.set(StateController.getUndeliveredUpdates(context));
+        if (waitedMs < 0) {
+            return;
+        }
+        FLUSH_WAIT_MS.record(waitedMs);
+        Log.d(TAG, "Outbox flushed after " + waitedMs + "ms");
+    }
+
+    /**
+     * Called once a device request failed. Schedules a retry if the backend is missing updates.
+     */
+    static synchronized void onRequestFailed(final Context context) {
+        int backlog = StateController.getUndeliveredUpdates(context);
+        BACKLOG.set(backlog);
+        if (backlog == 0 || retryScheduled) {
+            return;
+        }
+        retryScheduled = true;
+        RETRIES.increment();
+        long delayMs = retryDelayMs / 2 + (long) (random.nextDouble() * (retryDelayMs / 2));
+        retryDelayMs = Math.min(retryDelayMs * 2, MAX_RETRY_DELAY_MS);
+        Log.w(TAG, backlog + " undelivered updates, retrying in " + delayMs + "ms");
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (AckOutbox.class) {
+                    retryScheduled = false;
+                }
+                BackendApi.makeDeviceRequest(context, null);
+            }
+        }, delayMs);
+    }
+}
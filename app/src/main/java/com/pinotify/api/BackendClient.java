@@ -0,0 +1,82 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.api;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.google.api.client.extensions.android.http.AndroidHttp;
+import com.google.api.client.googleapis.extensions.android.gms.auth.GoogleAccountCredential;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.pinotify.activities.ConfigActivity;
+
+import none.pinotify_api.PinotifyApi;
+
+/**
+ * Holds the process-wide PinotifyApi client.
+ * <p>
+ * The HTTP transport and JSON factory are shared for the lifetime of the process so that
+ * connections to the backend are kept alive between requests. The client itself is only rebuilt
+ * when the configured backend URL or account changes, which also drops its cached token.
+ */
+class BackendClient {
+    private static final String TAG = "BackendClient";
+
+    private static final HttpTransport TRANSPORT = AndroidHttp.newCompatibleTransport();
+    private static final JsonFactory JSON_FACTORY = new GsonFactory();
+
+    private static PinotifyApi service;
+    private static String serviceRootUrl;
+    private static String serviceAccountName;
+
+    /**
+     * @param context The Android context.
+     * @return The client for the currently configured backend URL and account.
+     */
+    static synchronized PinotifyApi get(Context context) {
+        SharedPreferences settings = context.getSharedPreferences(ConfigActivity.PINOTIFY_PREFS,
+                0);
+        String rootUrl = settings.getString(ConfigActivity.PREF_BACKEND_URL, "");
+        String accountName = settings.getString(ConfigActivity.PREF_ACCOUNT_NAME, null);
+        if (service != null && rootUrl.equals(serviceRootUrl) &&
+                equalsOrBothNull(accountName, serviceAccountName)) {
+            return service;
+        }
+
+        Log.i(TAG, "Building client for " + rootUrl + " as " + accountName);
+        GoogleAccountCredential credential = GoogleAccountCredential
+                .usingAudience(context.getApplicationContext(), BackendApi.AUDIENCE)
+                .setSelectedAccountName(accountName);
+        CachedTokenCredential tokenCredential = new CachedTokenCredential(credential);
+        PinotifyApi.Builder builder = new PinotifyApi.Builder(TRANSPORT, JSON_FACTORY,
+                tokenCredential);
+        builder.setRootUrl(rootUrl);
+        if (accountName != null) {
+            // Start fetching the token now, so the first request doesn't have to wait for it.
+            tokenCredential.refreshInBackground();
+        }
+        service = builder.build();
+        serviceRootUrl = rootUrl;
+        serviceAccountName = accountName;
+        return service;
+    }
+
+    private static boolean equalsOrBothNull(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,245 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.api;
+
+import android.util.Base64;
+import android.util.Log;
+
+import com.google.android.gms.auth.GoogleAuthException;
+import com.google.android.gms.auth.GoogleAuthUtil;
+import com.google.api.client.googleapis.extensions.android.gms.auth.GoogleAccountCredential;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.pinotify.Tracer;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Authorizes backend requests with an ID token that is kept in memory between requests.
+ * <p>
+ * GoogleAccountCredential fetches a token for every request. This instead reuses the token until
+ * shortly before it expires, refreshes it in the background ahead of expiry, and on a 401 response
+ * invalidates the token and retries the request once.
+ */
+class CachedTokenCredential implements HttpRequestInitializer {
+    private static final String TAG = "CachedTokenCredential";
+
+    // Used if the expiry can't be read from the token. ID tokens are valid for an hour.
+    private static final long DEFAULT_TOKEN_LIFETIME_MS = 60L * 60L * 1000L;
+    // Once a token is this close to expiry, it is refreshed in the background.
+    private static final long REFRESH_BEFORE_EXPIRY_MS = 5L * 60L * 1000L;
+    // Tokens closer than this to expiry are not used; a new one is fetched inline.
+    private static final long MIN_REMAINING_VALIDITY_MS = 30L * 1000L;
+
+    private static class CachedToken {
+        final String token;
+        final long expiresAtMs;
+
+        CachedToken(String token, long expiresAtMs) {
+            this.token = token;
+            this.expiresAtMs = expiresAtMs;
+        }
+    }
+
+    // Shared by all credentials, since the backend client is rebuilt whenever the account or URL
+    // changes. A daemon thread, so that it never keeps the process alive.
+    private static final Executor REFRESH_EXECUTOR = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private final GoogleAccountCredential credential;
+    private volatile CachedToken cached;
+    // Guarded by this, which is never held across a token fetch.
+    private boolean backgroundRefreshPending;
+    private boolean fetching;
+
+    CachedTokenCredential(GoogleAccountCredential credential) {
+        this.credential = credential;
+    }
+
+    @Override
+    public void initialize(HttpRequest request) {
+        RequestHandler handler = new RequestHandler();
+        request.setInterceptor(handler);
+        request.setUnsuccessfulResponseHandler(handler);
+    }
+
+    /**
+     * @return A token that is valid for at least MIN_REMAINING_VALIDITY_MS.
+     * @throws IOException If a new token was needed and couldn't be fetched.
+     */
+    String getToken() throws IOException {
+        CachedToken current = cached;
+        long now = System.currentTimeMillis();
+        if (current == null || now >= current.expiresAtMs - MIN_REMAINING_VALIDITY_MS) {
+            return refreshToken().token;
+        }
+        if (now >= current.expiresAtMs - REFRESH_BEFORE_EXPIRY_MS) {
+            refreshInBackground();
+        }
+        return current.token;
+    }
+
+    /**
+     * Fetches a token in the background if there isn't a fresh one cached, so that the next
+     * request doesn't wait for it.
+     */
+    void refreshInBackground() {
+        synchronized (this) {
+            if (backgroundRefreshPending) {
+                return;
+            }
+            backgroundRefreshPending = true;
+        }
+        REFRESH_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refreshToken();
+                } catch (IOException e) {
+                    Log.w(TAG, "Background token refresh failed", e);
+                } finally {
+                    synchronized (CachedTokenCredential.this) {
+                        backgroundRefreshPending = false;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops the token from the cache and from the Google Play services token cache.
+     */
+    private void invalidate(String token) {
+        synchronized (this) {
+            if (cached != null && cached.token.equals(token)) {
+                cached = null;
+            }
+        }
+        try {
+            GoogleAuthUtil.clearToken(credential.getContext(), token);
+        } catch (GoogleAuthException | IOException e) {
+            Log.w(TAG, "Failed to clear token", e);
+        }
+    }
+
+    /**
+     * Fetches a new token, unless a fresh one is cached. Only one fetch runs at a time; other
+     * callers wait for it without holding the lock, and use its token.
+     */
+    private CachedToken refreshToken() throws IOException {
+        synchronized (this) {
+            while (fetching) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for a token");
+                }
+            }
+            // Another caller may have refreshed the token while we waited.
+            CachedToken current = cached;
+            if (current != null && System.currentTimeMillis() <
+                    current.expiresAtMs - REFRESH_BEFORE_EXPIRY_MS) {
+                return current;
+            }
+            fetching = true;
+        }
+        try {
+            String token;
+            long begin = Tracer.begin();
+            try {
+                token = credential.getToken();
+            } catch (GoogleAuthException e) {
+                Tracer.end("token_fetch", Tracer.key(null, 0), begin, "failed");
+                throw new IOException(e);
+            }
+            Tracer.end("token_fetch", Tracer.key(null, 0), begin, null);
+            CachedToken fetched = new CachedToken(token, getExpiryMs(token));
+            cached = fetched;
+            return fetched;
+        } finally {
+            synchronized (this) {
+                fetching = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return The expiry time in the token's claims, or DEFAULT_TOKEN_LIFETIME_MS from now if the
+     *         token doesn't carry one.
+     */
+    private static long getExpiryMs(String token) {
+        String[] parts = token.split("\\.");
+        if (parts.length == 3) {
+            try {
+                byte[] claims = Base64.decode(parts[1],
+                        Base64.URL_SAFE | Base64.NO_PADDING | Base64.NO_WRAP);
+                long expSec = new JSONObject(new String(claims, "UTF-8")).optLong("exp", 0L);
+                if (expSec > 0) {
+                    return expSec * 1000L;
+                }
+            } catch (IllegalArgumentException | JSONException | IOException e) {
+                Log.w(TAG, "Couldn't read token expiry", e);
+            }
+        }
+        return System.currentTimeMillis() + DEFAULT_TOKEN_LIFETIME_MS;
+    }
+
+    /**
+     * Adds the token to a single request, and retries that request once if it gets a 401.
+     */
+    private class RequestHandler implements HttpExecuteInterceptor,
+            HttpUnsuccessfulResponseHandler {
+        private boolean received401;
+        private String token;
+
+        @Override
+        public void intercept(HttpRequest request) throws IOException {
+            token = getToken();
+            request.getHeaders().setAuthorization("Bearer " + token);
+        }
+
+        @Override
+        public boolean handleResponse(HttpRequest request, HttpResponse response,
+                                      boolean supportsRetry) {
+            if (response.getStatusCode() == HttpStatusCodes.STATUS_CODE_UNAUTHORIZED &&
+                    !received401) {
+                received401 = true;
+                invalidate(token);
+                return true;
+            }
+            return false;
+        }
+    }
+}
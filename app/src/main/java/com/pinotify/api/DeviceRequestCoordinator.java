@@ -0,0 +1,174 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.api;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.SystemClock;
+import android.provider.Settings;
+import android.util.Log;
+
+import com.pinotify.Metrics;
+import com.pinotify.StateController;
+import com.pinotify.Tracer;
+import com.pinotify.core.SyncCoalescer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import none.pinotify_api.PinotifyApi;
+import none.pinotify_api.model.ApiDeviceBatchRequest;
+import none.pinotify_api.model.ApiDeviceBatchResponse;
+import none.pinotify_api.model.ApiMetric;
+
+/**
+ * Coalesces device request triggers so that at most one sync with the backend is in flight.
+ * <p>
+ * A trigger that arrives while a sync is running joins it: exactly one follow-up sync is run once
+ * the current one completes, and that follow-up reads the newest ackedUntil and FCM ID. The
+ * response of a sync that was overtaken by a follow-up is dropped, since it may predate an ack.
+ * <p>
+ * Since every sync carries the newest state, any sync flushes the AckOutbox. Syncs also report the
+ * app's Metrics to the backend, at most once per METRICS_REPORT_INTERVAL_MS.
+ */
+class DeviceRequestCoordinator {
+    private static final String TAG = "DeviceReqCoordinator";
+    // How many unacked messages each sync fetches, so that a backlog drains without a round trip
+    // per message.
+    private static final long PREFETCH_MESSAGES = 10L;
+    private static final long METRICS_REPORT_INTERVAL_MS = 30L * 60L * 1000L;
+
+    private static final Metrics.Histogram RPC_MS = Metrics.histogram("backend.rpc_ms");
+    private static final Metrics.Counter RPC_FAILURES = Metrics.counter("backend.rpc_failures");
+    // Triggers merged into the in-flight or pending follow-up sync.
+    private static final Metrics.Counter MERGED_TRIGGERS =
+            Metrics.counter("backend.merged_triggers");
+
+    private static final SyncCoalescer coalescer = new SyncCoalescer();
+    private static long lastMetricsReportMs;
+
+    /**
+     * Starts a sync, or joins the one already in flight.
+     *
+     * @param context        The Android context.
+     * @param causedByPushId The ID of the push that triggered this sync, or null.
+     */
+    static synchronized void requestSync(Context context, Long causedByPushId) {
+        if (!coalescer.onTrigger(causedByPushId)) {
+            MERGED_TRIGGERS.increment();
+            return;
+        }
+        startSync(context.getApplicationContext(), causedByPushId);
+    }
+
+    private static synchronized boolean isMetricsReportDue() {
+        return lastMetricsReportMs == 0 ||
+                System.currentTimeMillis() - lastMetricsReportMs >= METRICS_REPORT_INTERVAL_MS;
+    }
+
+    private static synchronized void onMetricsReported() {
+        lastMetricsReportMs = System.currentTimeMillis();
+    }
+
+    private static List<ApiMetric> getApiMetrics() {
+        List<ApiMetric> metrics = new ArrayList<ApiMetric>();
+        for (Map.Entry<String, Long> entry : Metrics.getValues().entrySet()) {
+            metrics.add(new ApiMetric().setName(entry.getKey()).setValue(entry.getValue()));
+        }
+        return metrics;
+    }
+
+    private static void startSync(final Context context, final Long causedByPushId) {
+        (new AsyncTask<Void, Void, ApiDeviceBatchResponse>() {
+            @Override
+            protected ApiDeviceBatchResponse doInBackground(Void... voids) {
+                // Don't report an ack to the backend before it's on disk here.
+                if (!StateController.awaitStateDurable(context)) {
+                    Log.w(TAG, "Sending device request before local state is durable");
+                }
+                // The request is built here, rather than when triggered, so that it carries the
+                // newest local state.
+                PinotifyApi service = BackendClient.get(context);
+                String fcmId = StateController.getFcmId(context);
+                long ackedUntilUtc = StateController.getAckedUntilUtc(context);
+                List<Long> ackedMessageIds = StateController.getAckedMessageIds(context);
+                ApiDeviceBatchRequest request = new ApiDeviceBatchRequest()
+                        .setFcmId(fcmId)
+                        .setAckedUntil(ackedUntilUtc)
+                        .setAckedMessageIds(ackedMessageIds)
+                        .setCausedByPushId(causedByPushId)
+                        .setMaxMessages(PREFETCH_MESSAGES)
+                        .setDeviceId(Settings.Secure.getString(context.getContentResolver(),
+                                Settings.Secure.ANDROID_ID));
+                boolean reportsMetrics = isMetricsReportDue();
+                if (reportsMetrics) {
+                    request.setMetrics(getApiMetrics());
+                }
+                // A request carrying undelivered acks is also traced as the ack's RPC.
+                boolean carriesAcks = StateController.getUndeliveredUpdates(context) > 0;
+                String traceKey = Tracer.key(causedByPushId, 0);
+                long begin = Tracer.begin();
+                try {
+                    ApiDeviceBatchResponse response =
+                            service.pynotifyApi().deviceBatchRequest(request).execute();
+                    RPC_MS.record(SystemClock.elapsedRealtime() - begin);
+                    Tracer.end("device_rpc", traceKey, begin, null);
+                    if (reportsMetrics) {
+                        onMetricsReported();
+                    }
+                    if (carriesAcks) {
+                        Tracer.end("ack_rpc", Tracer.key(null, ackedUntilUtc), begin,
+                                "ids=" + ackedMessageIds);
+                    }
+                    AckOutbox.onRequestSucceeded(context, ackedUntilUtc, fcmId,
+                            ackedMessageIds);
+                    return response;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    RPC_FAILURES.increment();
+                    Tracer.end("device_rpc", traceKey, begin, "failed");
+                }
+                AckOutbox.onRequestFailed(context);
+                return null;
+            }
+
+            @Override
+            protected void onPostExecute(ApiDeviceBatchResponse response) {
+                if (onSyncFinished(context)) {
+                    Log.d(TAG, "Dropping response superseded by a follow-up sync");
+                    return;
+                }
+                BackendApi.handleDeviceBatchResponse(context, response, causedByPushId);
+            }
+        }).execute();
+    }
+
+    /**
+     * Starts the follow-up sync, if any triggers arrived during the finished one.
+     *
+     * @return true if a follow-up sync was started.
+     */
+    private static synchronized boolean onSyncFinished(Context context) {
+        SyncCoalescer.FollowUp followUp = coalescer.onSyncFinished();
+        if (followUp == null) {
+            return false;
+        }
+        Log.d(TAG, "Merged " + followUp.mergedTriggers + " triggers into a follow-up sync");
+        startSync(context, followUp.causedByPushId);
+        return true;
+    }
+}
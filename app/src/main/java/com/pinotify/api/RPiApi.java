@@ -1,53 +1,213 @@
-// Copyright 2017 Google Inc.
-//
-// Licensed under the Apache License, Version 2.0 (the "License");
-// you may not use this file except in compliance with the License.
-// You may obtain a copy of the License at
-//
-//     https://www.apache.org/licenses/LICENSE-2.0
-//
-// Unless required by applicable law or agreed to in writing, software
-// distributed under the License is distributed on an "AS IS" BASIS,
-// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
-// See the License for the specific language governing permissions and
-// limitations under the License.
-
-package com.pinotify.api;
-
-import android.content.Context;
-import android.content.SharedPreferences;
-
-import com.pinotify.RPiBluetoothConnection;
-import com.pinotify.activities.ConfigActivity;
-
-public class RPiApi {
-    // These values can range 0 - 15. Both values cannot be zero.
-    private static final byte TIME_ON_SEC = 2;
-    private static final byte TIME_OFF_SEC = 2;
-    private static final byte BLINK_MESSAGE = TIME_ON_SEC << 4 | TIME_OFF_SEC;
-    private static final byte DISMISS_MSG = 0;
-
-    public static interface Dismisser {
-        void Dismiss(Context context);
-    }
-
-    public static void setDismisser(final Context context, final Dismisser dismisser) {
-        RPiBluetoothConnection.setReceiver(new RPiBluetoothConnection.Receiver() {
-            @Override
-            public void receivedByte(byte b) {
-                if (b == DISMISS_MSG) {
-                    dismisser.Dismiss(context);
-                }
-            }
-        });
-    }
-
-    public static void startBlinking(Context context) {
-        SharedPreferences sharedPrefs = context.getSharedPreferences(ConfigActivity
-                .PINOTIFY_PREFS, 0);
-        if (!sharedPrefs.getBoolean(ConfigActivity.PREF_STARTED, false)) {
-            return;
-        }
-        RPiBluetoothConnection.sendMessage(context, BLINK_MESSAGE);
-    }
-}
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.api;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.pinotify.RPiBluetoothConnection;
+import com.pinotify.StateController;
+import com.pinotify.Tracer;
+import com.pinotify.activities.ConfigActivity;
+import com.pinotify.core.RelayFanOut;
+import com.pinotify.core.RelayTransport;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Drives the Pis configured in ConfigActivity. Each Pi has its own RPiBluetoothConnection, with
+ * its own I/O thread and reconnect state, and commands go to all of them at once through a
+ * RelayFanOut.
+ */
+public class RPiApi {
+    // Blink patterns as {on, off} seconds, indexed by message priority, so that urgent messages
+    // blink faster. These values can range 0 - 15. Both values cannot be zero.
+    private static final int[][] BLINK_PATTERNS = {
+            {2, 2},  // StateController.PRIORITY_ROUTINE
+            {2, 1},  // StateController.PRIORITY_HIGH
+            {1, 1},  // StateController.PRIORITY_URGENT
+    };
+
+    public static interface Dismisser {
+        void Dismiss(Context context);
+    }
+
+    private static volatile Dismisser dismisser;
+    private static volatile Context dismisserContext;
+
+    // The configured Pis, rebuilt when the configuration changes. Guarded by RPiApi.class.
+    private static RelayFanOut relays;
+    private static List<RPiBluetoothConnection> connections;
+    private static String relaysConfig;
+
+    // Subscribed once per fan-out, and forwards to the current dismisser.
+    private static final RelayTransport.Receiver RECEIVER =
+            new RelayTransport.Receiver() {
+                @Override
+                public void receivedDismiss() {
+                    Dismisser current = dismisser;
+                    Context context = dismisserContext;
+                    if (context != null) {
+                        StateController.ActiveMessage message =
+                                StateController.getActiveMessage(context);
+                        Tracer.event("pi_dismiss",
+                                Tracer.key(null, message == null ? 0 : message.timeSentUtc), null);
+                    }
+                    if (current != null) {
+                        current.Dismiss(dismisserContext);
+                    }
+                }
+            };
+
+    public static void setDismisser(Context context, Dismisser dismisser) {
+        RPiApi.dismisserContext = context.getApplicationContext();
+        RPiApi.dismisser = dismisser;
+    }
+
+    /**
+     * Brings up the links to the Pis ahead of the first command, if the app is started.
+     *
+     * @param context The Android context.
+     */
+    public static void connect(Context context) {
+        getStartedRelays(context);
+    }
+
+    /**
+     * Reconnects to the Pis right away, rather than once the reconnect backoff elapses, and
+     * re-sends the blink if a message is displayed. For use when Bluetooth or the network comes
+     * back.
+     *
+     * @param context The Android context.
+     */
+    public static void onLinkAvailable(Context context) {
+        RelayFanOut relays = getStartedRelays(context);
+        if (relays == null) {
+            return;
+        }
+        StateController.ActiveMessage message = StateController.getActiveMessage(context);
+        if (message != null) {
+            // A queued command connects without waiting for the backoff.
+            sendBlink(relays, message);
+        } else {
+            for (RPiBluetoothConnection connection : getConnections()) {
+                connection.reconnectNow();
+            }
+        }
+    }
+
+    /**
+     * Drops the links to the Pis.
+     */
+    public static synchronized void disconnect() {
+        if (relays != null) {
+            relays.close();
+            relays = null;
+            connections = null;
+            relaysConfig = null;
+        }
+    }
+
+    /**
+     * Queues a blink command for every Pi, replacing any blink already in progress. Returns
+     * immediately.
+     *
+     * @param context The Android context.
+     * @param message The displayed message, whose priority picks the blink pattern.
+     */
+    public static void startBlinking(Context context, StateController.ActiveMessage message) {
+        RelayFanOut relays = getStartedRelays(context);
+        if (relays != null) {
+            sendBlink(relays, message);
+        }
+    }
+
+    private static void sendBlink(RelayFanOut relays, StateController.ActiveMessage message) {
+        int[] pattern = BLINK_PATTERNS[Math.max(0, Math.min(message.priority,
+                BLINK_PATTERNS.length - 1))];
+        // Traced from queueing until the first Pi, or every Pi, has the command, across any
+        // reconnect.
+        final String traceKey = traceKey(message);
+        final long begin = Tracer.begin();
+        relays.sendBlink(pattern[0], pattern[1], traceKey, new RelayTransport.DeliveryCallback() {
+            @Override
+            public void onResult(boolean delivered) {
+                Tracer.end("blink", traceKey, begin, delivered ? null : "not delivered");
+            }
+        });
+    }
+
+    /**
+     * @return The key for spans of the commands for message, which joins the push that carried it
+     *         where known.
+     */
+    private static String traceKey(StateController.ActiveMessage message) {
+        return Tracer.key(message.pushId, message.timeSentUtc);
+    }
+
+    /**
+     * Queues a command for every Pi to stop blinking, cancelling any blink that hasn't been sent
+     * yet. Returns immediately.
+     *
+     * @param context The Android context.
+     * @param message The message the Pis were blinking for, to trace the command under, or null.
+     */
+    public static void stopBlinking(Context context, StateController.ActiveMessage message) {
+        RelayFanOut relays = getStartedRelays(context);
+        if (relays != null) {
+            relays.sendDismiss(message == null ? null : traceKey(message), null);
+        }
+    }
+
+    /**
+     * @return The configured Pis, or null if the app isn't started or none are configured. The
+     *         connections are replaced if the configuration changed.
+     */
+    private static synchronized RelayFanOut getStartedRelays(Context context) {
+        SharedPreferences sharedPrefs = context.getSharedPreferences(ConfigActivity
+                .PINOTIFY_PREFS, 0);
+        if (!sharedPrefs.getBoolean(ConfigActivity.PREF_STARTED, false)) {
+            return null;
+        }
+        String transport = ConfigActivity.isTcpTransport(context) ? ConfigActivity.TRANSPORT_TCP :
+                ConfigActivity.TRANSPORT_BLUETOOTH;
+        List<String> addresses = ConfigActivity.getRelayAddresses(context);
+        boolean waitForAll = sharedPrefs.getBoolean(ConfigActivity.PREF_FAN_OUT_ALL, false);
+        String config = transport + " " + addresses + " " + waitForAll;
+        if (relays != null && !config.equals(relaysConfig)) {
+            disconnect();
+        }
+        if (relays == null && !addresses.isEmpty()) {
+            List<RPiBluetoothConnection> opened = new ArrayList<RPiBluetoothConnection>();
+            for (String address : addresses) {
+                RPiBluetoothConnection connection =
+                        RPiBluetoothConnection.open(context, transport, address);
+                if (connection != null) {
+                    opened.add(connection);
+                }
+            }
+            connections = opened;
+            relays = new RelayFanOut(opened, waitForAll);
+            relays.addReceiver(RECEIVER);
+            relaysConfig = config;
+        }
+        return relays;
+    }
+
+    private static synchronized List<RPiBluetoothConnection> getConnections() {
+        return connections == null ? new ArrayList<RPiBluetoothConnection>() : connections;
+    }
+}
@@ -0,0 +1,101 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.receivers;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+import com.pinotify.activities.ConfigActivity;
+import com.pinotify.api.BackendApi;
+import com.pinotify.api.RPiApi;
+
+/**
+ * Resyncs as soon as the network or Bluetooth comes back, rather than on the next health check or
+ * reconnect attempt.
+ * <p>
+ * Registered at runtime, since connectivity changes can't be received through the manifest on
+ * Nougat and later.
+ */
+public class ConnectivityReceiver extends BroadcastReceiver {
+    private static final String TAG = "ConnectivityReceiver";
+
+    private static ConnectivityReceiver instance;
+
+    // Only accessed on the main thread. Starts out true so that the sticky broadcast delivered on
+    // registering, which only reports the current state, doesn't count as regaining the network.
+    private boolean networkConnected = true;
+
+    /**
+     * Starts listening for connectivity changes, if not already listening.
+     *
+     * @param context The Android context.
+     */
+    public static synchronized void register(Context context) {
+        if (instance != null) {
+            return;
+        }
+        instance = new ConnectivityReceiver();
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
+        filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
+        filter.addAction(BluetoothDevice.ACTION_ACL_CONNECTED);
+        context.getApplicationContext().registerReceiver(instance, filter);
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        String action = intent.getAction();
+        if (ConnectivityManager.CONNECTIVITY_ACTION.equals(action)) {
+            onConnectivityChanged(context);
+        } else if (BluetoothAdapter.ACTION_STATE_CHANGED.equals(action)) {
+            int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR);
+            if (state == BluetoothAdapter.STATE_ON) {
+                Log.i(TAG, "Bluetooth adapter on, reconnecting");
+                RPiApi.onLinkAvailable(context);
+            }
+        } else if (BluetoothDevice.ACTION_ACL_CONNECTED.equals(action)) {
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            if (device != null && !ConfigActivity.isTcpTransport(context) &&
+                    ConfigActivity.getRelayAddresses(context).contains(device.getAddress())) {
+                Log.i(TAG, "Pi in range, reconnecting");
+                RPiApi.onLinkAvailable(context);
+            }
+        }
+    }
+
+    private void onConnectivityChanged(Context context) {
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        boolean connected = networkInfo != null && networkInfo.isConnected();
+        boolean regained = connected && !networkConnected;
+        networkConnected = connected;
+        if (regained) {
+            Log.i(TAG, "Network regained, syncing");
+            // Joins any sync already in flight.
+            BackendApi.makeDeviceRequest(context, null);
+            if (ConfigActivity.isTcpTransport(context)) {
+                RPiApi.onLinkAvailable(context);
+            }
+        }
+    }
+}
@@ -1,82 +1,131 @@
-// Copyright 2017 Google Inc.
-//
-// Licensed under the Apache License, Version 2.0 (the "License");
-// you may not use this file except in compliance with the License.
-// You may obtain a copy of the License at
-//
-//     https://www.apache.org/licenses/LICENSE-2.0
-//
-// Unless required by applicable law or agreed to in writing, software
-// distributed under the License is distributed on an "AS IS" BASIS,
-// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
-// See the License for the specific language governing permissions and
-// limitations under the License.
-
-package com.pinotify.receivers;
-
-import android.app.AlarmManager;
-import android.app.PendingIntent;
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
-import android.os.SystemClock;
-import android.widget.Toast;
-
-import com.pinotify.api.BackendApi;
-
-/**
- * Manages the alarm health checker.
- */
-public class HealthChecker extends BroadcastReceiver{
-    /**
-     * (Re)starts the alarm, if it is not already running.
-     *
-     * @param context The Android context.
-     */
-    public static void startAlarm(Context context) {
-        AlarmManager alarmMgr = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-
-
-        alarmMgr.setRepeating(AlarmManager.ELAPSED_REALTIME_WAKEUP,
-                SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_HALF_HOUR / 30L / 12L,
-                AlarmManager.INTERVAL_HALF_HOUR / 30L / 12L, getPendingIntent(context));
-    }
-
-    /**
-     * Cancels the alarm, if it is running.
-     *
-     * @param context The Android context.
-     */
-    public static void cancelAlarm(Context context) {
-        // Android considers two PendingIntents the same if they share the same request ID, and the
-        // intents are the same by Intent.filterEquals() (same action, data, type, class, and
-        // categories).
-        //
-        // Therefore, an existing alarm can be cancelled by simply re-creating the equivalent
-        // PendingIntent and cancelling it.
-        AlarmManager alarmMgr = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        alarmMgr.cancel(getPendingIntent(context));
-    }
-
-    /**
-     * @param context The Android context.
-     * @return The Intent used by the health checker alarm. See the comment inside cancelAlarm()'s
-     *         implementation for details about how Android reuses PendingIntents.
-     */
-    private static PendingIntent getPendingIntent(Context context) {
-        Intent intent = new Intent(context, HealthChecker.class);
-        intent.setAction("com.pinotify.HealthCheck");
-        return PendingIntent.getBroadcast(context, 0, intent, 0);
-    }
-
-    /**
-     * Called when the alarm has fired.
-     *
-     * @param context The Android context.
-     * @param intent Intent for the alarm that fired.
-     */
-    @Override
-    public void onReceive(Context context, Intent intent) {
-        BackendApi.makeDeviceRequest(context, null);
-    }
-}
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.receivers;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Build;
+import android.os.SystemClock;
+
+import com.pinotify.Metrics;
+import com.pinotify.api.BackendApi;
+import com.pinotify.services.HealthCheckJobService;
+
+/**
+ * Manages the alarm health checker.
+ * <p>
+ * Each check is scheduled once, for when PollScheduler says, and the next is scheduled when the
+ * check's sync finishes. On Lollipop and later the check is a job that waits for a network, so the
+ * system can batch it with other work; before that it is an inexact alarm that doesn't wake the
+ * device.
+ */
+public class HealthChecker extends BroadcastReceiver{
+    private static final int JOB_ID = 1;
+
+    private static final Metrics.Counter CHECKS = Metrics.counter("health.checks");
+
+    /**
+     * (Re)starts the health checker, replacing any pending check.
+     *
+     * @param context The Android context.
+     */
+    public static void startAlarm(Context context) {
+        schedule(context, PollScheduler.getNextIntervalMs(context));
+    }
+
+    /**
+     * Schedules the next check, replacing any pending check.
+     *
+     * @param context The Android context.
+     * @param delayMs How long from now the check should run, at the earliest.
+     */
+    static void schedule(Context context, long delayMs) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            JobScheduler jobScheduler =
+                    (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+            jobScheduler.schedule(new JobInfo.Builder(JOB_ID,
+                    new ComponentName(context, HealthCheckJobService.class))
+                    .setMinimumLatency(delayMs)
+                    .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                    .build());
+            return;
+        }
+        AlarmManager alarmMgr = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmMgr.set(AlarmManager.ELAPSED_REALTIME, SystemClock.elapsedRealtime() + delayMs,
+                getPendingIntent(context));
+    }
+
+    /**
+     * Cancels the health checker, if it is running.
+     *
+     * @param context The Android context.
+     */
+    public static void cancelAlarm(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            JobScheduler jobScheduler =
+                    (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+            jobScheduler.cancel(JOB_ID);
+        }
+        // Android considers two PendingIntents the same if they share the same request ID, and the
+        // intents are the same by Intent.filterEquals() (same action, data, type, class, and
+        // categories).
+        //
+        // Therefore, an existing alarm can be cancelled by simply re-creating the equivalent
+        // PendingIntent and cancelling it.
+        AlarmManager alarmMgr = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+        alarmMgr.cancel(getPendingIntent(context));
+    }
+
+    /**
+     * Runs a health check.
+     *
+     * @param context The Android context.
+     */
+    public static void check(Context context) {
+        CHECKS.increment();
+        // Keep polling should the sync never finish, e.g. if the process dies. The sync replaces
+        // this with a better informed schedule.
+        startAlarm(context);
+        BackendApi.makeDeviceRequest(context, null);
+    }
+
+    /**
+     * @param context The Android context.
+     * @return The Intent used by the health checker alarm. See the comment inside cancelAlarm()'s
+     *         implementation for details about how Android reuses PendingIntents.
+     */
+    private static PendingIntent getPendingIntent(Context context) {
+        Intent intent = new Intent(context, HealthChecker.class);
+        intent.setAction("com.pinotify.HealthCheck");
+        return PendingIntent.getBroadcast(context, 0, intent, 0);
+    }
+
+    /**
+     * Called when the alarm has fired.
+     *
+     * @param context The Android context.
+     * @param intent Intent for the alarm that fired.
+     */
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        check(context);
+    }
+}
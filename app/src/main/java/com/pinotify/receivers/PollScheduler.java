@@ -0,0 +1,62 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.receivers;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.pinotify.AndroidPrefs;
+import com.pinotify.StateController;
+import com.pinotify.activities.ConfigActivity;
+import com.pinotify.core.PollPolicy;
+
+/**
+ * Schedules the health checker's polls of the backend, at the intervals PollPolicy picks. Every
+ * finished sync reschedules the next poll, so pushes postpone polls.
+ */
+public class PollScheduler {
+    private static final String TAG = "PollScheduler";
+
+    /**
+     * Records the outcome of a sync with the backend, and schedules the next poll.
+     *
+     * @param context         The Android context.
+     * @param succeeded       true if the backend answered.
+     * @param causedByPush    true if the sync was triggered by a push.
+     * @param foundNewMessage true if the backend returned a message that wasn't displayed yet.
+     */
+    public static void onSyncFinished(Context context, boolean succeeded, boolean causedByPush,
+                                      boolean foundNewMessage) {
+        AndroidPrefs prefs = AndroidPrefs.get(context);
+        long nowMs = System.currentTimeMillis();
+        if (PollPolicy.recordSync(prefs, succeeded, causedByPush, foundNewMessage, nowMs)) {
+            Log.w(TAG, "Poll found a message that was never pushed");
+        }
+        if (!prefs.getBoolean(ConfigActivity.PREF_STARTED, false)) {
+            return;
+        }
+        HealthChecker.schedule(context, PollPolicy.getIntervalAfterSyncMs(prefs, succeeded,
+                foundNewMessage, StateController.getActiveMessage(context) != null, nowMs));
+    }
+
+    /**
+     * @param context The Android context.
+     * @return How long to wait before the next poll.
+     */
+    public static long getNextIntervalMs(Context context) {
+        return PollPolicy.getNextIntervalMs(AndroidPrefs.get(context),
+                StateController.getActiveMessage(context) != null, System.currentTimeMillis());
+    }
+}
@@ -1,42 +1,111 @@
-// Copyright 2017 Google Inc.
-//
-// Licensed under the Apache License, Version 2.0 (the "License");
-// you may not use this file except in compliance with the License.
-// You may obtain a copy of the License at
-//
-//     https://www.apache.org/licenses/LICENSE-2.0
-//
-// Unless required by applicable law or agreed to in writing, software
-// distributed under the License is distributed on an "AS IS" BASIS,
-// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
-// See the License for the specific language governing permissions and
-// limitations under the License.
-
-package com.pinotify.services;
-
-
-import android.util.Log;
-
-import com.google.firebase.messaging.FirebaseMessagingService;
-import com.google.firebase.messaging.RemoteMessage;
-import com.pinotify.api.BackendApi;
-
-public class FirebasePushNotificationHandler extends FirebaseMessagingService {
-    private static final String TAG = "FirebasePushNotifica";
-
-    @Override
-    public void onMessageReceived(RemoteMessage remoteMessage) {
-        Log.d(TAG, remoteMessage.getFrom());
-
-        if (remoteMessage.getData().size() > 0) {
-            Log.d(TAG, "Received push data: " + remoteMessage.getData());
-        }
-
-        if (remoteMessage.getNotification() != null) {
-            Log.d(TAG, "Message notification body " + remoteMessage.getNotification().getBody());
-        }
-
-        // TODO: id cause
-        BackendApi.makeDeviceRequest(this, null);
-    }
-}
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.services;
+
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.google.firebase.messaging.FirebaseMessagingService;
+import com.google.firebase.messaging.RemoteMessage;
+import com.pinotify.StateController;
+import com.pinotify.Tracer;
+import com.pinotify.activities.ConfigActivity;
+import com.pinotify.api.BackendApi;
+
+import java.util.Map;
+
+/**
+ * Handles pushes from the backend.
+ * <p>
+ * Pushes for new messages carry the message, which is shown right away. The backend is then asked
+ * for the authoritative state in the background, and the display is corrected if it disagrees.
+ */
+public class FirebasePushNotificationHandler extends FirebaseMessagingService {
+    private static final String TAG = "FirebasePushNotifica";
+
+    // Keys of the push data payload, as sent by web_handlers.SendPushNotification().
+    private static final String DATA_PUSH_ID = "push_id";
+    private static final String DATA_SENDER = "sender";
+    private static final String DATA_MESSAGE = "message";
+    private static final String DATA_DATE = "date";
+    private static final String DATA_MESSAGE_ID = "message_id";
+    private static final String DATA_PRIORITY = "priority";
+
+    @Override
+    public void onMessageReceived(RemoteMessage remoteMessage) {
+        Log.d(TAG, remoteMessage.getFrom());
+
+        Map<String, String> data = remoteMessage.getData();
+        if (data.size() > 0) {
+            Log.d(TAG, "Received push data: " + data);
+        }
+
+        if (remoteMessage.getNotification() != null) {
+            Log.d(TAG, "Message notification body " + remoteMessage.getNotification().getBody());
+        }
+
+        Long pushId = parseLong(data.get(DATA_PUSH_ID));
+        StateController.ActiveMessage message = parseMessage(data);
+        if (message != null) {
+            message.pushId = pushId;
+        }
+        Tracer.event("fcm_receipt", Tracer.key(pushId, message == null ? 0 : message.timeSentUtc),
+                null);
+        SharedPreferences settings = getSharedPreferences(ConfigActivity.PINOTIFY_PREFS, 0);
+        if (message != null && settings.getBoolean(ConfigActivity.PREF_STARTED, false)) {
+            StateController.showPushedMessage(this, message);
+        }
+
+        BackendApi.makeDeviceRequest(this, pushId);
+    }
+
+    /**
+     * @return The message carried by the push, or null if it doesn't carry a complete one.
+     */
+    private static StateController.ActiveMessage parseMessage(Map<String, String> data) {
+        String sender = data.get(DATA_SENDER);
+        String body = data.get(DATA_MESSAGE);
+        Long date = parseLong(data.get(DATA_DATE));
+        if (sender == null || body == null || date == null) {
+            return null;
+        }
+        StateController.ActiveMessage message = new StateController.ActiveMessage();
+        message.sender = sender;
+        message.message = body;
+        message.timeSentUtc = date;
+        Long id = parseLong(data.get(DATA_MESSAGE_ID));
+        if (id != null) {
+            message.id = id;
+        }
+        Long priority = parseLong(data.get(DATA_PRIORITY));
+        if (priority != null) {
+            message.priority = priority.intValue();
+        }
+        return message;
+    }
+
+    private static Long parseLong(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid number in push data: " + value);
+            return null;
+        }
+    }
+}
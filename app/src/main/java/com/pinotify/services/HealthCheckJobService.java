@@ -0,0 +1,40 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.services;
+
+import android.annotation.TargetApi;
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.os.Build;
+
+import com.pinotify.receivers.HealthChecker;
+
+/**
+ * Runs the health checker's job on Lollipop and later.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class HealthCheckJobService extends JobService {
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        // The sync runs on its own, and schedules the next job once it finishes.
+        HealthChecker.check(this);
+        return false;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        return false;
+    }
+}
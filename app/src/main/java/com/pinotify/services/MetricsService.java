@@ -0,0 +1,54 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.services;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.IBinder;
+
+import com.pinotify.Metrics;
+import com.pinotify.Tracer;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
+/**
+ * Prints the app's Metrics and traces through dumpsys. Since dumpsys only reaches running services,
+ * start it first:
+ * <pre>
+ * adb shell am startservice -n com.pinotify/.services.MetricsService
+ * adb shell dumpsys activity service com.pinotify/.services.MetricsService
+ * </pre>
+ */
+public class MetricsService extends Service {
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Metrics:");
+        writer.print(Metrics.format());
+        writer.println();
+        writer.println("Traces:");
+        writer.print(Tracer.format());
+    }
+}
@@ -1,127 +1,259 @@
-# Copyright 2017 Google Inc.
-#
-# Licensed under the Apache License, Version 2.0 (the "License");
-# you may not use this file except in compliance with the License.
-# You may obtain a copy of the License at
-#
-#     https://www.apache.org/licenses/LICENSE-2.0
-#
-# Unless required by applicable law or agreed to in writing, software
-# distributed under the License is distributed on an "AS IS" BASIS,
-# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
-# See the License for the specific language governing permissions and
-# limitations under the License.
-
-import auth
-import calendar
-import datetime
-import endpoints
-import logging
-import model
-from protorpc import message_types
-from protorpc import messages
-from protorpc import remote
-
-# TODO: config
-# SETUP_TODO: Get these from the Google Cloud Console API Credentials.
-ANDROID_CLIENT_ID = 'android-client-id-here'
-WEB_CLIENT_ID = 'web-client-id-here'
-
-class DeviceRequest(messages.Message):
-  """A status request from the device -- the message also bears device info.
-
-  If the device making the request is unknown, it is registered, along with
-  its fcm_id (of course, assuming the user making the request passed
-  authentication). The device will henceforth receive push notifications
-  when new messages arrive.
-
-  Devices should periodically send this request for health checking --
-  the server takes note of the time of the last request, and it also
-  notes the response latency from FCM message to device request.
-  """
-  # The unique immutable ID of this device.
-  device_id = messages.StringField(1) 
-
-  # The Firebase Cloud Messaging ID of this device. 
-  fcm_id = messages.StringField(2)
-
-  # The UTC timestamp of the last message acknowledged by this device. Set to
-  # None if the no message acknowledgements have been made since app
-  # installation.
-  acked_until = messages.IntegerField(3)
-
-  # The ID of the push notification that caused the device to send this
-  # request. If this request wasn't promoted by a push notification, this
-  # is left blank. 
-  caused_by_push_id = messages.IntegerField(4)
-
-
-class DeviceResponse(messages.Message):
-  """A response to the device
-
-  Contains the least recent unacknowledged message.
-
-  All fields will be None if there are no unacknowledged messages on the
-  server.
-  """
-  # Contains the textual content of the message.
-  message = messages.StringField(1)
-
-  # Contains the name of the sender of the message.
-  sender = messages.StringField(2)
-
-  # Contains the timestamp the message was sent.
-  date = messages.IntegerField(3)
-
-
-@endpoints.api(name='pinotify_api', version='v1',
-               allowed_client_ids=[endpoints.API_EXPLORER_CLIENT_ID, ANDROID_CLIENT_ID,
-                                   WEB_CLIENT_ID], audiences=[WEB_CLIENT_ID])
-class PiNotifyApi(remote.Service):
-
-  @endpoints.method(
-    DeviceRequest,
-    DeviceResponse,
-    path='device_request',
-    http_method='POST',
-    name='pynotify_api.device_request')
-  def device_request(self, request):
-    """Upserts a device, then returns the least recent unacknowledged message."""
-    logging.info('User %s', endpoints.get_current_user())
-    user_model = auth.AuthUser(endpoints.get_current_user())
-    if not user_model:
-      raise endpoints.ForbiddenException('Unauthorized client device')
-
-    # Get the device and upsert its info if needed
-    device = model.RelayDevice.get_or_insert('%s%s' % (request.device_id,
-                                                       user_model.key.id()),
-                                             parent=user_model.key)
-    modified = False
-    if device.fcm_id != request.fcm_id:
-      device.fcm_id = request.fcm_id
-      modified = True
-    acked_until_utc = datetime.datetime.utcfromtimestamp(request.acked_until)
-    if device.acked_until != acked_until_utc:
-      device.acked_until = acked_until_utc
-      modified = True
-    if modified:
-      device.put()
-
-    # Get the oldest unacked message on the device and return
-    oldest_unacked = (model.Message
-                     .query(ancestor=device.key)
-                     .filter(model.Message.date > acked_until_utc)
-                     .order(model.Message.date)
-                     .get())
-    response = DeviceResponse()
-    if oldest_unacked:
-      response.message = oldest_unacked.body
-      response.sender = oldest_unacked.sender.get().key.id()
-      # We add one since the timegm() function always rounds down any
-      # sub-seconds. This guarantees that the returned time is >= the message
-      # time in the datastore.
-      response.date = calendar.timegm(oldest_unacked.date.timetuple()) + 1
-    return response
-
-api = endpoints.api_server([PiNotifyApi])
-
+# Copyright 2017 Google Inc.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#     https://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+import auth
+import datetime
+import endpoints
+import logging
+import model
+from protorpc import message_types
+from protorpc import messages
+from protorpc import remote
+
+from google.appengine.ext import ndb
+
+# TODO: config
+# SETUP_TODO: Get these from the Google Cloud Console API Credentials.
+ANDROID_CLIENT_ID = 'android-client-id-here'
+WEB_CLIENT_ID = 'web-client-id-here'
+
+# The most messages a device_batch_request returns.
+MAX_BATCH_MESSAGES = 20
+
+class DeviceRequest(messages.Message):
+  """A status request from the device -- the message also bears device info.
+
+  If the device making the request is unknown, it is registered, along with
+  its fcm_id (of course, assuming the user making the request passed
+  authentication). The device will henceforth receive push notifications
+  when new messages arrive.
+
+  Devices should periodically send this request for health checking --
+  the server takes note of the time of the last request, and it also
+  notes the response latency from FCM message to device request.
+  """
+  # The unique immutable ID of this device.
+  device_id = messages.StringField(1) 
+
+  # The Firebase Cloud Messaging ID of this device. 
+  fcm_id = messages.StringField(2)
+
+  # The UTC timestamp of the last message acknowledged by this device. Set to
+  # None if the no message acknowledgements have been made since app
+  # installation.
+  acked_until = messages.IntegerField(3)
+
+  # The ID of the push notification that caused the device to send this
+  # request. If this request wasn't promoted by a push notification, this
+  # is left blank. 
+  caused_by_push_id = messages.IntegerField(4)
+
+  # The IDs of messages acknowledged ahead of older messages, which
+  # acked_until can't cover without acknowledging those too.
+  acked_message_ids = messages.IntegerField(5, repeated=True)
+
+
+class Metric(messages.Message):
+  """A metric reported by a device, such as a counter or a latency percentile."""
+  name = messages.StringField(1)
+  value = messages.IntegerField(2)
+
+
+class DeviceResponse(messages.Message):
+  """A response to the device
+
+  Contains the unacknowledged message to show first: the least recent one of
+  the highest priority.
+
+  All fields will be None if there are no unacknowledged messages on the
+  server.
+  """
+  # Contains the textual content of the message.
+  message = messages.StringField(1)
+
+  # Contains the name of the sender of the message.
+  sender = messages.StringField(2)
+
+  # Contains the timestamp the message was sent.
+  date = messages.IntegerField(3)
+
+  # Contains the ID of the message, for acknowledging it by ID.
+  message_id = messages.IntegerField(4)
+
+  # Contains the priority of the message, one of the model.PRIORITY_* values.
+  priority = messages.IntegerField(5)
+
+
+class DeviceBatchRequest(messages.Message):
+  """A DeviceRequest that asks for several unacknowledged messages at once."""
+  # As in DeviceRequest.
+  device_id = messages.StringField(1)
+  fcm_id = messages.StringField(2)
+  acked_until = messages.IntegerField(3)
+  caused_by_push_id = messages.IntegerField(4)
+
+  # The most messages to return. The server may return fewer.
+  max_messages = messages.IntegerField(5)
+
+  # As in DeviceRequest.
+  acked_message_ids = messages.IntegerField(6, repeated=True)
+
+  # The device's metrics, which it reports every so often. Empty otherwise.
+  metrics = messages.MessageField(Metric, 7, repeated=True)
+
+
+class DeviceBatchResponse(messages.Message):
+  """A response to the device with its least recent unacknowledged messages.
+
+  The messages are ordered highest priority first, then oldest first, and
+  empty if there are no unacknowledged messages on the server.
+  """
+  unacked_messages = messages.MessageField(DeviceResponse, 1, repeated=True)
+
+
+@endpoints.api(name='pinotify_api', version='v1',
+               allowed_client_ids=[endpoints.API_EXPLORER_CLIENT_ID, ANDROID_CLIENT_ID,
+                                   WEB_CLIENT_ID], audiences=[WEB_CLIENT_ID])
+class PiNotifyApi(remote.Service):
+
+  @endpoints.method(
+    DeviceRequest,
+    DeviceResponse,
+    path='device_request',
+    http_method='POST',
+    name='pynotify_api.device_request')
+  def device_request(self, request):
+    """Upserts a device, then returns the unacknowledged message to show first."""
+    device, acked_until_utc = self._UpsertDevice(request)
+    unacked = _UnackedMessages(device, acked_until_utc, 1)
+    if unacked:
+      return _ToDeviceResponse(unacked[0])
+    return DeviceResponse()
+
+  @endpoints.method(
+    DeviceBatchRequest,
+    DeviceBatchResponse,
+    path='device_batch_request',
+    http_method='POST',
+    name='pynotify_api.device_batch_request')
+  def device_batch_request(self, request):
+    """Upserts a device, then returns the unacknowledged messages to show first."""
+    device, acked_until_utc = self._UpsertDevice(request)
+    max_messages = min(max(request.max_messages or 1, 1), MAX_BATCH_MESSAGES)
+    unacked = _UnackedMessages(device, acked_until_utc, max_messages)
+    return DeviceBatchResponse(
+        unacked_messages=[_ToDeviceResponse(message) for message in unacked])
+
+  def _UpsertDevice(self, request):
+    """Upserts the device making request.
+
+    Args:
+      request: A DeviceRequest or DeviceBatchRequest.
+
+    Returns:
+      The RelayDevice, and the datetime up to which it has acked messages.
+    """
+    logging.info('User %s', endpoints.get_current_user())
+    user_model = auth.AuthUser(endpoints.get_current_user())
+    if not user_model:
+      raise endpoints.ForbiddenException('Unauthorized client device')
+
+    # Get the device and upsert its info if needed
+    device = model.RelayDevice.get_or_insert('%s%s' % (request.device_id,
+                                                       user_model.key.id()),
+                                             parent=user_model.key)
+    modified = False
+    if device.fcm_id != request.fcm_id:
+      device.fcm_id = request.fcm_id
+      modified = True
+    acked_until_utc = datetime.datetime.utcfromtimestamp(request.acked_until)
+    if device.acked_until != acked_until_utc:
+      device.acked_until = acked_until_utc
+      modified = True
+    metrics = getattr(request, 'metrics', None)
+    if metrics:
+      device.metrics = dict((metric.name, metric.value) for metric in metrics)
+      device.metrics_time = datetime.datetime.utcnow()
+      logging.info('Device %s metrics: %s', device.key.id(), device.metrics)
+      modified = True
+    if modified:
+      device.put()
+    _MarkAcked(device, request.acked_message_ids)
+
+    if (request.caused_by_push_id is not None and
+        request.caused_by_push_id == device.last_push_id and
+        device.last_push_time):
+      latency = datetime.datetime.utcnow() - device.last_push_time
+      logging.info('Push %s to device request latency: %.3fs',
+                   request.caused_by_push_id, latency.total_seconds())
+    return device, acked_until_utc
+
+
+def _MarkAcked(device, message_ids):
+  """Marks the device's messages with the given IDs acked."""
+  if not message_ids:
+    return
+  keys = [ndb.Key(model.Message, message_id, parent=device.key)
+          for message_id in message_ids]
+  newly_acked = [message for message in ndb.get_multi(keys)
+                 if message and not message.acked]
+  for message in newly_acked:
+    message.acked = True
+  ndb.put_multi(newly_acked)
+
+
+def _UnackedMessages(device, acked_until_utc, limit):
+  """Returns up to limit of the device's unacked messages.
+
+  The messages are ordered highest priority first, then oldest first. Messages
+  above routine priority are queried on their own, so that they aren't hidden
+  behind a backlog of older routine messages.
+  """
+  query = (model.Message
+           .query(ancestor=device.key)
+           .filter(model.Message.date > acked_until_utc)
+           .order(model.Message.date))
+  elevated = query.filter(model.Message.priority.IN([model.PRIORITY_HIGH,
+                                                     model.PRIORITY_URGENT]))
+  unacked = {}
+  for message in _FirstUnacked(elevated, limit) + _FirstUnacked(query, limit):
+    unacked[message.key] = message
+  return sorted(unacked.values(),
+                key=lambda message: (-message.priority, message.date))[:limit]
+
+
+def _FirstUnacked(query, limit):
+  """Returns the first limit results of query not acked by ID.
+
+  The acked flag is checked here rather than filtered on in the query, since
+  messages stored before it existed don't have it.
+  """
+  unacked = []
+  for message in query.iter():
+    if not message.acked:
+      unacked.append(message)
+      if len(unacked) >= limit:
+        break
+  return unacked
+
+
+def _ToDeviceResponse(message):
+  return DeviceResponse(message=message.body,
+                        sender=message.sender.get().key.id(),
+                        date=model.MessageTimestamp(message),
+                        message_id=message.key.id(),
+                        priority=message.priority)
+
+api = endpoints.api_server([PiNotifyApi])
+
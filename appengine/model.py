@@ -1,61 +1,108 @@
-# Copyright 2017 Google Inc.
-#
-# Licensed under the Apache License, Version 2.0 (the "License");
-# you may not use this file except in compliance with the License.
-# You may obtain a copy of the License at
-#
-#     https://www.apache.org/licenses/LICENSE-2.0
-#
-# Unless required by applicable law or agreed to in writing, software
-# distributed under the License is distributed on an "AS IS" BASIS,
-# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
-# See the License for the specific language governing permissions and
-# limitations under the License.
-
-from google.appengine.ext import ndb
-
-class RelayDevice(ndb.Model):
-  """Info about relaying tablet devices.
-  
-  The key name shall be the unique, immutable device ID,
-  concatenated with the owner email.
-
-  The parent of each RelayDevice shall be a AuthorizedUser key of the owner
-  of the device so that lookups of owned devices for a user will be strongly
-  consistent.
-  """
-  # The curent Firebase Cloud Messaging ID for the device -- may change over
-  # time.
-  fcm_id = ndb.StringProperty()
-
-  # If present, all messages up to this date time have been aked.
-  acked_until = ndb.DateTimeProperty()
-
-
-class AuthorizedUser(ndb.Model):
-  """Users that are authorized to use app.
-  
-  The key name shall be the email address of the user.
-
-  The may_post_to property maintains the many-to-many relationship between
-  users and devices indicating to which devices a user may post messages.
-  """
-  # A list of keys to devices to which this user may post.
-  may_post_to = ndb.KeyProperty(kind=RelayDevice, repeated=True)
-
-
-class Message(ndb.Model):
-  """A message sent to the relay device.
-  
-  The parent of each Message shall be a RelayDevice key so that lookups of
-  messages for a device will be strongly consistent.
-  """
-  # The user that sent the message.
-  sender = ndb.KeyProperty(kind=AuthorizedUser)
-
-  # The textual content of the message, limited to 140 characters.
-  body = ndb.StringProperty()
-
-  # The date and time the message was posted.
-  date = ndb.DateTimeProperty(auto_now_add=True)
-
+# Copyright 2017 Google Inc.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#     https://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+import calendar
+
+from google.appengine.ext import ndb
+
+# Message priorities. Devices show higher priority messages first, and an
+# urgent message preempts a routine one that is already showing.
+PRIORITY_ROUTINE = 0
+PRIORITY_HIGH = 1
+PRIORITY_URGENT = 2
+PRIORITY_NAMES = {
+    PRIORITY_ROUTINE: 'Routine',
+    PRIORITY_HIGH: 'High',
+    PRIORITY_URGENT: 'Urgent',
+}
+
+class RelayDevice(ndb.Model):
+  """Info about relaying tablet devices.
+  
+  The key name shall be the unique, immutable device ID,
+  concatenated with the owner email.
+
+  The parent of each RelayDevice shall be a AuthorizedUser key of the owner
+  of the device so that lookups of owned devices for a user will be strongly
+  consistent.
+  """
+  # The curent Firebase Cloud Messaging ID for the device -- may change over
+  # time.
+  fcm_id = ndb.StringProperty()
+
+  # If present, all messages up to this date time have been aked.
+  acked_until = ndb.DateTimeProperty()
+
+  # The ID of the last push notification sent to the device, and when it was
+  # sent. Used to measure push to device request latency.
+  last_push_id = ndb.IntegerProperty()
+  last_push_time = ndb.DateTimeProperty()
+
+  # The metrics the device last reported, as a dict of name to value, and when
+  # they were reported.
+  metrics = ndb.JsonProperty()
+  metrics_time = ndb.DateTimeProperty()
+
+
+class AuthorizedUser(ndb.Model):
+  """Users that are authorized to use app.
+  
+  The key name shall be the email address of the user.
+
+  The may_post_to property maintains the many-to-many relationship between
+  users and devices indicating to which devices a user may post messages.
+  """
+  # A list of keys to devices to which this user may post.
+  may_post_to = ndb.KeyProperty(kind=RelayDevice, repeated=True)
+
+
+class Message(ndb.Model):
+  """A message sent to the relay device.
+  
+  The parent of each Message shall be a RelayDevice key so that lookups of
+  messages for a device will be strongly consistent.
+  """
+  # The user that sent the message.
+  sender = ndb.KeyProperty(kind=AuthorizedUser)
+
+  # The textual content of the message, limited to 140 characters.
+  body = ndb.StringProperty()
+
+  # The date and time the message was posted.
+  date = ndb.DateTimeProperty(auto_now_add=True)
+
+  # One of the PRIORITY_* values.
+  priority = ndb.IntegerProperty(default=PRIORITY_ROUTINE)
+
+  # True if the device acked this message ahead of older ones, which happens
+  # when a higher priority message preempts them. Messages up to the device's
+  # acked_until are acked whether or not this is set.
+  acked = ndb.BooleanProperty(default=False)
+
+
+def MessageTimestamp(message):
+  """Returns the UTC timestamp that devices know message by.
+
+  We add one since the timegm() function always rounds down any sub-seconds.
+  This guarantees that the returned time is >= the message time in the
+  datastore, so acking it acks the message.
+  """
+  return calendar.timegm(message.date.timetuple()) + 1
+
+
+def IsAcked(device, message):
+  """Returns True if device has acked message."""
+  return bool(message.acked or
+              (device.acked_until and device.acked_until >= message.date))
+
@@ -1,280 +1,471 @@
-#!/usr/bin/python
-
-# Copyright 2017 Google Inc.
-#
-# Licensed under the Apache License, Version 2.0 (the "License");
-# you may not use this file except in compliance with the License.
-# You may obtain a copy of the License at
-#
-#     https://www.apache.org/licenses/LICENSE-2.0
-#
-# Unless required by applicable law or agreed to in writing, software
-# distributed under the License is distributed on an "AS IS" BASIS,
-# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
-# See the License for the specific language governing permissions and
-# limitations under the License.
-import copy
-import bluetooth
-import os
-import select
-import struct
-import threading
-import RPi.GPIO as GPIO
-import time
-import traceback
-
-LIGHT_PIN_NUMBERS=set([3,4])
-BUTTON_PIN_NUMBER=17
-
-BUTTON_POLL_INTERVAL_SEC=0.02
-
-def SetupGpioPins():
-  GPIO.setmode(GPIO.BCM)
-  for light_pin in LIGHT_PIN_NUMBERS:
-    GPIO.setup(light_pin, GPIO.OUT)
-  GPIO.setup(BUTTON_PIN_NUMBER, GPIO.IN, pull_up_down=GPIO.PUD_UP)
-
-
-class BluetoothServer(object):
-  """Class that manages Bluetooth communication with the tablet.
-
-  The server receives blink commands from inbound connections, which it
-  acknowledges by sending _ACK_MSG. It relays these requests to the constructor
-  injected 'blinker'.
-
-  The server can also send a "dismissal" on all active connections (connections
-  are held open indefinitely until device shutdown / out of range). The
-  dismissal indicates that the message currently displayed on the tablet has
-  been seen and may be "dismissed".
-  """
-  UUID = '00001101-0000-1000-8000-00805F9B34FB'
-
-  # All messages are one octet long, for simplicity.
-
-  # Messages we send.
-  _DISMISS_MSG = '\x00'
-  _ACK_MSG = '\x01'
-
-  # Messages we receive.
-  _STOP_BLINKING_MSG = '\x00'
-
-  def __init__(self, blinker):
-    """Creates and starts the BluetoothServer.
-
-    Args:
-      blinker: An object that has 2 methods Blink(duration_on, duration_off),
-               and StopBlinking().
-    """
-    self._blinker = blinker
-    self._connections = set()
-    self._connections_lock = threading.Lock()
-    self._thread = threading.Thread(target=self._ThreadBody)
-    self._thread.start()
-
-  def _ThreadBody(self):
-    server_socket = bluetooth.BluetoothSocket(bluetooth.RFCOMM)
-    with self._connections_lock:
-      self._connections.add(server_socket)
-    server_socket.bind(("", bluetooth.PORT_ANY))
-    print 'Listening for connections'
-    server_socket.listen(5)
-    bluetooth.advertise_service(
-        server_socket, 'PiNotifyBtServer',  service_id=self.UUID, 
-        service_classes = [bluetooth.SERIAL_PORT_CLASS],
-        profiles = [bluetooth.SERIAL_PORT_PROFILE])
-
-    while True:
-      with self._connections_lock:
-        connections = copy.copy(self._connections)
-      rlist, _, _ = select.select(connections, [], [])
-      for sock in rlist:
-        if sock is server_socket:
-          accepted, addr = sock.accept() 
-          print 'Accepted a connection from %s' % str(addr)
-          with self._connections_lock:
-            self._connections.add(accepted)
-        else:
-          # We expect an octet -- if we get too much, close the socket.
-          BUFFER_SIZE=1024
-          received = self._TrySockOp(sock.recv, BUFFER_SIZE)
-          if received is None:
-            # Cleanup already happened...continue.
-            print 'Cleanup already happened'
-            continue
-          if len(received) != 1:
-            print ('Unexpectedly received a message of length %s: %s' % 
-                   (len(received), received))
-            self._CleanupSock(sock)
-            continue
-          self._HandleMessage(received)
-
-  def _HandleMessage(self, received):
-    """Handle the received inbound message."""
-    if received == self._STOP_BLINKING_MSG:
-      self._blinker.StopBlinking()
-      return
-    unpacked = struct.unpack('B', received)[0]
-    low_nibble = unpacked & 0x0F
-    high_nibble = (unpacked & 0xF0) >> 4
-    self._blinker.Blink(duration_on=high_nibble, duration_off=low_nibble)
-
-  def _TrySockOp(self, bound_op, *args, **kwargs):
-    """Tries a socket operation, cleaning up the socket on failure
-
-    Bluetooth socket operations can fail (device out of range, offline,
-    I/O error, etc.), in which case we want to clean up the socket and its
-    references. This function automatically does this.
-
-    Args:
-      bound_op: A bound socket method, like connection.send (without parens).
-      argv: Positional args, forwared to bound_op().
-      kwargs: Keyword arguments, forwarded to bound_op().
-    """
-    try:
-      return bound_op(*args, **kwargs)
-    except bluetooth.BluetoothError as e:
-      traceback.print_exc()
-      CONNECTION_RESET = 104
-      if str(CONNECTION_RESET) in e.message:
-        # For some reason, after getting a connection reset on a socket, the
-        # listener socket silently stops working...since we're stateless, we
-        # can solve this by quitting, which will result in a re-launch of the
-        # server.
-        os._exit(1)
-      self._CleanupSock(sock = bound_op.__self__)
-
-  def _CleanupSock(self, sock):
-    """Cleans up sock, if cleanup is necessary."""
-    with self._connections_lock:
-      if sock not in self._connections:
-        return
-      print 'Cleaning up connection'
-      self._connections.remove(sock)
-      sock.close()
-  
-  def Dismiss(self):
-    """Sends a dismiss message on all active connections."""
-    with self._connections_lock:
-      connections = copy.copy(self._connections)
-    for connection in connections:
-      self._TrySockOp(connection.send, self._DISMISS_MSG)
-
-
-class HasWaiterEvent(object):
-  def __init__(self):
-    self._main_event = threading.Event()
-    self._has_waiter_event = threading.Event()
-
-  def set(self, *args, **xargs):
-    self._main_event.set(*args, **xargs)
-
-  def clear(self, *args, **xargs):
-    self._main_event.clear(*args, **xargs)
-
-  def wait(self, *args, **xargs):
-    self._has_waiter_event.set()
-    self._main_event.wait(*args, **xargs)
-    self._has_waiter_event.clear()
-
-  def WaitForWaiter(self, *args, **xargs):
-    self._has_waiter_event.wait(*args, **xargs)
-
-
-class RepeatingTimer(object):
-  def __init__(self, function):
-    self._function = function
-    self._interval = 0
-    self._interval_lock = threading.Lock()
-
-    self._running = HasWaiterEvent()
-    self._stop = threading.Event()
-    self._events_lock = threading.Lock()
-
-    self._thread = threading.Thread(target=self._ThreadBody)
-    self._thread.start()
-
-  def Start(self):
-    with self._events_lock:
-      self._running.set()
-
-  def Cancel(self):
-    with self._events_lock:
-      self._running.clear()
-      self._stop.set()
-      self._running.WaitForWaiter()
-      self._stop.clear()
-
-  def SetInterval(self, interval):
-    with self._interval_lock:
-      self._interval = interval
-
-  def _ThreadBody(self):
-    while True:
-      self._running.wait()
-      while True:
-        self._function()
-        with self._interval_lock:
-          interval = self._interval
-        if self._stop.wait(interval):
-          break
-
-
-class Blinker(object):
-  def __init__(self):
-    self._duration_on = 0
-    self._duration_off = 0
-    self._lights_on = False
-    self._timer = RepeatingTimer(self._TimerBody)
-
-  def _TimerBody(self):
-    self._lights_on = not self._lights_on
-    self._SetLights(self._lights_on)
-    duration = self._duration_off if self._lights_on else self._duration_on
-    self._timer.SetInterval(duration)
-
-  def _SetLights(self, lights_on):
-    gpio_value = GPIO.HIGH if lights_on else GPIO.LOW
-    for light_pin in LIGHT_PIN_NUMBERS:
-      GPIO.output(light_pin, gpio_value)
-
-  def Blink(self, duration_on, duration_off):
-    print 'Told to blink %s on %s off.' % (duration_on, duration_off)
-    self._duration_on, self._duration_off = duration_on, duration_off
-    self._timer.Cancel()
-    self._lights_on = False
-    # The timer will immediately turn on the lights, so no need to call
-    # _SetLights().
-    self._timer.SetInterval(self._duration_on)
-    self._timer.Start()
-
-  def StopBlinking(self):
-    print 'Told to stop blinking'
-    self._timer.Cancel()
-    self._lights_on = False
-    self._SetLights(self._lights_on)
-
-
-class ButtonReader(object):
-  def __init__(self, action):
-    self._action = action
-    self._thread = threading.Thread(target=self._ThreadBody)
-    self._thread.start()
-
-  def _ThreadBody(self):
-    button_down = False
-    while(True):
-      cur_button_down = GPIO.input(BUTTON_PIN_NUMBER) == 0
-      # print 'cur_button_down %s' % cur_button_down
-      if button_down == False and cur_button_down == True:
-        self._action()
-      button_down = cur_button_down
-      time.sleep(BUTTON_POLL_INTERVAL_SEC)
-
-if __name__ == "__main__":
-  SetupGpioPins()
-  blinker = Blinker()
-  bluetooth_server = BluetoothServer(blinker=blinker)
-  def ButtonAction():
-    blinker.StopBlinking()
-    bluetooth_server.Dismiss()
-  button_reader = ButtonReader(action=ButtonAction)
+#!/usr/bin/python
+
+# Copyright 2017 Google Inc.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#     https://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+import copy
+import bluetooth
+import os
+import select
+import socket
+import struct
+import threading
+import RPi.GPIO as GPIO
+import time
+import traceback
+
+LIGHT_PIN_NUMBERS=set([3,4])
+BUTTON_PIN_NUMBER=17
+
+BUTTON_POLL_INTERVAL_SEC=0.02
+
+# Tablets on the same LAN can connect over TCP instead of Bluetooth, and find
+# the Pi by broadcasting to DISCOVERY_PORT. See TcpConnector.java and
+# RelayDiscovery.java in the app.
+TCP_PORT=48622
+DISCOVERY_PORT=48623
+
+def SetupGpioPins():
+  GPIO.setmode(GPIO.BCM)
+  for light_pin in LIGHT_PIN_NUMBERS:
+    GPIO.setup(light_pin, GPIO.OUT)
+  GPIO.setup(BUTTON_PIN_NUMBER, GPIO.IN, pull_up_down=GPIO.PUD_UP)
+
+
+class BluetoothServer(object):
+  """Class that manages Bluetooth communication with the tablet.
+
+  The server receives blink commands from inbound connections, which it
+  acknowledges by sending _ACK_MSG. It relays these requests to the constructor
+  injected 'blinker'.
+
+  The server can also send a "dismissal" on all active connections (connections
+  are held open indefinitely until device shutdown / out of range). The
+  dismissal indicates that the message currently displayed on the tablet has
+  been seen and may be "dismissed".
+
+  Tablets speak one of two protocols. Version 1 messages are single octets,
+  described below. Version 2 messages are frames of a five octet header and a
+  payload:
+
+    _FRAME_MAGIC | _FRAME_VERSION | type | seq | payload length | payload...
+
+  Every octet, _FRAME_MAGIC included, is also a version 1 blink, so a
+  connection only speaks version 2 once it has opened with a complete HELLO
+  frame. A lone octet is always a version 1 message.
+
+  Each frame the tablet sends is answered with an ACK, or for HELLO a HELLO,
+  carrying the same seq, so the tablet can have several frames in flight.
+
+  Connections are accepted over RFCOMM and over TCP on TCP_PORT, and speak the
+  same protocols over both. Discovery requests on DISCOVERY_PORT are answered
+  with the TCP port and host name.
+  """
+  UUID = '00001101-0000-1000-8000-00805F9B34FB'
+
+  # All messages are one octet long, for simplicity.
+
+  # Messages we send.
+  _DISMISS_MSG = '\x00'
+  _ACK_MSG = '\x01'
+
+  # Messages we receive.
+  _STOP_BLINKING_MSG = '\x00'
+
+  # Version 2 framing. See FrameCodec.java in the app.
+  _FRAME_MAGIC = 0xA5
+  _FRAME_VERSION = 2
+  _FRAME_HEADER_LENGTH = 5
+  _FRAME_HELLO = 1
+  _FRAME_ACK = 2
+  _FRAME_BLINK = 3
+  _FRAME_STOP = 4
+  _FRAME_DISMISS = 5
+  _FRAME_HEARTBEAT = 6
+
+  _DISCOVERY_REQUEST = 'PINOTIFY_DISCOVER'
+  _DISCOVERY_REPLY = 'PINOTIFY_RELAY %d %s'
+
+  def __init__(self, blinker):
+    """Creates and starts the BluetoothServer.
+
+    Args:
+      blinker: An object that has 2 methods Blink(duration_on, duration_off),
+               and StopBlinking().
+    """
+    self._blinker = blinker
+    self._connections = set()
+    self._connections_lock = threading.Lock()
+    # Sockets that accept connections or answer discovery. Only touched by the
+    # server thread.
+    self._listeners = set()
+    # Buffered input of connections speaking version 2, keyed by socket.
+    self._framed = {}
+    # Buffered input of connections whose first data looked like the start of
+    # a HELLO, keyed by socket.
+    self._opening = {}
+    # Connections that have sent a version 1 message, and so never frame.
+    self._unframed = set()
+    self._dismiss_seq = 0
+    self._thread = threading.Thread(target=self._ThreadBody)
+    self._thread.start()
+
+  def _ThreadBody(self):
+    server_socket = bluetooth.BluetoothSocket(bluetooth.RFCOMM)
+    self._listeners.add(server_socket)
+    server_socket.bind(("", bluetooth.PORT_ANY))
+    print 'Listening for connections'
+    server_socket.listen(5)
+    bluetooth.advertise_service(
+        server_socket, 'PiNotifyBtServer',  service_id=self.UUID, 
+        service_classes = [bluetooth.SERIAL_PORT_CLASS],
+        profiles = [bluetooth.SERIAL_PORT_PROFILE])
+    tcp_server_socket = self._ListenTcp()
+    discovery_socket = self._ListenDiscovery()
+
+    while True:
+      with self._connections_lock:
+        connections = copy.copy(self._connections)
+      rlist, _, _ = select.select(connections | self._listeners, [], [])
+      for sock in rlist:
+        if sock is server_socket:
+          accepted, addr = sock.accept() 
+          print 'Accepted a connection from %s' % str(addr)
+          with self._connections_lock:
+            self._connections.add(accepted)
+        elif sock is tcp_server_socket:
+          accepted, addr = sock.accept()
+          # Commands are a few octets each, so send them without waiting to
+          # fill a segment, and let keepalive find tablets that left the LAN.
+          accepted.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
+          accepted.setsockopt(socket.SOL_SOCKET, socket.SO_KEEPALIVE, 1)
+          print 'Accepted a TCP connection from %s' % str(addr)
+          with self._connections_lock:
+            self._connections.add(accepted)
+        elif sock is discovery_socket:
+          self._AnswerDiscovery(sock)
+        else:
+          # We expect an octet -- if we get too much, close the socket.
+          BUFFER_SIZE=1024
+          received = self._TrySockOp(sock, sock.recv, BUFFER_SIZE)
+          if received is None:
+            # Cleanup already happened...continue.
+            print 'Cleanup already happened'
+            continue
+          if not received:
+            # The tablet closed a TCP connection.
+            self._CleanupSock(sock)
+            continue
+          if sock in self._framed:
+            self._HandleFrameData(sock, received)
+            continue
+          if sock in self._opening or (
+              sock not in self._unframed and len(received) > 1 and
+              ord(received[0]) == self._FRAME_MAGIC):
+            self._HandleOpeningData(sock, received)
+            continue
+          if len(received) != 1:
+            print ('Unexpectedly received a message of length %s: %s' % 
+                   (len(received), received))
+            self._CleanupSock(sock)
+            continue
+          self._unframed.add(sock)
+          self._HandleMessage(sock, received)
+
+  def _ListenTcp(self):
+    """Listens on TCP_PORT, returning the socket or None if that failed."""
+    try:
+      tcp_server_socket = socket.socket(socket.AF_INET, socket.SOCK_STREAM)
+      tcp_server_socket.setsockopt(socket.SOL_SOCKET, socket.SO_REUSEADDR, 1)
+      tcp_server_socket.bind(('', TCP_PORT))
+      tcp_server_socket.listen(5)
+    except socket.error:
+      # Bluetooth still works without the network.
+      traceback.print_exc()
+      return None
+    print 'Listening for TCP connections on port %d' % TCP_PORT
+    self._listeners.add(tcp_server_socket)
+    return tcp_server_socket
+
+  def _ListenDiscovery(self):
+    """Listens on DISCOVERY_PORT, returning the socket or None if that failed."""
+    try:
+      discovery_socket = socket.socket(socket.AF_INET, socket.SOCK_DGRAM)
+      discovery_socket.setsockopt(socket.SOL_SOCKET, socket.SO_REUSEADDR, 1)
+      discovery_socket.bind(('', DISCOVERY_PORT))
+    except socket.error:
+      traceback.print_exc()
+      return None
+    self._listeners.add(discovery_socket)
+    return discovery_socket
+
+  def _AnswerDiscovery(self, sock):
+    try:
+      request, addr = sock.recvfrom(64)
+      if request.strip() == self._DISCOVERY_REQUEST:
+        sock.sendto(self._DISCOVERY_REPLY % (TCP_PORT, socket.gethostname()),
+                    addr)
+    except socket.error:
+      traceback.print_exc()
+
+  def _HandleMessage(self, sock, received):
+    """Handle the received inbound message."""
+    if received == self._STOP_BLINKING_MSG:
+      self._blinker.StopBlinking()
+      return
+    unpacked = struct.unpack('B', received)[0]
+    low_nibble = unpacked & 0x0F
+    high_nibble = (unpacked & 0xF0) >> 4
+    self._blinker.Blink(duration_on=high_nibble, duration_off=low_nibble)
+
+  def _HandleOpeningData(self, sock, received):
+    """Buffers the first data of a connection until it holds a HELLO frame."""
+    with self._connections_lock:
+      buf = self._opening.setdefault(sock, bytearray())
+    buf.extend(received)
+    if len(buf) < self._FRAME_HEADER_LENGTH:
+      return
+    if buf[1] != self._FRAME_VERSION or buf[2] != self._FRAME_HELLO:
+      print ('Unexpectedly received a message of length %s: %s' %
+             (len(buf), repr(str(buf))))
+      self._CleanupSock(sock)
+      return
+    if len(buf) < self._FRAME_HEADER_LENGTH + buf[4]:
+      return
+    with self._connections_lock:
+      del self._opening[sock]
+      self._framed[sock] = bytearray()
+    self._HandleFrameData(sock, buf)
+
+  def _HandleFrameData(self, sock, received):
+    """Buffers data from a version 2 connection and handles complete frames."""
+    with self._connections_lock:
+      buf = self._framed.setdefault(sock, bytearray())
+    buf.extend(received)
+    while len(buf) >= self._FRAME_HEADER_LENGTH:
+      if buf[0] != self._FRAME_MAGIC or buf[1] != self._FRAME_VERSION:
+        print 'Unexpectedly received a bad frame: %s' % repr(str(buf))
+        self._CleanupSock(sock)
+        return
+      frame_length = self._FRAME_HEADER_LENGTH + buf[4]
+      if len(buf) < frame_length:
+        return
+      frame_type, seq = buf[2], buf[3]
+      payload = buf[self._FRAME_HEADER_LENGTH:frame_length]
+      del buf[:frame_length]
+      self._HandleFrame(sock, frame_type, seq, payload)
+
+  def _HandleFrame(self, sock, frame_type, seq, payload):
+    """Handle a received version 2 frame."""
+    if frame_type == self._FRAME_HELLO:
+      # Answer with the version we speak; the tablet speaks no higher.
+      self._SendFrame(sock, self._FRAME_HELLO, seq,
+                      bytearray([self._FRAME_VERSION]))
+      return
+    if frame_type == self._FRAME_BLINK and len(payload) >= 2:
+      self._blinker.Blink(duration_on=payload[0], duration_off=payload[1])
+    elif frame_type == self._FRAME_STOP:
+      self._blinker.StopBlinking()
+    elif frame_type == self._FRAME_ACK:
+      # The tablet got our dismiss.
+      return
+    elif frame_type != self._FRAME_HEARTBEAT:
+      print 'Ignoring frame of type %s' % frame_type
+    self._SendFrame(sock, self._FRAME_ACK, seq)
+
+  def _SendFrame(self, sock, frame_type, seq, payload=bytearray()):
+    frame = bytearray([self._FRAME_MAGIC, self._FRAME_VERSION, frame_type,
+                       seq & 0xFF, len(payload)]) + payload
+    self._TrySockOp(sock, sock.send, str(frame))
+
+  def _TrySockOp(self, sock, bound_op, *args, **kwargs):
+    """Tries a socket operation, cleaning up the socket on failure
+
+    Bluetooth and TCP socket operations can fail (device out of range, offline,
+    I/O error, etc.), in which case we want to clean up the socket and its
+    references. This function automatically does this.
+
+    Args:
+      sock: The socket bound_op is a method of. Python's socket objects bind
+            their methods to an inner socket, so it can't be taken from
+            bound_op.
+      bound_op: A bound socket method, like connection.send (without parens).
+      argv: Positional args, forwared to bound_op().
+      kwargs: Keyword arguments, forwarded to bound_op().
+    """
+    try:
+      return bound_op(*args, **kwargs)
+    except bluetooth.BluetoothError as e:
+      traceback.print_exc()
+      CONNECTION_RESET = 104
+      if str(CONNECTION_RESET) in e.message:
+        # For some reason, after getting a connection reset on a socket, the
+        # listener socket silently stops working...since we're stateless, we
+        # can solve this by quitting, which will result in a re-launch of the
+        # server.
+        os._exit(1)
+      self._CleanupSock(sock)
+    except socket.error:
+      # Only the Bluetooth listener is affected by resets.
+      traceback.print_exc()
+      self._CleanupSock(sock)
+
+  def _CleanupSock(self, sock):
+    """Cleans up sock, if cleanup is necessary."""
+    with self._connections_lock:
+      if sock not in self._connections:
+        return
+      print 'Cleaning up connection'
+      self._connections.remove(sock)
+      self._framed.pop(sock, None)
+      self._opening.pop(sock, None)
+      self._unframed.discard(sock)
+      sock.close()
+  
+  def Dismiss(self):
+    """Sends a dismiss message on all active connections."""
+    with self._connections_lock:
+      connections = copy.copy(self._connections)
+      framed = set(self._framed)
+      opening = set(self._opening)
+      self._dismiss_seq = (self._dismiss_seq + 1) & 0xFF
+      seq = self._dismiss_seq
+    for connection in connections:
+      if connection in opening:
+        # Neither protocol is settled; a version 1 dismiss would read as a
+        # version 1 answer to the HELLO.
+        continue
+      if connection in framed:
+        self._SendFrame(connection, self._FRAME_DISMISS, seq)
+      else:
+        self._TrySockOp(connection, connection.send, self._DISMISS_MSG)
+
+
+class HasWaiterEvent(object):
+  def __init__(self):
+    self._main_event = threading.Event()
+    self._has_waiter_event = threading.Event()
+
+  def set(self, *args, **xargs):
+    self._main_event.set(*args, **xargs)
+
+  def clear(self, *args, **xargs):
+    self._main_event.clear(*args, **xargs)
+
+  def wait(self, *args, **xargs):
+    self._has_waiter_event.set()
+    self._main_event.wait(*args, **xargs)
+    self._has_waiter_event.clear()
+
+  def WaitForWaiter(self, *args, **xargs):
+    self._has_waiter_event.wait(*args, **xargs)
+
+
+class RepeatingTimer(object):
+  def __init__(self, function):
+    self._function = function
+    self._interval = 0
+    self._interval_lock = threading.Lock()
+
+    self._running = HasWaiterEvent()
+    self._stop = threading.Event()
+    self._events_lock = threading.Lock()
+
+    self._thread = threading.Thread(target=self._ThreadBody)
+    self._thread.start()
+
+  def Start(self):
+    with self._events_lock:
+      self._running.set()
+
+  def Cancel(self):
+    with self._events_lock:
+      self._running.clear()
+      self._stop.set()
+      self._running.WaitForWaiter()
+      self._stop.clear()
+
+  def SetInterval(self, interval):
+    with self._interval_lock:
+      self._interval = interval
+
+  def _ThreadBody(self):
+    while True:
+      self._running.wait()
+      while True:
+        self._function()
+        with self._interval_lock:
+          interval = self._interval
+        if self._stop.wait(interval):
+          break
+
+
+class Blinker(object):
+  def __init__(self):
+    self._duration_on = 0
+    self._duration_off = 0
+    self._lights_on = False
+    self._timer = RepeatingTimer(self._TimerBody)
+
+  def _TimerBody(self):
+    self._lights_on = not self._lights_on
+    self._SetLights(self._lights_on)
+    duration = self._duration_off if self._lights_on else self._duration_on
+    self._timer.SetInterval(duration)
+
+  def _SetLights(self, lights_on):
+    gpio_value = GPIO.HIGH if lights_on else GPIO.LOW
+    for light_pin in LIGHT_PIN_NUMBERS:
+      GPIO.output(light_pin, gpio_value)
+
+  def Blink(self, duration_on, duration_off):
+    print 'Told to blink %s on %s off.' % (duration_on, duration_off)
+    self._duration_on, self._duration_off = duration_on, duration_off
+    self._timer.Cancel()
+    self._lights_on = False
+    # The timer will immediately turn on the lights, so no need to call
+    # _SetLights().
+    self._timer.SetInterval(self._duration_on)
+    self._timer.Start()
+
+  def StopBlinking(self):
+    print 'Told to stop blinking'
+    self._timer.Cancel()
+    self._lights_on = False
+    self._SetLights(self._lights_on)
+
+
+class ButtonReader(object):
+  def __init__(self, action):
+    self._action = action
+    self._thread = threading.Thread(target=self._ThreadBody)
+    self._thread.start()
+
+  def _ThreadBody(self):
+    button_down = False
+    while(True):
+      cur_button_down = GPIO.input(BUTTON_PIN_NUMBER) == 0
+      # print 'cur_button_down %s' % cur_button_down
+      if button_down == False and cur_button_down == True:
+        self._action()
+      button_down = cur_button_down
+      time.sleep(BUTTON_POLL_INTERVAL_SEC)
+
+if __name__ == "__main__":
+  SetupGpioPins()
+  blinker = Blinker()
+  bluetooth_server = BluetoothServer(blinker=blinker)
+  def ButtonAction():
+    blinker.StopBlinking()
+    bluetooth_server.Dismiss()
+  button_reader = ButtonReader(action=ButtonAction)
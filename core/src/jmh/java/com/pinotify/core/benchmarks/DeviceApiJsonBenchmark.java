@@ -0,0 +1,104 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.core.benchmarks;
+
+import com.pinotify.core.Message;
+import com.pinotify.core.api.DeviceApiJson;
+import com.pinotify.core.api.DeviceRequest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serializing a sync: writing the device's request, with and without a metrics report, and
+ * reading the backend's response.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DeviceApiJsonBenchmark {
+    // The app prefetches up to 10 messages per sync.
+    @Param({"0", "1", "10"})
+    public int unackedMessages;
+
+    private DeviceRequest request;
+    private DeviceRequest reportingRequest;
+    private String response;
+
+    @Setup
+    public void setUp() throws IOException {
+        request = new DeviceRequest();
+        request.deviceId = "0123456789abcdef";
+        request.fcmId = "fcm-registration-token-0123456789";
+        request.ackedUntil = 1500000000000L;
+        request.causedByPushId = 1500000000123L;
+        request.maxMessages = 10L;
+        request.ackedMessageIds.add(5629499534213120L);
+        reportingRequest = new DeviceRequest();
+        reportingRequest.deviceId = request.deviceId;
+        reportingRequest.fcmId = request.fcmId;
+        reportingRequest.ackedUntil = request.ackedUntil;
+        reportingRequest.maxMessages = request.maxMessages;
+        for (int i = 0; i < 40; i++) {
+            reportingRequest.metrics.put("metric" + i + ".p99", 1000L * i);
+        }
+
+        List<Message> unacked = new ArrayList<Message>();
+        for (int i = 0; i < unackedMessages; i++) {
+            Message message = new Message();
+            message.sender = "Sender " + i;
+            message.message = "A short message of about the length people send, number " + i;
+            message.timeSentUtc = 1500000000000L + i;
+            message.id = 5629499534213120L + i;
+            message.priority = i % 3;
+            unacked.add(message);
+        }
+        StringWriter out = new StringWriter();
+        DeviceApiJson.writeBatchResponse(out, unacked);
+        response = out.toString();
+    }
+
+    @Benchmark
+    public String writeRequest() throws IOException {
+        StringWriter out = new StringWriter(256);
+        DeviceApiJson.writeBatchRequest(out, request);
+        return out.toString();
+    }
+
+    @Benchmark
+    public String writeReportingRequest() throws IOException {
+        StringWriter out = new StringWriter(2048);
+        DeviceApiJson.writeBatchRequest(out, reportingRequest);
+        return out.toString();
+    }
+
+    @Benchmark
+    public List<Message> readResponse() throws IOException {
+        return DeviceApiJson.readBatchResponse(new StringReader(response));
+    }
+}
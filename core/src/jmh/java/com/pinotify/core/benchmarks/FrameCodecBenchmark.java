@@ -0,0 +1,100 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.core.benchmarks;
+
+import com.pinotify.protocol.FrameCodec;
+import com.pinotify.protocol.FrameDecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding version 2 frames, as the connection's I/O thread and the listener do. The
+ * decoder is fed in reads of a few frames, since reads may split or coalesce frames.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FrameCodecBenchmark {
+    private static final int FRAMES = 256;
+    private static final int READ_SIZE = 64;
+
+    private final byte[] buf = new byte[FRAMES * FrameCodec.MAX_FRAME_LENGTH];
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final CountingHandler handler = new CountingHandler();
+    private int encodedLength;
+
+    private static class CountingHandler implements FrameDecoder.Handler {
+        int frames;
+
+        @Override
+        public void onFrame(int type, int seq, byte[] payload, int payloadOff, int payloadLen) {
+            frames++;
+        }
+
+        @Override
+        public void onBadFrame(byte b) {
+            throw new IllegalStateException("Bad frame");
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        encodedLength = encodeAll();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int encode() {
+        return encodeAll();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public int decode() {
+        decoder.reset();
+        handler.frames = 0;
+        for (int off = 0; off < encodedLength; off += READ_SIZE) {
+            decoder.feed(buf, off, Math.min(READ_SIZE, encodedLength - off), handler);
+        }
+        return handler.frames;
+    }
+
+    private int encodeAll() {
+        int off = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            int seq = i & 0xff;
+            switch (i % 3) {
+                case 0:
+                    off += FrameCodec.encode(buf, off, FrameCodec.TYPE_BLINK, seq, 2, 1);
+                    break;
+                case 1:
+                    off += FrameCodec.encode(buf, off, FrameCodec.TYPE_ACK, seq);
+                    break;
+                default:
+                    off += FrameCodec.encode(buf, off, FrameCodec.TYPE_HEARTBEAT, seq);
+            }
+        }
+        return off;
+    }
+}
@@ -0,0 +1,107 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.core.benchmarks;
+
+import com.pinotify.core.InboxLogic;
+import com.pinotify.core.Message;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The state machine's inbox transitions, on inboxes from a single message up to a large backlog.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class InboxBenchmark {
+    private static final InboxLogic.AckedFilter<Message> NONE_ACKED =
+            new InboxLogic.AckedFilter<Message>() {
+                @Override
+                public boolean isAcked(Message message) {
+                    return false;
+                }
+            };
+
+    @Param({"1", "10", "100", "1000"})
+    public int inboxSize;
+
+    private List<Message> fetched;
+    private List<Message> queued;
+    private Message displayed;
+    private Message pushed;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        fetched = new ArrayList<Message>(inboxSize);
+        for (int i = 0; i < inboxSize; i++) {
+            fetched.add(newMessage(i, 1000L + i, random.nextInt(3)));
+        }
+        queued = new ArrayList<Message>(fetched);
+        Collections.sort(queued, Message.DISPLAY_ORDER);
+        displayed = newMessage(inboxSize, 1000L + inboxSize, Message.PRIORITY_ROUTINE);
+        displayed.provisional = true;
+        pushed = newMessage(inboxSize + 1, 1000L + inboxSize / 2, Message.PRIORITY_HIGH);
+    }
+
+    @Benchmark
+    public List<Message> mergeInbox() {
+        return InboxLogic.mergeInbox(fetched, displayed, queued, 999L, NONE_ACKED);
+    }
+
+    @Benchmark
+    public boolean insertPushed() {
+        List<Message> queue = new ArrayList<Message>(queued);
+        return InboxLogic.insertInDisplayOrder(queue, pushed);
+    }
+
+    @Benchmark
+    public void drainByAcks(Blackhole blackhole) {
+        List<Message> queue = new ArrayList<Message>(queued);
+        Message acked = displayed;
+        long ackedUntilUtc = 999L;
+        while (acked != null) {
+            if (InboxLogic.acksUntil(acked)) {
+                ackedUntilUtc = Math.max(ackedUntilUtc, acked.timeSentUtc);
+            }
+            acked = InboxLogic.takeNext(queue, acked, ackedUntilUtc);
+            blackhole.consume(acked);
+        }
+    }
+
+    private static Message newMessage(long id, long timeSentUtc, int priority) {
+        Message message = new Message();
+        message.sender = "sender" + (id % 7);
+        message.message = "message " + id;
+        message.timeSentUtc = timeSentUtc;
+        message.id = id + 1;
+        message.priority = priority;
+        return message;
+    }
+}
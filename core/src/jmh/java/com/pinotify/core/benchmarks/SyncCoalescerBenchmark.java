@@ -0,0 +1,62 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.core.benchmarks;
+
+import com.pinotify.core.SyncCoalescer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A storm of sync triggers, such as a burst of pushes, arriving while syncs are in flight. The
+ * coordinator holds its lock while the coalescer runs, so this bounds the time a trigger holds it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SyncCoalescerBenchmark {
+    private static final int TRIGGERS = 1024;
+    // Triggers that arrive during each sync.
+    private static final int TRIGGERS_PER_SYNC = 16;
+
+    @Benchmark
+    @OperationsPerInvocation(TRIGGERS)
+    public int triggerStorm() {
+        SyncCoalescer coalescer = new SyncCoalescer();
+        int syncs = 0;
+        for (int i = 0; i < TRIGGERS; i++) {
+            // Every third trigger is a push; the rest are polls and local changes.
+            Long pushId = i % 3 == 0 ? Long.valueOf(i) : null;
+            if (coalescer.onTrigger(pushId)) {
+                syncs++;
+            }
+            if (i % TRIGGERS_PER_SYNC == TRIGGERS_PER_SYNC - 1 &&
+                    coalescer.onSyncFinished() != null) {
+                syncs++;
+            }
+        }
+        while (coalescer.onSyncFinished() != null) {
+            syncs++;
+        }
+        return syncs;
+    }
+}
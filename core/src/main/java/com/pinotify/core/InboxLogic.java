@@ -0,0 +1,137 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The rules behind the device's inbox: which message is displayed, what is queued behind it, and
+ * how a message is acked. The state itself is kept by the caller; these only compute transitions.
+ */
+public final class InboxLogic {
+    /**
+     * Tells whether a message was acked before, so it must not be displayed again.
+     */
+    public interface AckedFilter<M> {
+        boolean isAcked(M message);
+    }
+
+    private InboxLogic() {
+    }
+
+    /**
+     * Routine messages from the backend's inbox are displayed oldest first, so acking one acks
+     * everything before it through ackedUntil. A higher priority message may be displayed ahead of
+     * older ones, and so may a provisional one, since the backend may hold older messages the
+     * device hasn't fetched yet, so these are acked by ID. A provisional message without an ID is
+     * acked by neither.
+     *
+     * @return true if message must be acked by ID rather than by ackedUntil.
+     */
+    public static boolean acksById(Message message) {
+        return message.id != 0 &&
+                (message.provisional || message.priority > Message.PRIORITY_ROUTINE);
+    }
+
+    /**
+     * @return true if acking message acks everything before it through ackedUntil.
+     */
+    public static boolean acksUntil(Message message) {
+        return !message.provisional && !acksById(message);
+    }
+
+    /**
+     * @return true if incoming should be displayed in place of the displayed message.
+     */
+    public static boolean preempts(Message incoming, Message displayed) {
+        return incoming.priority > displayed.priority;
+    }
+
+    /**
+     * Removes and returns the message to display once acked is acked, skipping any the ack covers.
+     *
+     * @param queue         The queued messages, in display order.
+     * @param acked         The message just acked.
+     * @param ackedUntilUtc The ackedUntil after the ack.
+     * @return The next message, or null if none.
+     */
+    public static <M extends Message> M takeNext(List<M> queue, M acked, long ackedUntilUtc) {
+        while (!queue.isEmpty()) {
+            M candidate = queue.remove(0);
+            if (candidate.timeSentUtc > ackedUntilUtc && !candidate.equals(acked)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Inserts message into queue, which is in display order, unless it's already there.
+     *
+     * @return true if message was inserted.
+     */
+    public static <M extends Message> boolean insertInDisplayOrder(List<M> queue, M message) {
+        int i = 0;
+        while (i < queue.size() && Message.DISPLAY_ORDER.compare(queue.get(i), message) <= 0) {
+            if (queue.get(i).equals(message)) {
+                return false;
+            }
+            i++;
+        }
+        queue.add(i, message);
+        return true;
+    }
+
+    /**
+     * Merges the backend's unacked messages with the local inbox. The backend is authoritative,
+     * except that messages acked while its request was in flight are dropped, and pushed messages
+     * newer than the backend's may have been posted after it answered.
+     *
+     * @param fetched       The backend's unacked messages.
+     * @param displayed     The displayed message, or null.
+     * @param queued        The queued messages.
+     * @param ackedUntilUtc The current ackedUntil.
+     * @param acked         Tells which messages were acked before.
+     * @return The new inbox in display order, its first message to be displayed; empty if the
+     *         backend has no unacked messages.
+     */
+    public static <M extends Message> List<M> mergeInbox(List<M> fetched, M displayed,
+                                                         List<M> queued, long ackedUntilUtc,
+                                                         AckedFilter<? super M> acked) {
+        List<M> inbox = new ArrayList<M>(fetched.size());
+        long newestUtc = 0;
+        for (M message : fetched) {
+            if (message.timeSentUtc > ackedUntilUtc && !acked.isAcked(message)) {
+                inbox.add(message);
+                newestUtc = Math.max(newestUtc, message.timeSentUtc);
+            }
+        }
+        if (inbox.isEmpty()) {
+            return inbox;
+        }
+        if (displayed != null && displayed.provisional && displayed.timeSentUtc > newestUtc) {
+            inbox.add(displayed);
+        }
+        for (M message : queued) {
+            if (message.provisional && message.timeSentUtc > newestUtc) {
+                inbox.add(message);
+            }
+        }
+        Collections.sort(inbox, Message.DISPLAY_ORDER);
+        return inbox;
+    }
+}
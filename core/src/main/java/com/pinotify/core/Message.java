@@ -0,0 +1,67 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.core;
+
+import java.util.Comparator;
+
+/**
+ * A message sent to the device. Messages are identified by sender, body and time sent.
+ */
+public class Message {
+    // Message priorities, as in the backend's model.PRIORITY_* values.
+    public static final int PRIORITY_ROUTINE = 0;
+    public static final int PRIORITY_HIGH = 1;
+    public static final int PRIORITY_URGENT = 2;
+
+    /**
+     * Orders messages the way they are displayed: highest priority first, then oldest first.
+     */
+    public static final Comparator<Message> DISPLAY_ORDER = new Comparator<Message>() {
+        @Override
+        public int compare(Message a, Message b) {
+            if (a.priority != b.priority) {
+                return a.priority > b.priority ? -1 : 1;
+            }
+            return a.timeSentUtc < b.timeSentUtc ? -1 : (a.timeSentUtc == b.timeSentUtc ? 0 : 1);
+        }
+    };
+
+    public String sender;
+    public String message;
+    public long timeSentUtc;
+    // The backend's ID for the message, or 0 if the backend didn't send one. Not part of equals().
+    public long id;
+    // One of the PRIORITY_* values. Not part of equals().
+    public int priority;
+    // True if the message was shown from a push and the backend hasn't confirmed it yet. Not part
+    // of equals().
+    public boolean provisional;
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof Message)) {
+            return false;
+        }
+        Message other = (Message) obj;
+        return sender.equals(other.sender) && message.equals(other.message) &&
+                timeSentUtc == other.timeSentUtc;
+    }
+
+    @Override
+    public int hashCode() {
+        return (sender.hashCode() * 31 + message.hashCode()) * 31 +
+                (int) (timeSentUtc ^ (timeSentUtc >>> 32));
+    }
+}
@@ -0,0 +1,115 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.core;
+
+/**
+ * Decides how often the device polls the backend.
+ * <p>
+ * Polling only catches what pushes miss, so it backs off while pushes are known to work: a sync
+ * caused by a push shows pushes reach the device. A poll that finds a message nothing pushed shows
+ * a push was lost, and polling tightens for a while. It also tightens while a message is displayed,
+ * so that acks made elsewhere are noticed.
+ */
+public final class PollPolicy {
+    private static final long MINUTE_MS = 60L * 1000L;
+    // While a message is displayed.
+    private static final long ACTIVE_MESSAGE_INTERVAL_MS = MINUTE_MS;
+    // After a push was lost.
+    private static final long SUSPECT_INTERVAL_MS = 2L * MINUTE_MS;
+    // Before any push has been seen to arrive.
+    private static final long DEFAULT_INTERVAL_MS = 10L * MINUTE_MS;
+    // While pushes arrive.
+    private static final long HEALTHY_INTERVAL_MS = 30L * MINUTE_MS;
+    // The longest wait before retrying a failed sync.
+    private static final long RETRY_INTERVAL_MS = 5L * MINUTE_MS;
+    // How long a lost push keeps polling tight, unless a push arrives sooner.
+    private static final long SUSPECT_PERIOD_MS = 60L * MINUTE_MS;
+
+    private static final String PREF_PUSH_ROUND_TRIPS = "prefPollPushRoundTrips";
+    private static final String PREF_LAST_LOST_PUSH_MS = "prefPollLastLostPushMs";
+
+    private PollPolicy() {
+    }
+
+    /**
+     * Records the outcome of a sync with the backend.
+     *
+     * @param prefs           Where the policy keeps its state.
+     * @param succeeded       true if the backend answered.
+     * @param causedByPush    true if the sync was triggered by a push.
+     * @param foundNewMessage true if the backend returned a message that wasn't displayed yet.
+     * @param nowMs           The current wall clock time.
+     * @return true if the sync shows a push was lost.
+     */
+    public static boolean recordSync(Prefs prefs, boolean succeeded, boolean causedByPush,
+                                     boolean foundNewMessage, long nowMs) {
+        if (succeeded && causedByPush) {
+            // A push reached us, so pushes work again.
+            prefs.edit()
+                    .putInt(PREF_PUSH_ROUND_TRIPS, prefs.getInt(PREF_PUSH_ROUND_TRIPS, 0) + 1)
+                    .remove(PREF_LAST_LOST_PUSH_MS)
+                    .apply();
+            return false;
+        }
+        if (succeeded && foundNewMessage) {
+            prefs.edit()
+                    .putInt(PREF_PUSH_ROUND_TRIPS, 0)
+                    .putLong(PREF_LAST_LOST_PUSH_MS, nowMs)
+                    .apply();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param prefs           Where the policy keeps its state.
+     * @param succeeded       true if the sync that just finished succeeded.
+     * @param foundNewMessage true if it returned a message that wasn't displayed yet.
+     * @param messageActive   true if a message is displayed.
+     * @param nowMs           The current wall clock time.
+     * @return How long to wait after the sync before the next poll.
+     */
+    public static long getIntervalAfterSyncMs(Prefs prefs, boolean succeeded,
+                                              boolean foundNewMessage, boolean messageActive,
+                                              long nowMs) {
+        // A new message is only displayed once the state machine gets to it.
+        long intervalMs = foundNewMessage ? ACTIVE_MESSAGE_INTERVAL_MS :
+                getNextIntervalMs(prefs, messageActive, nowMs);
+        if (!succeeded) {
+            intervalMs = Math.min(intervalMs, RETRY_INTERVAL_MS);
+        }
+        return intervalMs;
+    }
+
+    /**
+     * @param prefs         Where the policy keeps its state.
+     * @param messageActive true if a message is displayed.
+     * @param nowMs         The current wall clock time.
+     * @return How long to wait before the next poll.
+     */
+    public static long getNextIntervalMs(Prefs prefs, boolean messageActive, long nowMs) {
+        if (messageActive) {
+            return ACTIVE_MESSAGE_INTERVAL_MS;
+        }
+        long lastLostPushMs = prefs.getLong(PREF_LAST_LOST_PUSH_MS, 0L);
+        if (nowMs - lastLostPushMs < SUSPECT_PERIOD_MS) {
+            return SUSPECT_INTERVAL_MS;
+        }
+        if (prefs.getInt(PREF_PUSH_ROUND_TRIPS, 0) > 0) {
+            return HEALTHY_INTERVAL_MS;
+        }
+        return DEFAULT_INTERVAL_MS;
+    }
+}
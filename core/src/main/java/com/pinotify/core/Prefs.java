@@ -0,0 +1,46 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.core;
+
+/**
+ * Persistent key-value settings, the subset of Android's SharedPreferences the core needs.
+ */
+public interface Prefs {
+    int getInt(String key, int defValue);
+
+    long getLong(String key, long defValue);
+
+    boolean getBoolean(String key, boolean defValue);
+
+    String getString(String key, String defValue);
+
+    Editor edit();
+
+    /**
+     * Batches changes, which take effect on apply().
+     */
+    interface Editor {
+        Editor putInt(String key, int value);
+
+        Editor putLong(String key, long value);
+
+        Editor remove(String key);
+
+        /**
+         * Applies the changes in memory right away, and writes them to storage in the background.
+         */
+        void apply();
+    }
+}
@@ -0,0 +1,140 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.pinotify.core;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds Pis listening for TCP on the local network, without any help from the backend.
+ * <p>
+ * A request datagram is broadcast to PORT, and every Pi answers with "PINOTIFY_RELAY port name",
+ * where port is its TCP port and name is its host name. The request is repeated a few times
+ * within the timeout, since datagrams can be lost.
+ */
+public final class RelayDiscovery {
+    // The UDP port bt_server.py answers discovery on.
+    public static final int PORT = 48623;
+    public static final String REQUEST = "PINOTIFY_DISCOVER";
+    public static final String REPLY_PREFIX = "PINOTIFY_RELAY ";
+    private static final int ATTEMPTS = 3;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    /**
+     * A Pi that answered.
+     */
+    public static final class Relay {
+        public final String host;
+        public final int port;
+        public final String name;
+
+        Relay(String host, int port, String name) {
+            this.host = host;
+            this.port = port;
+            this.name = name;
+        }
+
+        /**
+         * @return The address in the form TcpConnector.parse() takes.
+         */
+        public String getHostPort() {
+            return port == TcpConnector.DEFAULT_PORT ? host : host + ":" + port;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + getHostPort() + ")";
+        }
+    }
+
+    private RelayDiscovery() {
+    }
+
+    /**
+     * Broadcasts on the local network. Blocks for timeoutMs.
+     *
+     * @return The Pis that answered, in the order they answered.
+     */
+    public static List<Relay> discover(int timeoutMs) throws IOException {
+        return discover(InetAddress.getByName("255.255.255.255"), PORT, timeoutMs);
+    }
+
+    /**
+     * Sends the request to port on target, which may be a broadcast address. Blocks for timeoutMs.
+     *
+     * @return The Pis that answered, in the order they answered.
+     */
+    public static List<Relay> discover(InetAddress target, int port, int timeoutMs)
+            throws IOException {
+        Map<String, Relay> found = new LinkedHashMap<String, Relay>();
+        byte[] request = REQUEST.getBytes(ASCII);
+        byte[] buf = new byte[512];
+        DatagramSocket socket = new DatagramSocket();
+        try {
+            socket.setBroadcast(true);
+            long deadlineMs = System.currentTimeMillis() + timeoutMs;
+            for (int attempt = 0; attempt < ATTEMPTS; attempt++) {
+                socket.send(new DatagramPacket(request, request.length, target, port));
+                long attemptEndMs = attempt == ATTEMPTS - 1 ? deadlineMs :
+                        deadlineMs - (long) timeoutMs * (ATTEMPTS - 1 - attempt) / ATTEMPTS;
+                while (true) {
+                    long waitMs = attemptEndMs - System.currentTimeMillis();
+                    if (waitMs <= 0) {
+                        break;
+                    }
+                    socket.setSoTimeout((int) waitMs);
+                    DatagramPacket reply = new DatagramPacket(buf, buf.length);
+                    try {
+                        socket.receive(reply);
+                    } catch (SocketTimeoutException e) {
+                        break;
+                    }
+                    Relay relay = parseReply(reply);
+                    if (relay != null && !found.containsKey(relay.getHostPort())) {
+                        found.put(relay.getHostPort(), relay);
+                    }
+                }
+            }
+        } finally {
+            socket.close();
+        }
+        return new ArrayList<Relay>(found.values());
+    }
+
+    private static Relay parseReply(DatagramPacket reply) {
+        String text = new String(reply.getData(), reply.getOffset(), reply.getLength(), ASCII);
+        if (!text.startsWith(REPLY_PREFIX)) {
+            return null;
+        }
+        String[] parts = text.substring(REPLY_PREFIX.length()).trim().split(" ", 2);
+        int port;
+        try {
+            port = Integer.parseInt(parts[0]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        String host = reply.getAddress().getHostAddress();
+        return new Relay(host, port, parts.length > 1 ? parts[1] : host);
+    }
+}
@@ -0,0 +1,165 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.pinotify.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives several Pi relays as one, for rooms with more than one light.
+ * <p>
+ * Commands are queued on every relay at once, and each relay delivers them on its own I/O thread,
+ * so a slow or unreachable relay never holds the others up. The command's DeliveryCallback is told
+ * delivered once the first relay delivers it, or only once all of them have, depending on
+ * waitForAll.
+ * <p>
+ * Every light shows the same message, so pressing any button dismisses it. A dismiss is passed on
+ * to receivers unless another was passed on within the last few seconds, so that presses on
+ * several Pis for the same message don't also ack the message shown next. The window doesn't
+ * depend on what was sent, since the next message's blink goes out as soon as the first dismiss
+ * is handled, ahead of the other Pis' dismisses.
+ */
+public class RelayFanOut implements RelayTransport {
+    // Dismisses within this long of the last one passed on are dropped.
+    private static final long DISMISS_DEDUP_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(3);
+
+    private final List<RelayTransport> relays;
+    private final boolean waitForAll;
+    private final CopyOnWriteArrayList<Receiver> receivers = new CopyOnWriteArrayList<Receiver>();
+    // When the last dismiss was passed on, in System.nanoTime().
+    private final AtomicLong lastDismissNanos =
+            new AtomicLong(System.nanoTime() - DISMISS_DEDUP_WINDOW_NANOS);
+    private final Receiver relayReceiver = new Receiver() {
+        @Override
+        public void receivedDismiss() {
+            long now = System.nanoTime();
+            long last = lastDismissNanos.get();
+            if (now - last < DISMISS_DEDUP_WINDOW_NANOS ||
+                    !lastDismissNanos.compareAndSet(last, now)) {
+                return;
+            }
+            for (Receiver receiver : receivers) {
+                receiver.receivedDismiss();
+            }
+        }
+    };
+
+    /**
+     * @param relays     The relays, which the fan-out now owns.
+     * @param waitForAll true if a command counts as delivered only once every relay delivered it,
+     *                   false if once any did.
+     */
+    public RelayFanOut(List<? extends RelayTransport> relays, boolean waitForAll) {
+        this.relays = Collections.unmodifiableList(new ArrayList<RelayTransport>(relays));
+        this.waitForAll = waitForAll;
+        for (RelayTransport relay : this.relays) {
+            relay.addReceiver(relayReceiver);
+        }
+    }
+
+    public List<RelayTransport> getRelays() {
+        return relays;
+    }
+
+    @Override
+    public void sendBlink(int onSec, int offSec, String traceKey, DeliveryCallback callback) {
+        DeliveryCallback each = aggregate(callback);
+        for (RelayTransport relay : relays) {
+            relay.sendBlink(onSec, offSec, traceKey, each);
+        }
+    }
+
+    @Override
+    public void sendDismiss(String traceKey, DeliveryCallback callback) {
+        DeliveryCallback each = aggregate(callback);
+        for (RelayTransport relay : relays) {
+            relay.sendDismiss(traceKey, each);
+        }
+    }
+
+    /**
+     * Subscribes receiver to dismisses from any of the relays. Subscribing a receiver twice has no
+     * effect.
+     */
+    @Override
+    public void addReceiver(Receiver receiver) {
+        receivers.addIfAbsent(receiver);
+    }
+
+    @Override
+    public void removeReceiver(Receiver receiver) {
+        receivers.remove(receiver);
+    }
+
+    /**
+     * Closes every relay.
+     */
+    @Override
+    public void close() {
+        for (RelayTransport relay : relays) {
+            relay.removeReceiver(relayReceiver);
+            relay.close();
+        }
+    }
+
+    /**
+     * @return A callback for each relay's copy of a command, which tells callback the outcome of
+     *         the command as a whole, exactly once. Called on the relays' threads, so it must not
+     *         block.
+     */
+    private DeliveryCallback aggregate(final DeliveryCallback callback) {
+        if (relays.isEmpty()) {
+            if (callback != null) {
+                callback.onResult(false);
+            }
+            return null;
+        }
+        if (callback == null) {
+            return null;
+        }
+        final AtomicInteger pending = new AtomicInteger(relays.size());
+        final AtomicInteger delivered = new AtomicInteger();
+        final AtomicBoolean completed = new AtomicBoolean();
+        return new DeliveryCallback() {
+            @Override
+            public void onResult(boolean relayDelivered) {
+                if (relayDelivered) {
+                    delivered.incrementAndGet();
+                }
+                // Counted before the decrement, so the last relay sees every other's outcome.
+                boolean last = pending.decrementAndGet() == 0;
+                if (!waitForAll && relayDelivered) {
+                    complete(true);
+                } else if (last) {
+                    int deliveredCount = delivered.get();
+                    complete(waitForAll ? deliveredCount == relays.size() : deliveredCount > 0);
+                }
+            }
+
+            private void complete(boolean result) {
+                if (completed.compareAndSet(false, true)) {
+                    callback.onResult(result);
+                }
+            }
+        };
+    }
+}
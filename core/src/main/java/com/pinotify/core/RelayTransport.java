@@ -0,0 +1,63 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.core;
+
+/**
+ * Carries commands to a Pi relay, and dismisses back from it.
+ */
+public interface RelayTransport {
+    interface Receiver {
+        // Called when the Pi's button is pressed.
+        void receivedDismiss();
+    }
+
+    interface DeliveryCallback {
+        /**
+         * Called once a command has been handled. Must not block.
+         *
+         * @param delivered true if the command was delivered to the Pi, false if it couldn't be,
+         *                  or if it was replaced or cancelled by a newer command while queued.
+         */
+        void onResult(boolean delivered);
+    }
+
+    /**
+     * Queues a blink command, replacing any blink command that hasn't been sent yet.
+     *
+     * @param onSec    Seconds the lights are on in each blink, 0 - 15.
+     * @param offSec   Seconds the lights are off in each blink, 0 - 15.
+     * @param traceKey The key to trace the command's delivery under, such as its message's, or
+     *                 null.
+     * @param callback Told whether the command was delivered, or null.
+     */
+    void sendBlink(int onSec, int offSec, String traceKey, DeliveryCallback callback);
+
+    /**
+     * Queues a command to stop blinking, cancelling any blink command that hasn't been sent yet.
+     *
+     * @param traceKey The key to trace the command's delivery under, or null.
+     * @param callback Told whether the command was delivered, or null.
+     */
+    void sendDismiss(String traceKey, DeliveryCallback callback);
+
+    void addReceiver(Receiver receiver);
+
+    void removeReceiver(Receiver receiver);
+
+    /**
+     * Closes the transport. Queued commands are reported as not delivered.
+     */
+    void close();
+}
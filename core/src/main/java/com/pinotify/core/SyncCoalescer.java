@@ -0,0 +1,80 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.core;
+
+/**
+ * Coalesces sync triggers so that at most one sync with the backend is in flight.
+ * <p>
+ * A trigger that arrives while a sync is running joins it: exactly one follow-up sync is run once
+ * the current one completes, on behalf of every trigger that arrived meanwhile. Not thread safe;
+ * callers synchronize.
+ */
+public final class SyncCoalescer {
+    /**
+     * A follow-up sync to start.
+     */
+    public static final class FollowUp {
+        // The ID of the latest push among the merged triggers, or null if none was a push.
+        public final Long causedByPushId;
+        // The number of triggers merged into the follow-up.
+        public final int mergedTriggers;
+
+        FollowUp(Long causedByPushId, int mergedTriggers) {
+            this.causedByPushId = causedByPushId;
+            this.mergedTriggers = mergedTriggers;
+        }
+    }
+
+    private boolean inFlight;
+    private boolean followUpPending;
+    private Long followUpPushId;
+    private int pendingMergedTriggers;
+
+    /**
+     * Records a trigger.
+     *
+     * @param causedByPushId The ID of the push behind the trigger, or null.
+     * @return true if the caller must start a sync now, false if the trigger was merged.
+     */
+    public boolean onTrigger(Long causedByPushId) {
+        if (!inFlight) {
+            inFlight = true;
+            return true;
+        }
+        followUpPending = true;
+        if (causedByPushId != null) {
+            followUpPushId = causedByPushId;
+        }
+        pendingMergedTriggers++;
+        return false;
+    }
+
+    /**
+     * Records that the sync in flight finished.
+     *
+     * @return The follow-up sync the caller must start, or null if no triggers arrived meanwhile.
+     */
+    public FollowUp onSyncFinished() {
+        if (!followUpPending) {
+            inFlight = false;
+            return null;
+        }
+        FollowUp followUp = new FollowUp(followUpPushId, pendingMergedTriggers);
+        followUpPending = false;
+        followUpPushId = null;
+        pendingMergedTriggers = 0;
+        return followUp;
+    }
+}
@@ -0,0 +1,77 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+
+package com.pinotify.core;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Connects to a Pi over TCP, for Pis on the same LAN as the tablet.
+ * <p>
+ * Commands are a few octets each and latency matters more than throughput, so Nagle's algorithm
+ * is turned off. Keepalive lets the OS notice a Pi that vanished from the network while the link
+ * is idle, on top of the connection's own heartbeats.
+ */
+public class TcpConnector implements Connector {
+    // The port bt_server.py listens on.
+    public static final int DEFAULT_PORT = 48622;
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+
+    private final String host;
+    private final int port;
+
+    public TcpConnector(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * @param hostPort A host name or address, optionally followed by ":port".
+     * @return A connector to hostPort, on DEFAULT_PORT if no port is given.
+     * @throws IllegalArgumentException if the port isn't a number.
+     */
+    public static TcpConnector parse(String hostPort) {
+        String host = hostPort.trim();
+        int port = DEFAULT_PORT;
+        int colon = host.lastIndexOf(':');
+        // More than one colon is a bare IPv6 address.
+        if (colon >= 0 && host.indexOf(':') == colon) {
+            port = Integer.parseInt(host.substring(colon + 1));
+            host = host.substring(0, colon);
+        }
+        return new TcpConnector(host, port);
+    }
+
+    @Override
+    public Link connect() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return new SocketLink(socket);
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
@@ -0,0 +1,251 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.core.api;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.pinotify.core.Message;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes the JSON bodies of the device_request and device_batch_request calls, in the
+ * shape the backend's Endpoints API uses: fields are named as in api.py, and int64 values are sent
+ * as strings. A device_request body is a device_batch_request body without max_messages and
+ * metrics, so both are read and written as a DeviceRequest.
+ * <p>
+ * The app talks to the backend through the generated client library. This codec lets code outside
+ * the app, such as benchmarks and test tools, speak the same wire format without it. Fields it
+ * doesn't know are skipped.
+ */
+public final class DeviceApiJson {
+    private DeviceApiJson() {
+    }
+
+    public static void writeBatchRequest(Writer out, DeviceRequest request) throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginObject();
+        writeString(writer, "device_id", request.deviceId);
+        writeString(writer, "fcm_id", request.fcmId);
+        writeLong(writer, "acked_until", request.ackedUntil);
+        writeLong(writer, "caused_by_push_id", request.causedByPushId);
+        writeLong(writer, "max_messages", request.maxMessages);
+        if (!request.ackedMessageIds.isEmpty()) {
+            writer.name("acked_message_ids").beginArray();
+            for (Long id : request.ackedMessageIds) {
+                writer.value(Long.toString(id));
+            }
+            writer.endArray();
+        }
+        if (!request.metrics.isEmpty()) {
+            writer.name("metrics").beginArray();
+            for (Map.Entry<String, Long> metric : request.metrics.entrySet()) {
+                writer.beginObject();
+                writeString(writer, "name", metric.getKey());
+                writeLong(writer, "value", metric.getValue());
+                writer.endObject();
+            }
+            writer.endArray();
+        }
+        writer.endObject();
+        writer.flush();
+    }
+
+    public static DeviceRequest readBatchRequest(Reader in) throws IOException {
+        DeviceRequest request = new DeviceRequest();
+        JsonReader reader = new JsonReader(in);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            } else if (name.equals("device_id")) {
+                request.deviceId = reader.nextString();
+            } else if (name.equals("fcm_id")) {
+                request.fcmId = reader.nextString();
+            } else if (name.equals("acked_until")) {
+                request.ackedUntil = nextLong(reader);
+            } else if (name.equals("caused_by_push_id")) {
+                request.causedByPushId = nextLong(reader);
+            } else if (name.equals("max_messages")) {
+                request.maxMessages = nextLong(reader);
+            } else if (name.equals("acked_message_ids")) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    request.ackedMessageIds.add(nextLong(reader));
+                }
+                reader.endArray();
+            } else if (name.equals("metrics")) {
+                readMetrics(reader, request);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return request;
+    }
+
+    public static void writeBatchResponse(Writer out, List<? extends Message> unacked)
+            throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginObject();
+        writer.name("unacked_messages").beginArray();
+        for (Message message : unacked) {
+            writeMessage(writer, message);
+        }
+        writer.endArray();
+        writer.endObject();
+        writer.flush();
+    }
+
+    /**
+     * @return The unacked messages in the response, in the backend's order.
+     */
+    public static List<Message> readBatchResponse(Reader in) throws IOException {
+        List<Message> unacked = new ArrayList<Message>();
+        JsonReader reader = new JsonReader(in);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!reader.nextName().equals("unacked_messages") ||
+                    reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                unacked.add(readMessage(reader));
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+        return unacked;
+    }
+
+    /**
+     * Writes a device_request response, which carries the first unacked message's fields, or no
+     * fields if there is none.
+     */
+    public static void writeResponse(Writer out, Message first) throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        if (first == null) {
+            writer.beginObject().endObject();
+        } else {
+            writeMessage(writer, first);
+        }
+        writer.flush();
+    }
+
+    /**
+     * @return The first unacked message in a device_request response, or null if there is none.
+     */
+    public static Message readResponse(Reader in) throws IOException {
+        Message message = readMessage(new JsonReader(in));
+        return message.sender == null ? null : message;
+    }
+
+    private static void writeMessage(JsonWriter writer, Message message) throws IOException {
+        writer.beginObject();
+        writeString(writer, "message", message.message);
+        writeString(writer, "sender", message.sender);
+        writeLong(writer, "date", message.timeSentUtc);
+        if (message.id != 0) {
+            writeLong(writer, "message_id", message.id);
+        }
+        writeLong(writer, "priority", (long) message.priority);
+        writer.endObject();
+    }
+
+    private static Message readMessage(JsonReader reader) throws IOException {
+        Message message = new Message();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            } else if (name.equals("message")) {
+                message.message = reader.nextString();
+            } else if (name.equals("sender")) {
+                message.sender = reader.nextString();
+            } else if (name.equals("date")) {
+                message.timeSentUtc = nextLong(reader);
+            } else if (name.equals("message_id")) {
+                message.id = nextLong(reader);
+            } else if (name.equals("priority")) {
+                message.priority = (int) nextLong(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return message;
+    }
+
+    private static void readMetrics(JsonReader reader, DeviceRequest request) throws IOException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String metricName = null;
+            Long value = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("name")) {
+                    metricName = reader.nextString();
+                } else if (name.equals("value")) {
+                    value = nextLong(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (metricName != null && value != null) {
+                request.metrics.put(metricName, value);
+            }
+        }
+        reader.endArray();
+    }
+
+    /**
+     * Reads an int64, which Endpoints sends as a string but accepts either way.
+     */
+    private static long nextLong(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.STRING) {
+            try {
+                return Long.parseLong(reader.nextString());
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad int64: " + e.getMessage());
+            }
+        }
+        return reader.nextLong();
+    }
+
+    private static void writeString(JsonWriter writer, String name, String value)
+            throws IOException {
+        if (value != null) {
+            writer.name(name).value(value);
+        }
+    }
+
+    private static void writeLong(JsonWriter writer, String name, Long value) throws IOException {
+        if (value != null) {
+            writer.name(name).value(Long.toString(value));
+        }
+    }
+}
@@ -0,0 +1,34 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.core.api;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A device's sync request to the backend, as in the backend's api.DeviceBatchRequest.
+ */
+public class DeviceRequest {
+    public String deviceId;
+    public String fcmId;
+    public Long ackedUntil;
+    public Long causedByPushId;
+    public Long maxMessages;
+    public List<Long> ackedMessageIds = new ArrayList<Long>();
+    // Metric values by name; empty unless the request reports metrics.
+    public Map<String, Long> metrics = new TreeMap<String, Long>();
+}
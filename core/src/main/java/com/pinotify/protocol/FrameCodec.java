@@ -0,0 +1,107 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.protocol;
+
+/**
+ * Encodes frames of the version 2 tablet/Pi protocol.
+ * <p>
+ * Every frame is a five octet header followed by a payload of up to 255 octets:
+ * <pre>
+ *   MAGIC (0xA5) | VERSION | TYPE | SEQ | PAYLOAD LENGTH | PAYLOAD...
+ * </pre>
+ * SEQ numbers a frame within a connection, so that several frames can be in flight at once. Frames
+ * that expect an answer are answered with an ACK, or for HELLO, a HELLO, carrying the same SEQ.
+ * <p>
+ * Version 1 of the protocol sends single octets with no framing: an on/off blink nibble pair, or 0
+ * to stop blinking. Every octet, MAGIC included, is a valid version 1 command, so a version 2
+ * server only speaks version 2 on a connection that opened with a complete HELLO frame; a lone
+ * octet is always a version 1 command. Encoding never allocates.
+ */
+public final class FrameCodec {
+    public static final byte MAGIC = (byte) 0xA5;
+    public static final int VERSION = 2;
+    public static final int HEADER_LENGTH = 5;
+    public static final int MAX_PAYLOAD_LENGTH = 255;
+    public static final int MAX_FRAME_LENGTH = HEADER_LENGTH + MAX_PAYLOAD_LENGTH;
+
+    /** Opens a version 2 session. Payload: the highest version the sender speaks. */
+    public static final int TYPE_HELLO = 1;
+    /** Acknowledges the frame with the same SEQ. No payload. */
+    public static final int TYPE_ACK = 2;
+    /** Starts blinking. Payload: seconds on, seconds off. */
+    public static final int TYPE_BLINK = 3;
+    /** Stops blinking. No payload. */
+    public static final int TYPE_STOP = 4;
+    /** Sent by the Pi when its button is pressed. No payload. */
+    public static final int TYPE_DISMISS = 5;
+    /** Checks that the link is alive; answered with an ACK. No payload. */
+    public static final int TYPE_HEARTBEAT = 6;
+
+    private FrameCodec() {
+    }
+
+    /**
+     * Encodes a frame without payload.
+     *
+     * @return The number of octets written to dst.
+     */
+    public static int encode(byte[] dst, int off, int type, int seq) {
+        return encode(dst, off, type, seq, null, 0, 0);
+    }
+
+    /**
+     * Encodes a frame with a two octet payload, like BLINK.
+     *
+     * @return The number of octets written to dst.
+     */
+    public static int encode(byte[] dst, int off, int type, int seq, int payload0, int payload1) {
+        writeHeader(dst, off, type, seq, 2);
+        dst[off + HEADER_LENGTH] = (byte) payload0;
+        dst[off + HEADER_LENGTH + 1] = (byte) payload1;
+        return HEADER_LENGTH + 2;
+    }
+
+    /**
+     * Encodes a frame.
+     *
+     * @return The number of octets written to dst.
+     */
+    public static int encode(byte[] dst, int off, int type, int seq, byte[] payload,
+                             int payloadOff, int payloadLen) {
+        if (payloadLen > MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Payload too long: " + payloadLen);
+        }
+        writeHeader(dst, off, type, seq, payloadLen);
+        if (payloadLen > 0) {
+            System.arraycopy(payload, payloadOff, dst, off + HEADER_LENGTH, payloadLen);
+        }
+        return HEADER_LENGTH + payloadLen;
+    }
+
+    /**
+     * @return The version 1 blink command for the given on and off times, in seconds (0 - 15).
+     */
+    public static byte encodeV1Blink(int onSec, int offSec) {
+        return (byte) ((onSec & 0x0F) << 4 | (offSec & 0x0F));
+    }
+
+    private static void writeHeader(byte[] dst, int off, int type, int seq, int payloadLen) {
+        dst[off] = MAGIC;
+        dst[off + 1] = (byte) VERSION;
+        dst[off + 2] = (byte) type;
+        dst[off + 3] = (byte) seq;
+        dst[off + 4] = (byte) payloadLen;
+    }
+}
@@ -0,0 +1,94 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.protocol;
+
+/**
+ * Incrementally decodes version 2 frames (see FrameCodec) from a byte stream.
+ * <p>
+ * Input may be fed in chunks of any size: a frame split across several reads is assembled, and
+ * several frames in one read are each delivered. Decoding never allocates; the payload handed to
+ * the Handler is only valid for the duration of the call.
+ */
+public final class FrameDecoder {
+    public interface Handler {
+        /**
+         * Called for each complete frame.
+         *
+         * @param payload    Holds the payload from payloadOff. Only valid during this call.
+         * @param payloadLen The payload length.
+         */
+        void onFrame(int type, int seq, byte[] payload, int payloadOff, int payloadLen);
+
+        /**
+         * Called when the stream can't be a version 2 stream. Decoding resumes at the next MAGIC.
+         *
+         * @param b The offending octet.
+         */
+        void onBadFrame(byte b);
+    }
+
+    private final byte[] frame = new byte[FrameCodec.MAX_FRAME_LENGTH];
+    // The number of octets of the current frame received so far.
+    private int received;
+
+    /**
+     * Decodes len octets from buf, delivering any frames they complete to handler.
+     */
+    public void feed(byte[] buf, int off, int len, Handler handler) {
+        int end = off + len;
+        for (int i = off; i < end; i++) {
+            byte b = buf[i];
+            if (received == 0 && b != FrameCodec.MAGIC) {
+                handler.onBadFrame(b);
+                continue;
+            }
+            if (received == 1 && (b & 0xFF) != FrameCodec.VERSION) {
+                handler.onBadFrame(b);
+                // The octet may itself start the next frame.
+                if (b == FrameCodec.MAGIC) {
+                    frame[0] = b;
+                } else {
+                    received = 0;
+                }
+                continue;
+            }
+            frame[received++] = b;
+            if (received < FrameCodec.HEADER_LENGTH) {
+                continue;
+            }
+            int payloadLen = frame[4] & 0xFF;
+            // Copy as much of the payload as this read holds in one go.
+            int needed = FrameCodec.HEADER_LENGTH + payloadLen - received;
+            int available = Math.min(needed, end - i - 1);
+            if (available > 0) {
+                System.arraycopy(buf, i + 1, frame, received, available);
+                received += available;
+                i += available;
+            }
+            if (received == FrameCodec.HEADER_LENGTH + payloadLen) {
+                received = 0;
+                handler.onFrame(frame[2] & 0xFF, frame[3] & 0xFF, frame,
+                        FrameCodec.HEADER_LENGTH, payloadLen);
+            }
+        }
+    }
+
+    /**
+     * Discards any partially received frame, e.g. after a reconnect.
+     */
+    public void reset() {
+        received = 0;
+    }
+}
@@ -0,0 +1,126 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class InboxLogicTest {
+    private final Set<Long> ackedIds = new HashSet<Long>();
+    private final InboxLogic.AckedFilter<Message> ackedFilter =
+            new InboxLogic.AckedFilter<Message>() {
+                @Override
+                public boolean isAcked(Message message) {
+                    return ackedIds.contains(message.id);
+                }
+            };
+
+    @Test
+    public void mergeDropsMessagesAckedWhileTheRequestWasInFlight() {
+        Message a = newMessage(1, 100, Message.PRIORITY_ROUTINE);
+        Message b = newMessage(2, 200, Message.PRIORITY_ROUTINE);
+        Message c = newMessage(3, 300, Message.PRIORITY_HIGH);
+        // a was acked through ackedUntil, and c by ID, after the request went out.
+        ackedIds.add(3L);
+
+        List<Message> inbox = InboxLogic.mergeInbox(Arrays.asList(a, b, c), null,
+                Collections.<Message>emptyList(), 100, ackedFilter);
+
+        assertEquals(Collections.singletonList(b), inbox);
+    }
+
+    @Test
+    public void mergeIsEmptyOnceEveryFetchedMessageWasAcked() {
+        Message a = newMessage(1, 100, Message.PRIORITY_ROUTINE);
+        Message pushed = newMessage(2, 200, Message.PRIORITY_ROUTINE);
+        pushed.provisional = true;
+
+        List<Message> inbox = InboxLogic.mergeInbox(Collections.singletonList(a), pushed,
+                Collections.<Message>emptyList(), 100, ackedFilter);
+
+        assertTrue(inbox.isEmpty());
+    }
+
+    @Test
+    public void mergeKeepsPushesNewerThanTheBackendsMessages() {
+        Message a = newMessage(1, 100, Message.PRIORITY_ROUTINE);
+        Message newer = newMessage(2, 300, Message.PRIORITY_ROUTINE);
+        newer.provisional = true;
+        Message older = newMessage(3, 50, Message.PRIORITY_ROUTINE);
+        older.provisional = true;
+        Message urgent = newMessage(4, 400, Message.PRIORITY_URGENT);
+        urgent.provisional = true;
+
+        List<Message> inbox = InboxLogic.mergeInbox(Collections.singletonList(a), newer,
+                Arrays.asList(older, urgent), 0, ackedFilter);
+
+        // older must have reached the backend before it answered, so it was acked meanwhile.
+        assertEquals(Arrays.asList(urgent, a, newer), inbox);
+    }
+
+    @Test
+    public void takeNextSkipsMessagesTheAckCovers() {
+        Message acked = newMessage(1, 200, Message.PRIORITY_ROUTINE);
+        Message covered = newMessage(2, 150, Message.PRIORITY_ROUTINE);
+        Message next = newMessage(3, 300, Message.PRIORITY_ROUTINE);
+        List<Message> queue = new ArrayList<Message>(Arrays.asList(covered, acked, next));
+
+        assertEquals(next, InboxLogic.takeNext(queue, acked, 200));
+        assertTrue(queue.isEmpty());
+        assertNull(InboxLogic.takeNext(queue, acked, 200));
+    }
+
+    @Test
+    public void onlyConfirmedRoutineMessagesAckThroughAckedUntil() {
+        Message routine = newMessage(1, 100, Message.PRIORITY_ROUTINE);
+        assertTrue(InboxLogic.acksUntil(routine));
+        assertFalse(InboxLogic.acksById(routine));
+
+        Message high = newMessage(2, 100, Message.PRIORITY_HIGH);
+        assertTrue(InboxLogic.acksById(high));
+        assertFalse(InboxLogic.acksUntil(high));
+
+        Message pushed = newMessage(3, 100, Message.PRIORITY_ROUTINE);
+        pushed.provisional = true;
+        assertTrue(InboxLogic.acksById(pushed));
+        assertFalse(InboxLogic.acksUntil(pushed));
+
+        Message pushedWithoutId = newMessage(0, 100, Message.PRIORITY_ROUTINE);
+        pushedWithoutId.provisional = true;
+        assertFalse(InboxLogic.acksById(pushedWithoutId));
+        assertFalse(InboxLogic.acksUntil(pushedWithoutId));
+    }
+
+    private static Message newMessage(long id, long timeSentUtc, int priority) {
+        Message message = new Message();
+        message.sender = "sender";
+        message.message = "message " + id;
+        message.timeSentUtc = timeSentUtc;
+        message.id = id;
+        message.priority = priority;
+        return message;
+    }
+}
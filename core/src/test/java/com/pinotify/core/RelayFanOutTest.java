@@ -0,0 +1,164 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class RelayFanOutTest {
+    private final FakeRelay first = new FakeRelay();
+    private final FakeRelay second = new FakeRelay();
+    private final RecordingCallback callback = new RecordingCallback();
+
+    @Test
+    public void firstDeliveryCompletesWhenNotWaitingForAll() {
+        RelayFanOut fanOut = new RelayFanOut(Arrays.asList(first, second), false);
+        fanOut.sendBlink(1, 2, "key", callback);
+
+        second.complete(true);
+        assertEquals(Collections.singletonList(true), callback.results);
+
+        first.complete(false);
+        assertEquals(Collections.singletonList(true), callback.results);
+    }
+
+    @Test
+    public void failsOnlyOnceEveryRelayFailedWhenNotWaitingForAll() {
+        RelayFanOut fanOut = new RelayFanOut(Arrays.asList(first, second), false);
+        fanOut.sendBlink(1, 2, "key", callback);
+
+        first.complete(false);
+        assertTrue(callback.results.isEmpty());
+
+        second.complete(false);
+        assertEquals(Collections.singletonList(false), callback.results);
+    }
+
+    @Test
+    public void waitsForEveryRelayWhenWaitingForAll() {
+        RelayFanOut fanOut = new RelayFanOut(Arrays.asList(first, second), true);
+        fanOut.sendBlink(1, 2, "key", callback);
+
+        first.complete(true);
+        assertTrue(callback.results.isEmpty());
+
+        second.complete(true);
+        assertEquals(Collections.singletonList(true), callback.results);
+    }
+
+    @Test
+    public void oneFailureFailsWhenWaitingForAll() {
+        RelayFanOut fanOut = new RelayFanOut(Arrays.asList(first, second), true);
+        fanOut.sendDismiss("key", callback);
+
+        first.complete(false);
+        second.complete(true);
+        assertEquals(Collections.singletonList(false), callback.results);
+    }
+
+    @Test
+    public void noRelaysFailsAtOnce() {
+        RelayFanOut fanOut = new RelayFanOut(Collections.<FakeRelay>emptyList(), false);
+        fanOut.sendBlink(1, 2, "key", callback);
+
+        assertEquals(Collections.singletonList(false), callback.results);
+    }
+
+    @Test
+    public void commandsCarryTheTraceKey() {
+        RelayFanOut fanOut = new RelayFanOut(Arrays.asList(first, second), false);
+        fanOut.sendBlink(1, 2, "key", null);
+
+        assertEquals("key", first.lastTraceKey);
+        assertEquals("key", second.lastTraceKey);
+    }
+
+    @Test
+    public void pressesOnSeveralPisDismissOnce() {
+        RelayFanOut fanOut = new RelayFanOut(Arrays.asList(first, second), false);
+        final int[] dismisses = new int[1];
+        fanOut.addReceiver(new RelayTransport.Receiver() {
+            @Override
+            public void receivedDismiss() {
+                dismisses[0]++;
+            }
+        });
+
+        first.pressButton();
+        // The next message's blink goes out before the other Pi's dismiss arrives.
+        fanOut.sendBlink(1, 2, "next", null);
+        second.pressButton();
+
+        assertEquals(1, dismisses[0]);
+    }
+
+    private static class FakeRelay implements RelayTransport {
+        private final List<Receiver> receivers = new ArrayList<Receiver>();
+        private DeliveryCallback lastCallback;
+        String lastTraceKey;
+
+        @Override
+        public void sendBlink(int onSec, int offSec, String traceKey, DeliveryCallback callback) {
+            lastTraceKey = traceKey;
+            lastCallback = callback;
+        }
+
+        @Override
+        public void sendDismiss(String traceKey, DeliveryCallback callback) {
+            lastTraceKey = traceKey;
+            lastCallback = callback;
+        }
+
+        @Override
+        public void addReceiver(Receiver receiver) {
+            receivers.add(receiver);
+        }
+
+        @Override
+        public void removeReceiver(Receiver receiver) {
+            receivers.remove(receiver);
+        }
+
+        @Override
+        public void close() {
+        }
+
+        void complete(boolean delivered) {
+            lastCallback.onResult(delivered);
+        }
+
+        void pressButton() {
+            for (Receiver receiver : receivers) {
+                receiver.receivedDismiss();
+            }
+        }
+    }
+
+    private static class RecordingCallback implements RelayTransport.DeliveryCallback {
+        final List<Boolean> results = new ArrayList<Boolean>();
+
+        @Override
+        public void onResult(boolean delivered) {
+            results.add(delivered);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SyncCoalescerTest {
+    private final SyncCoalescer coalescer = new SyncCoalescer();
+
+    @Test
+    public void triggersDuringASyncMergeIntoOneFollowUp() {
+        assertTrue(coalescer.onTrigger(null));
+        assertFalse(coalescer.onTrigger(5L));
+        assertFalse(coalescer.onTrigger(null));
+        assertFalse(coalescer.onTrigger(7L));
+
+        SyncCoalescer.FollowUp followUp = coalescer.onSyncFinished();
+
+        assertEquals(Long.valueOf(7L), followUp.causedByPushId);
+        assertEquals(3, followUp.mergedTriggers);
+        // The follow-up is now the sync in flight.
+        assertFalse(coalescer.onTrigger(null));
+    }
+
+    @Test
+    public void noFollowUpWithoutTriggers() {
+        assertTrue(coalescer.onTrigger(1L));
+
+        assertNull(coalescer.onSyncFinished());
+        assertTrue(coalescer.onTrigger(null));
+    }
+
+    @Test
+    public void followUpForgetsTheMergedTriggers() {
+        coalescer.onTrigger(null);
+        coalescer.onTrigger(5L);
+        coalescer.onSyncFinished();
+        coalescer.onTrigger(null);
+
+        SyncCoalescer.FollowUp followUp = coalescer.onSyncFinished();
+
+        assertNull(followUp.causedByPushId);
+        assertEquals(1, followUp.mergedTriggers);
+        assertNull(coalescer.onSyncFinished());
+    }
+}
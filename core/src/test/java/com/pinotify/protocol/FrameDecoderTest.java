@@ -0,0 +1,122 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.protocol;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class FrameDecoderTest {
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final RecordingHandler handler = new RecordingHandler();
+    private byte[] stream;
+
+    @Before
+    public void setUp() {
+        // A BLINK, a HEARTBEAT and a HELLO, back to back.
+        byte[] buf = new byte[FrameCodec.MAX_FRAME_LENGTH * 3];
+        int len = FrameCodec.encode(buf, 0, FrameCodec.TYPE_BLINK, 7, 3, 4);
+        len += FrameCodec.encode(buf, len, FrameCodec.TYPE_HEARTBEAT, 8);
+        len += FrameCodec.encode(buf, len, FrameCodec.TYPE_HELLO, 9,
+                new byte[]{(byte) FrameCodec.VERSION}, 0, 1);
+        stream = Arrays.copyOf(buf, len);
+    }
+
+    @Test
+    public void decodesSeveralFramesInOneRead() {
+        decoder.feed(stream, 0, stream.length, handler);
+
+        assertEquals(Arrays.asList("3/7 [3, 4]", "6/8 []", "1/9 [2]"), handler.frames);
+        assertEquals(0, handler.badOctets);
+    }
+
+    @Test
+    public void assemblesFramesSplitAcrossReads() {
+        for (int i = 0; i < stream.length; i++) {
+            decoder.feed(stream, i, 1, handler);
+        }
+
+        assertEquals(Arrays.asList("3/7 [3, 4]", "6/8 []", "1/9 [2]"), handler.frames);
+    }
+
+    @Test
+    public void resumesAtTheNextMagicAfterGarbage() {
+        byte[] buf = concat(new byte[]{0x01, 0x02}, stream);
+
+        decoder.feed(buf, 0, buf.length, handler);
+
+        assertEquals(2, handler.badOctets);
+        assertEquals(3, handler.frames.size());
+    }
+
+    @Test
+    public void resumesAtTheNextMagicAfterABadVersion() {
+        byte[] buf = concat(new byte[]{FrameCodec.MAGIC, 0x07}, stream);
+
+        decoder.feed(buf, 0, buf.length, handler);
+
+        assertEquals(1, handler.badOctets);
+        assertEquals(3, handler.frames.size());
+    }
+
+    @Test
+    public void keepsAMagicThatFollowsMagicAsTheStartOfAFrame() {
+        byte[] buf = concat(new byte[]{FrameCodec.MAGIC}, stream);
+
+        decoder.feed(buf, 0, buf.length, handler);
+
+        assertEquals(1, handler.badOctets);
+        assertEquals(Arrays.asList("3/7 [3, 4]", "6/8 []", "1/9 [2]"), handler.frames);
+    }
+
+    @Test
+    public void resetDropsAPartialFrame() {
+        decoder.feed(stream, 0, 3, handler);
+        decoder.reset();
+        decoder.feed(stream, 0, stream.length, handler);
+
+        assertEquals(3, handler.frames.size());
+        assertEquals(0, handler.badOctets);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private static class RecordingHandler implements FrameDecoder.Handler {
+        // Each frame as "type/seq [payload]".
+        final List<String> frames = new ArrayList<String>();
+        int badOctets;
+
+        @Override
+        public void onFrame(int type, int seq, byte[] payload, int payloadOff, int payloadLen) {
+            frames.add(type + "/" + seq + " " +
+                    Arrays.toString(Arrays.copyOfRange(payload, payloadOff,
+                            payloadOff + payloadLen)));
+        }
+
+        @Override
+        public void onBadFrame(byte b) {
+            badOctets++;
+        }
+    }
+}
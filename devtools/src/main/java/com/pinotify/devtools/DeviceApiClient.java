@@ -0,0 +1,103 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.devtools;
+
+import com.pinotify.core.Message;
+import com.pinotify.core.api.DeviceApiJson;
+import com.pinotify.core.api.DeviceRequest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+
+/**
+ * Calls device_batch_request over HTTP, as the generated client library does.
+ */
+class DeviceApiClient {
+    private static final int TIMEOUT_MS = 20000;
+
+    /**
+     * Thrown when the backend answers with an HTTP error.
+     */
+    static class HttpError extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+
+        HttpError(int code) {
+            super("HTTP " + code);
+            this.code = code;
+        }
+    }
+
+    private final URL batchUrl;
+
+    /**
+     * @param rootUrl The API root URL, ending in /_ah/api/.
+     */
+    DeviceApiClient(String rootUrl) throws IOException {
+        batchUrl = new URL(rootUrl + "pinotify_api/v1/device_batch_request");
+    }
+
+    /**
+     * @return The device's unacked messages, in display order.
+     * @throws HttpError if the backend answered with an error.
+     */
+    List<Message> deviceBatchRequest(DeviceRequest request, String token) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) batchUrl.openConnection();
+        try {
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            connection.setDoOutput(true);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+            connection.setRequestProperty("Authorization", "Bearer " + token);
+            Writer out = new OutputStreamWriter(connection.getOutputStream(), "UTF-8");
+            DeviceApiJson.writeBatchRequest(out, request);
+            out.close();
+            int code = connection.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                drain(connection.getErrorStream());
+                throw new HttpError(code);
+            }
+            InputStream in = connection.getInputStream();
+            try {
+                return DeviceApiJson.readBatchResponse(new InputStreamReader(in, "UTF-8"));
+            } finally {
+                in.close();
+            }
+        } catch (IllegalStateException e) {
+            throw new IOException("Malformed response: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads an error body to the end, so the connection can be reused.
+     */
+    private static void drain(InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        byte[] buf = new byte[512];
+        while (in.read(buf) != -1) {
+        }
+        in.close();
+    }
+}
@@ -0,0 +1,376 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.devtools;
+
+import com.pinotify.core.Message;
+import com.pinotify.core.api.DeviceApiJson;
+import com.pinotify.core.api.DeviceRequest;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for the App Engine backend's pinotify_api, for load tests and for running
+ * the app against a workstation.
+ * <p>
+ * It serves device_request and device_batch_request under the same paths and in the same JSON
+ * shape as Endpoints, keeps each device's messages and acks in memory the way api.py keeps them in
+ * the datastore, and sends pushes to a PushListener in place of FCM. Faults can inject latency,
+ * server errors, 401s and lost pushes. Any bearer token is accepted; devices are told apart by
+ * device_id alone.
+ */
+public class FakeBackend {
+    private static final String API_ROOT = "/_ah/api/";
+    private static final String API_PATH = API_ROOT + "pinotify_api/v1/";
+    // As api.MAX_BATCH_MESSAGES.
+    private static final int MAX_BATCH_MESSAGES = 20;
+
+    /**
+     * Faults to inject. May be changed while the backend runs.
+     */
+    public static class Faults {
+        // Added to every request.
+        public volatile long latencyMs;
+        // A uniformly random extra latency, up to this.
+        public volatile long latencyJitterMs;
+        // The share of requests that fail with a 503.
+        public volatile double errorRate;
+        // The share of requests that fail with a 401, as with an expired token.
+        public volatile double authFailureRate;
+        // The share of pushes that are never delivered.
+        public volatile double pushLossRate;
+    }
+
+    /**
+     * Receives the pushes FCM would deliver.
+     */
+    public interface PushListener {
+        /**
+         * Called on the thread that posted the message. Must not block.
+         *
+         * @param fcmId   The FCM ID the device last reported.
+         * @param pushId  The push ID, which the device reports back as caused_by_push_id.
+         * @param message The posted message.
+         */
+        void onPush(String fcmId, long pushId, Message message);
+    }
+
+    private static class DeviceState {
+        String fcmId;
+        long ackedUntil;
+        final Set<Long> ackedIds = new HashSet<Long>();
+        // In the order posted, which is also timeSentUtc order.
+        final List<Message> messages = new ArrayList<Message>();
+        Map<String, Long> metrics = Collections.emptyMap();
+    }
+
+    private final Faults faults;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Random random = new Random();
+    // Guarded by itself.
+    private final Map<String, DeviceState> devices = new HashMap<String, DeviceState>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private volatile PushListener pushListener;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong injectedErrors = new AtomicLong();
+    private final AtomicLong injectedAuthFailures = new AtomicLong();
+    private final AtomicLong lostPushes = new AtomicLong();
+
+    /**
+     * @param port    The port to listen on, or 0 for any free port.
+     * @param threads The number of requests served at once. Injected latency holds a thread.
+     * @param faults  The faults to inject.
+     */
+    public FakeBackend(int port, int threads, Faults faults) throws IOException {
+        this.faults = faults;
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext(API_PATH + "device_request", new ApiHandler(false));
+        server.createContext(API_PATH + "device_batch_request", new ApiHandler(true));
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return The root URL to give the app or a client, as with Endpoints' /_ah/api/.
+     */
+    public String getRootUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + API_ROOT;
+    }
+
+    public void setPushListener(PushListener listener) {
+        pushListener = listener;
+    }
+
+    /**
+     * Stores a message for a device and pushes it, as web_handlers does.
+     *
+     * @return The stored message, with its ID and time sent.
+     */
+    public Message postMessage(String deviceId, String sender, String body, int priority) {
+        Message message = new Message();
+        message.sender = sender;
+        message.message = body;
+        message.priority = priority;
+        message.id = nextId.getAndIncrement();
+        String fcmId;
+        synchronized (devices) {
+            DeviceState device = getDevice(deviceId);
+            // Times are in seconds, as on the backend. They are kept unique per device so that
+            // acking a routine message through acked_until never acks one posted the same second.
+            long timeSentUtc = System.currentTimeMillis() / 1000L;
+            if (!device.messages.isEmpty()) {
+                timeSentUtc = Math.max(timeSentUtc,
+                        device.messages.get(device.messages.size() - 1).timeSentUtc + 1);
+            }
+            message.timeSentUtc = timeSentUtc;
+            device.messages.add(message);
+            fcmId = device.fcmId;
+        }
+        PushListener listener = pushListener;
+        if (listener == null || fcmId == null) {
+            return message;
+        }
+        if (random.nextDouble() < faults.pushLossRate) {
+            lostPushes.incrementAndGet();
+            return message;
+        }
+        listener.onPush(fcmId, System.currentTimeMillis(), message);
+        return message;
+    }
+
+    /**
+     * @return The device's unacked messages, in display order.
+     */
+    public List<Message> getUnacked(String deviceId) {
+        synchronized (devices) {
+            return getUnacked(getDevice(deviceId), Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * @return The metrics the device last reported, by name.
+     */
+    public Map<String, Long> getMetrics(String deviceId) {
+        synchronized (devices) {
+            return getDevice(deviceId).metrics;
+        }
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getInjectedErrors() {
+        return injectedErrors.get();
+    }
+
+    public long getInjectedAuthFailures() {
+        return injectedAuthFailures.get();
+    }
+
+    public long getLostPushes() {
+        return lostPushes.get();
+    }
+
+    private DeviceState getDevice(String deviceId) {
+        DeviceState device = devices.get(deviceId);
+        if (device == null) {
+            device = new DeviceState();
+            devices.put(deviceId, device);
+        }
+        return device;
+    }
+
+    /**
+     * As api._UnackedMessages: highest priority first, then oldest first.
+     */
+    private static List<Message> getUnacked(DeviceState device, int limit) {
+        List<Message> unacked = new ArrayList<Message>();
+        for (Message message : device.messages) {
+            if (message.timeSentUtc > device.ackedUntil && !device.ackedIds.contains(message.id)) {
+                unacked.add(message);
+            }
+        }
+        Collections.sort(unacked, Message.DISPLAY_ORDER);
+        return unacked.size() > limit ? unacked.subList(0, limit) : unacked;
+    }
+
+    /**
+     * As api._UpsertDevice and _MarkAcked.
+     */
+    private List<Message> handleRequest(DeviceRequest request, int limit) {
+        synchronized (devices) {
+            DeviceState device = getDevice(request.deviceId);
+            device.fcmId = request.fcmId;
+            device.ackedUntil = request.ackedUntil != null ? request.ackedUntil : 0L;
+            device.ackedIds.addAll(request.ackedMessageIds);
+            if (!request.metrics.isEmpty()) {
+                device.metrics = request.metrics;
+            }
+            return new ArrayList<Message>(getUnacked(device, limit));
+        }
+    }
+
+    private class ApiHandler implements HttpHandler {
+        private final boolean batch;
+
+        ApiHandler(boolean batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                serve(exchange);
+            } finally {
+                exchange.close();
+            }
+        }
+
+        private void serve(HttpExchange exchange) throws IOException {
+            requests.incrementAndGet();
+            long delayMs = faults.latencyMs;
+            if (faults.latencyJitterMs > 0) {
+                delayMs += (long) (random.nextDouble() * faults.latencyJitterMs);
+            }
+            if (delayMs > 0) {
+                try {
+                    Thread.sleep(delayMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendError(exchange, 405, "Method not allowed");
+                return;
+            }
+            String auth = exchange.getRequestHeaders().getFirst("Authorization");
+            if (auth == null || !auth.startsWith("Bearer ")) {
+                sendError(exchange, 401, "Invalid user");
+                return;
+            }
+            if (random.nextDouble() < faults.authFailureRate) {
+                injectedAuthFailures.incrementAndGet();
+                sendError(exchange, 401, "Invalid token");
+                return;
+            }
+            if (random.nextDouble() < faults.errorRate) {
+                injectedErrors.incrementAndGet();
+                sendError(exchange, 503, "Backend unavailable");
+                return;
+            }
+
+            DeviceRequest request;
+            Reader in = new InputStreamReader(exchange.getRequestBody(), "UTF-8");
+            try {
+                request = DeviceApiJson.readBatchRequest(in);
+            } catch (IOException | IllegalStateException e) {
+                sendError(exchange, 400, "Bad request: " + e.getMessage());
+                return;
+            }
+            if (request.deviceId == null) {
+                sendError(exchange, 400, "Missing device_id");
+                return;
+            }
+            StringWriter body = new StringWriter();
+            if (batch) {
+                long max = request.maxMessages != null ? request.maxMessages : 1L;
+                int limit = (int) Math.min(Math.max(max, 1L), MAX_BATCH_MESSAGES);
+                DeviceApiJson.writeBatchResponse(body, handleRequest(request, limit));
+            } else {
+                List<Message> unacked = handleRequest(request, 1);
+                DeviceApiJson.writeResponse(body, unacked.isEmpty() ? null : unacked.get(0));
+            }
+            send(exchange, 200, body.toString());
+        }
+
+        /**
+         * Sends an error in the shape Endpoints uses.
+         */
+        private void sendError(HttpExchange exchange, int code, String message)
+                throws IOException {
+            String json = "{\"error\": {\"code\": " + code + ", \"message\": \"" +
+                    message.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}}";
+            send(exchange, code, json);
+        }
+
+        private void send(HttpExchange exchange, int code, String json) throws IOException {
+            byte[] bytes = json.getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+            exchange.sendResponseHeaders(code, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.flush();
+        }
+    }
+
+    /**
+     * Runs the stand-in on its own, for pointing the app at it. Each line on stdin posts a message,
+     * as "device_id priority sender message".
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        FakeBackend backend = new FakeBackend(port, 8, new Faults());
+        backend.start();
+        System.out.println("Serving " + backend.getRootUrl());
+        BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+        Writer stdout = new OutputStreamWriter(System.out, "UTF-8");
+        String line;
+        while ((line = stdin.readLine()) != null) {
+            String[] parts = line.trim().split("\\s+", 4);
+            if (parts.length < 4 || !parts[1].matches("[0-2]")) {
+                stdout.write("Usage: device_id priority(0-2) sender message\n");
+            } else {
+                Message message = backend.postMessage(parts[0], parts[2], parts[3],
+                        Integer.parseInt(parts[1]));
+                stdout.write("Posted message " + message.id + "\n");
+            }
+            stdout.flush();
+        }
+        backend.stop();
+    }
+}
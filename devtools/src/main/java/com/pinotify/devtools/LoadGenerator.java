@@ -0,0 +1,228 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.devtools;
+
+import com.pinotify.core.Message;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simulates a fleet of devices against a FakeBackend, and reports the backend's throughput and
+ * latency, and how the clients' retries and polling behave under the injected faults.
+ * <p>
+ * Messages are posted to random devices at a fixed rate; one in ten is high priority and one in
+ * fifty urgent. Options, all optional, are given as --name=value:
+ * <pre>
+ *   --devices=100           Simulated devices.
+ *   --duration=60           Seconds to post messages for. Devices then get 10s to drain.
+ *   --post-rate=20          Messages posted per second, across all devices.
+ *   --ack-delay-ms=2000     Mean time until a displayed message is acked.
+ *   --time-scale=60         Poll intervals are divided by this.
+ *   --threads=16            Requests the backend serves, and devices send, at once.
+ *   --latency-ms=50         Latency added to each request.
+ *   --jitter-ms=50          Random extra latency, up to this.
+ *   --error-rate=0          Share of requests failing with a 503.
+ *   --auth-failure-rate=0   Share of requests failing with a 401.
+ *   --push-loss-rate=0      Share of pushes never delivered.
+ * </pre>
+ */
+public class LoadGenerator {
+    private static final long DRAIN_MS = 10000L;
+
+    /**
+     * What the simulated fleet saw.
+     */
+    static class Stats {
+        final Samples rpcMs = new Samples();
+        // From a message being posted to it first being displayed.
+        final Samples displayMs = new Samples();
+        // From an ack to the backend confirming it.
+        final Samples ackDeliveryMs = new Samples();
+        final AtomicLong rpcFailures = new AtomicLong();
+        final AtomicLong tokenRefreshes = new AtomicLong();
+        final AtomicLong retries = new AtomicLong();
+        final AtomicLong mergedTriggers = new AtomicLong();
+        final AtomicLong supersededResponses = new AtomicLong();
+        final AtomicLong polls = new AtomicLong();
+        final AtomicLong pushes = new AtomicLong();
+        final AtomicLong lostPushesFound = new AtomicLong();
+        final AtomicLong acks = new AtomicLong();
+        // When each message was posted, by ID.
+        final ConcurrentMap<Long, Long> postedAtMs = new ConcurrentHashMap<Long, Long>();
+
+        /**
+         * Records when message was posted. Called before the push is handled, and again once the
+         * backend returns the message, in case it wasn't pushed.
+         */
+        void onPosted(Message message, long postedMs) {
+            postedAtMs.putIfAbsent(message.id, postedMs);
+        }
+
+        void onDisplayed(Message message) {
+            Long postedMs = postedAtMs.get(message.id);
+            if (postedMs != null) {
+                displayMs.add(System.currentTimeMillis() - postedMs);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int devices = 100;
+        long durationSec = 60;
+        double postRate = 20;
+        long ackDelayMs = 2000;
+        long timeScale = 60;
+        int threads = 16;
+        FakeBackend.Faults faults = new FakeBackend.Faults();
+        faults.latencyMs = 50;
+        faults.latencyJitterMs = 50;
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            if (option.length != 2) {
+                usage(arg);
+            }
+            String name = option[0];
+            String value = option[1];
+            if (name.equals("--devices")) {
+                devices = Integer.parseInt(value);
+            } else if (name.equals("--duration")) {
+                durationSec = Long.parseLong(value);
+            } else if (name.equals("--post-rate")) {
+                postRate = Double.parseDouble(value);
+            } else if (name.equals("--ack-delay-ms")) {
+                ackDelayMs = Long.parseLong(value);
+            } else if (name.equals("--time-scale")) {
+                timeScale = Math.max(1L, Long.parseLong(value));
+            } else if (name.equals("--threads")) {
+                threads = Integer.parseInt(value);
+            } else if (name.equals("--latency-ms")) {
+                faults.latencyMs = Long.parseLong(value);
+            } else if (name.equals("--jitter-ms")) {
+                faults.latencyJitterMs = Long.parseLong(value);
+            } else if (name.equals("--error-rate")) {
+                faults.errorRate = Double.parseDouble(value);
+            } else if (name.equals("--auth-failure-rate")) {
+                faults.authFailureRate = Double.parseDouble(value);
+            } else if (name.equals("--push-loss-rate")) {
+                faults.pushLossRate = Double.parseDouble(value);
+            } else {
+                usage(arg);
+            }
+        }
+
+        final FakeBackend backend = new FakeBackend(0, threads, faults);
+        backend.start();
+        final Stats stats = new Stats();
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+        ExecutorService network = Executors.newFixedThreadPool(threads);
+        DeviceApiClient client = new DeviceApiClient(backend.getRootUrl());
+        final Map<String, SimulatedDevice> byFcmId =
+                new ConcurrentHashMap<String, SimulatedDevice>();
+        List<SimulatedDevice> fleet = new ArrayList<SimulatedDevice>(devices);
+        for (int i = 0; i < devices; i++) {
+            SimulatedDevice device = new SimulatedDevice(String.format(Locale.US, "device%05d", i),
+                    client, scheduler, network, stats, timeScale, ackDelayMs);
+            fleet.add(device);
+            byFcmId.put(device.getFcmId(), device);
+        }
+        backend.setPushListener(new FakeBackend.PushListener() {
+            @Override
+            public void onPush(String fcmId, long pushId, Message message) {
+                stats.onPosted(message, System.currentTimeMillis());
+                SimulatedDevice device = byFcmId.get(fcmId);
+                if (device != null) {
+                    device.onPush(pushId, message);
+                }
+            }
+        });
+        System.out.println("Simulating " + devices + " devices against " + backend.getRootUrl());
+        for (SimulatedDevice device : fleet) {
+            device.start();
+        }
+
+        Random random = new Random();
+        long startMs = System.currentTimeMillis();
+        long endMs = startMs + durationSec * 1000L;
+        long posted = 0;
+        long requestsAtStart = backend.getRequests();
+        while (System.currentTimeMillis() < endMs) {
+            long dueMs = startMs + (long) (posted * 1000.0 / postRate);
+            long waitMs = dueMs - System.currentTimeMillis();
+            if (waitMs > 0) {
+                Thread.sleep(waitMs);
+                continue;
+            }
+            SimulatedDevice device = fleet.get(random.nextInt(fleet.size()));
+            int roll = random.nextInt(50);
+            int priority = roll == 0 ? Message.PRIORITY_URGENT :
+                    (roll < 5 ? Message.PRIORITY_HIGH : Message.PRIORITY_ROUTINE);
+            long postedMs = System.currentTimeMillis();
+            Message message = backend.postMessage(device.getDeviceId(), "loadgen",
+                    "Message " + posted, priority);
+            stats.onPosted(message, postedMs);
+            posted++;
+        }
+        Thread.sleep(DRAIN_MS);
+        long elapsedMs = System.currentTimeMillis() - startMs;
+        long requests = backend.getRequests() - requestsAtStart;
+
+        long unacked = 0;
+        long undelivered = 0;
+        for (SimulatedDevice device : fleet) {
+            device.stop();
+            unacked += backend.getUnacked(device.getDeviceId()).size();
+            undelivered += device.getUndeliveredUpdates();
+        }
+        scheduler.shutdownNow();
+        network.shutdownNow();
+        backend.stop();
+
+        System.out.println(String.format(Locale.US, "Backend: %d requests in %.1fs, %.1f req/s",
+                requests, elapsedMs / 1000.0, requests * 1000.0 / elapsedMs));
+        System.out.println("  injected: " + backend.getInjectedErrors() + " errors, " +
+                backend.getInjectedAuthFailures() + " 401s, " + backend.getLostPushes() +
+                " lost pushes");
+        System.out.println("Device RPC latency: " + stats.rpcMs.format());
+        System.out.println("  " + stats.rpcFailures.get() + " failed, " +
+                stats.tokenRefreshes.get() + " token refreshes, " + stats.retries.get() +
+                " ack retries, " + stats.mergedTriggers.get() + " merged triggers, " +
+                stats.supersededResponses.get() + " superseded responses");
+        System.out.println("Syncs: " + stats.pushes.get() + " pushes, " + stats.polls.get() +
+                " polls, " + stats.lostPushesFound.get() + " lost pushes found by polling");
+        System.out.println("Messages: " + posted + " posted, " + stats.displayMs.getCount() +
+                " displayed, " + stats.acks.get() + " acked, " + unacked +
+                " unacked at the end");
+        System.out.println("Post to display: " + stats.displayMs.format());
+        System.out.println("Ack to backend: " + stats.ackDeliveryMs.format() + ", " + undelivered +
+                " undelivered at the end");
+    }
+
+    private static void usage(String arg) {
+        System.err.println("Unknown option " + arg + "; see the LoadGenerator class comment");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,99 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.devtools;
+
+import com.pinotify.core.Prefs;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Prefs held in memory, for a simulated device.
+ */
+class MemoryPrefs implements Prefs {
+    // Guarded by itself.
+    private final Map<String, Object> values = new HashMap<String, Object>();
+
+    @Override
+    public int getInt(String key, int defValue) {
+        Object value = get(key);
+        return value != null ? (Integer) value : defValue;
+    }
+
+    @Override
+    public long getLong(String key, long defValue) {
+        Object value = get(key);
+        return value != null ? (Long) value : defValue;
+    }
+
+    @Override
+    public boolean getBoolean(String key, boolean defValue) {
+        Object value = get(key);
+        return value != null ? (Boolean) value : defValue;
+    }
+
+    @Override
+    public String getString(String key, String defValue) {
+        Object value = get(key);
+        return value != null ? (String) value : defValue;
+    }
+
+    @Override
+    public Prefs.Editor edit() {
+        return new Editor();
+    }
+
+    private Object get(String key) {
+        synchronized (values) {
+            return values.get(key);
+        }
+    }
+
+    private class Editor implements Prefs.Editor {
+        private final Map<String, Object> puts = new HashMap<String, Object>();
+
+        @Override
+        public Prefs.Editor putInt(String key, int value) {
+            puts.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Prefs.Editor putLong(String key, long value) {
+            puts.put(key, value);
+            return this;
+        }
+
+        @Override
+        public Prefs.Editor remove(String key) {
+            // A null value marks a removal.
+            puts.put(key, null);
+            return this;
+        }
+
+        @Override
+        public void apply() {
+            synchronized (values) {
+                for (Map.Entry<String, Object> entry : puts.entrySet()) {
+                    if (entry.getValue() == null) {
+                        values.remove(entry.getKey());
+                    } else {
+                        values.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,444 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.devtools;
+
+import com.pinotify.core.Connector;
+import com.pinotify.core.Link;
+import com.pinotify.core.RelayDiscovery;
+import com.pinotify.core.SocketLink;
+import com.pinotify.protocol.FrameCodec;
+import com.pinotify.protocol.FrameDecoder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Emulates bt_server.py: the blinker, the button, and both versions of the protocol, over any
+ * Link. The app's connection, or a bench client, can talk to it over a local socket or an
+ * in-memory pipe instead of RFCOMM to a real Pi.
+ * <p>
+ * As bt_server.py, a link speaks version 2 once it has opened with a HELLO frame, and version 1
+ * otherwise; a single octet is always a version 1 command. Every version 2 frame but an ACK is
+ * answered with an ACK, and a HELLO with a HELLO.
+ * Options add what a real link does badly: latency, and links that drop.
+ */
+public class PiEmulator {
+    /**
+     * Faults and quirks to emulate. May be changed while the emulator runs.
+     */
+    public static class Options {
+        // Added before each frame or octet received is handled, as radio and Pi latency.
+        public volatile long latencyMs;
+        // Added before each link is handed over by the emulator's connectors.
+        public volatile long connectLatencyMs;
+        // Speak only version 1, closing links on a HELLO, as bt_server.py did before framing.
+        public volatile boolean version1Only;
+        // Drop a link after this many commands were received on it, or never if 0.
+        public volatile int dropAfterCommands;
+    }
+
+    private final Options options;
+    private final CopyOnWriteArraySet<Session> sessions = new CopyOnWriteArraySet<Session>();
+    private final AtomicInteger dismissSeq = new AtomicInteger();
+    private final AtomicInteger linkCount = new AtomicInteger();
+
+    // The blinker's state. Guarded by this.
+    private boolean blinking;
+    private int onSec;
+    private int offSec;
+
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong heartbeats = new AtomicLong();
+    private final AtomicLong dismissAcks = new AtomicLong();
+    private final AtomicLong droppedLinks = new AtomicLong();
+
+    public PiEmulator(Options options) {
+        this.options = options;
+    }
+
+    /**
+     * Serves a link until it's closed, on a thread of its own.
+     */
+    public void serve(Link link) {
+        final Session session = new Session(link);
+        sessions.add(session);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                session.run();
+            }
+        }, "PiEmulator-" + linkCount.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return A connector that opens in-memory links to this emulator.
+     */
+    public Connector pipeConnector() {
+        return new Connector() {
+            @Override
+            public Link connect() throws IOException {
+                sleep(options.connectLatencyMs);
+                PipeLink[] ends = PipeLink.pair("to emulator");
+                serve(ends[1]);
+                return ends[0];
+            }
+        };
+    }
+
+    /**
+     * Listens for connections on a loopback port, as bt_server.py does on its RFCOMM channel and
+     * its TCP port.
+     *
+     * @param port The port, or 0 for any free port.
+     * @return The socket listened on, which stops the listening when closed.
+     */
+    public ServerSocket listen(int port) throws IOException {
+        final ServerSocket server = new ServerSocket(port, 5, InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!server.isClosed()) {
+                    try {
+                        Socket socket = server.accept();
+                        socket.setTcpNoDelay(true);
+                        socket.setKeepAlive(true);
+                        sleep(options.connectLatencyMs);
+                        serve(new SocketLink(socket));
+                    } catch (IOException e) {
+                        // Closed.
+                    }
+                }
+            }
+        }, "PiEmulator-accept");
+        thread.setDaemon(true);
+        thread.start();
+        return server;
+    }
+
+    /**
+     * Answers RelayDiscovery requests on a loopback port, as bt_server.py does on the LAN.
+     *
+     * @param port    The UDP port, or 0 for any free port.
+     * @param tcpPort The port announced, as returned by listen().
+     * @return The socket answered on, which stops the answering when closed.
+     */
+    public DatagramSocket answerDiscovery(int port, int tcpPort) throws IOException {
+        final DatagramSocket socket = new DatagramSocket(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        final byte[] reply = (RelayDiscovery.REPLY_PREFIX + tcpPort + " pi-emulator")
+                .getBytes(Charset.forName("US-ASCII"));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buf = new byte[64];
+                while (!socket.isClosed()) {
+                    try {
+                        DatagramPacket request = new DatagramPacket(buf, buf.length);
+                        socket.receive(request);
+                        String text = new String(request.getData(), 0, request.getLength(),
+                                Charset.forName("US-ASCII"));
+                        if (text.trim().equals(RelayDiscovery.REQUEST)) {
+                            socket.send(new DatagramPacket(reply, reply.length,
+                                    request.getSocketAddress()));
+                        }
+                    } catch (IOException e) {
+                        // Closed.
+                    }
+                }
+            }
+        }, "PiEmulator-discovery");
+        thread.setDaemon(true);
+        thread.start();
+        return socket;
+    }
+
+    /**
+     * Presses the button: stops blinking and sends a dismiss on every link, as ButtonAction in
+     * bt_server.py.
+     */
+    public void pressButton() {
+        pressButton(1);
+    }
+
+    /**
+     * Presses the button times times in a row, with the dismisses written in one go per link.
+     */
+    public void pressButton(int times) {
+        synchronized (this) {
+            blinking = false;
+        }
+        for (Session session : sessions) {
+            session.sendDismisses(times);
+        }
+    }
+
+    /**
+     * Drops every link, as when the tablet goes out of range.
+     */
+    public void dropLinks() {
+        for (Session session : sessions) {
+            session.drop();
+        }
+    }
+
+    public synchronized boolean isBlinking() {
+        return blinking;
+    }
+
+    /**
+     * @return The blink pattern last commanded, as {onSec, offSec}.
+     */
+    public synchronized int[] getBlinkPattern() {
+        return new int[]{onSec, offSec};
+    }
+
+    public int getLinks() {
+        return sessions.size();
+    }
+
+    /**
+     * @return The blink and stop commands received.
+     */
+    public long getCommands() {
+        return commands.get();
+    }
+
+    public long getHeartbeats() {
+        return heartbeats.get();
+    }
+
+    /**
+     * @return The dismisses the tablet acked.
+     */
+    public long getDismissAcks() {
+        return dismissAcks.get();
+    }
+
+    /**
+     * @return The links dropped because of Options.dropAfterCommands or dropLinks().
+     */
+    public long getDroppedLinks() {
+        return droppedLinks.get();
+    }
+
+    private synchronized void blink(int on, int off) {
+        commands.incrementAndGet();
+        blinking = true;
+        onSec = on;
+        offSec = off;
+    }
+
+    private synchronized void stopBlinking() {
+        commands.incrementAndGet();
+        blinking = false;
+    }
+
+    private static void sleep(long ms) {
+        if (ms <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * One link, as a socket in bt_server.py's connection set.
+     */
+    private class Session implements FrameDecoder.Handler {
+        private final Link link;
+        private final FrameDecoder decoder = new FrameDecoder();
+        private final byte[] readBuf = new byte[1024];
+        private final byte[] frameBuf = new byte[FrameCodec.MAX_FRAME_LENGTH];
+        // Guarded by link.
+        private OutputStream out;
+        // Set once the tablet's HELLO has arrived.
+        private volatile boolean framed;
+        // Set while the first read looked like the start of a HELLO.
+        private volatile boolean negotiating;
+        private volatile boolean closed;
+        private int commandsOnLink;
+
+        Session(Link link) {
+            this.link = link;
+        }
+
+        void run() {
+            try {
+                synchronized (link) {
+                    out = link.getOutputStream();
+                }
+                InputStream in = link.getInputStream();
+                boolean first = true;
+                while (!closed) {
+                    int len = in.read(readBuf);
+                    if (len == -1) {
+                        break;
+                    }
+                    if (first) {
+                        negotiating = len > 1 && readBuf[0] == FrameCodec.MAGIC;
+                        first = false;
+                        if (negotiating && options.version1Only) {
+                            // Version 1 servers hang up on anything longer than an octet.
+                            break;
+                        }
+                    }
+                    if (negotiating || framed) {
+                        decoder.feed(readBuf, 0, len, this);
+                    } else {
+                        for (int i = 0; i < len && !closed; i++) {
+                            onV1Octet(readBuf[i]);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // The tablet closed the link.
+            } finally {
+                close();
+            }
+        }
+
+        @Override
+        public void onFrame(int type, int seq, byte[] payload, int payloadOff, int payloadLen) {
+            sleep(options.latencyMs);
+            if (!framed && type != FrameCodec.TYPE_HELLO) {
+                // bt_server.py closes a link that doesn't open with a HELLO.
+                close();
+                return;
+            }
+            switch (type) {
+                case FrameCodec.TYPE_HELLO:
+                    framed = true;
+                    negotiating = false;
+                    write(frameBuf, FrameCodec.encode(frameBuf, 0, FrameCodec.TYPE_HELLO, seq,
+                            new byte[]{(byte) FrameCodec.VERSION}, 0, 1));
+                    return;
+                case FrameCodec.TYPE_ACK:
+                    dismissAcks.incrementAndGet();
+                    return;
+                case FrameCodec.TYPE_BLINK:
+                    if (payloadLen >= 2) {
+                        blink(payload[payloadOff] & 0xFF, payload[payloadOff + 1] & 0xFF);
+                    }
+                    break;
+                case FrameCodec.TYPE_STOP:
+                    stopBlinking();
+                    break;
+                case FrameCodec.TYPE_HEARTBEAT:
+                    heartbeats.incrementAndGet();
+                    break;
+                default:
+                    break;
+            }
+            if (dropNow(type == FrameCodec.TYPE_BLINK || type == FrameCodec.TYPE_STOP)) {
+                return;
+            }
+            write(frameBuf, FrameCodec.encode(frameBuf, 0, FrameCodec.TYPE_ACK, seq));
+        }
+
+        @Override
+        public void onBadFrame(byte b) {
+            // bt_server.py closes a link that sends a bad frame.
+            close();
+        }
+
+        private void onV1Octet(byte b) {
+            sleep(options.latencyMs);
+            if (b == 0) {
+                stopBlinking();
+            } else {
+                blink((b >> 4) & 0x0F, b & 0x0F);
+            }
+            dropNow(true);
+        }
+
+        /**
+         * Drops the link if it has carried Options.dropAfterCommands commands.
+         *
+         * @return true if dropped, in which case the command isn't acked.
+         */
+        private boolean dropNow(boolean isCommand) {
+            int dropAfter = options.dropAfterCommands;
+            if (!isCommand || dropAfter <= 0 || ++commandsOnLink < dropAfter) {
+                return false;
+            }
+            drop();
+            return true;
+        }
+
+        void sendDismisses(int times) {
+            if (negotiating) {
+                // Neither protocol is settled yet, as in bt_server.py.
+                return;
+            }
+            if (framed) {
+                byte[] frames = new byte[times * FrameCodec.HEADER_LENGTH];
+                for (int i = 0; i < times; i++) {
+                    int seq = dismissSeq.incrementAndGet() & 0xFF;
+                    FrameCodec.encode(frames, i * FrameCodec.HEADER_LENGTH,
+                            FrameCodec.TYPE_DISMISS, seq);
+                }
+                write(frames, frames.length);
+            } else {
+                write(new byte[times], times);
+            }
+        }
+
+        void drop() {
+            if (!closed) {
+                droppedLinks.incrementAndGet();
+            }
+            close();
+        }
+
+        private void write(byte[] bytes, int len) {
+            synchronized (link) {
+                if (closed || out == null) {
+                    return;
+                }
+                try {
+                    out.write(bytes, 0, len);
+                    out.flush();
+                } catch (IOException e) {
+                    close();
+                }
+            }
+        }
+
+        private void close() {
+            closed = true;
+            sessions.remove(this);
+            try {
+                link.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
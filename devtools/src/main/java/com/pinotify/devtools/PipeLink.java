@@ -0,0 +1,162 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.devtools;
+
+import com.pinotify.core.Link;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * One end of an in-memory, bidirectional link. Unlike java.io's piped streams, either end may be
+ * used from any thread, and closing one end is seen by the other as the remote closing the link.
+ */
+class PipeLink implements Link {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * A bounded byte queue, written by one end and read by the other.
+     */
+    private static class Pipe {
+        private final byte[] buf = new byte[BUFFER_SIZE];
+        // Guarded by this.
+        private int head;
+        private int count;
+        private boolean writerClosed;
+        private boolean readerClosed;
+
+        synchronized int read(byte[] dst, int off, int len) throws IOException {
+            while (count == 0 && !writerClosed && !readerClosed) {
+                await();
+            }
+            if (readerClosed) {
+                throw new IOException("Link closed");
+            }
+            if (count == 0) {
+                return -1;
+            }
+            int n = Math.min(len, Math.min(count, buf.length - head));
+            System.arraycopy(buf, head, dst, off, n);
+            head = (head + n) % buf.length;
+            count -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized void write(byte[] src, int off, int len) throws IOException {
+            while (len > 0) {
+                while (count == buf.length && !writerClosed && !readerClosed) {
+                    await();
+                }
+                if (writerClosed || readerClosed) {
+                    throw new IOException("Link closed");
+                }
+                int tail = (head + count) % buf.length;
+                int n = Math.min(len, Math.min(buf.length - count, buf.length - tail));
+                System.arraycopy(src, off, buf, tail, n);
+                count += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        synchronized void closeWriter() {
+            writerClosed = true;
+            notifyAll();
+        }
+
+        synchronized void closeReader() {
+            readerClosed = true;
+            notifyAll();
+        }
+
+        private void await() throws IOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+        }
+    }
+
+    private final Pipe in;
+    private final Pipe out;
+    private final String name;
+
+    private final InputStream inputStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return len == 0 ? 0 : in.read(b, off, len);
+        }
+    };
+
+    private final OutputStream outputStream = new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+    };
+
+    private PipeLink(Pipe in, Pipe out, String name) {
+        this.in = in;
+        this.out = out;
+        this.name = name;
+    }
+
+    /**
+     * @return Two connected ends: what one writes, the other reads.
+     */
+    static PipeLink[] pair(String name) {
+        Pipe forward = new Pipe();
+        Pipe backward = new Pipe();
+        return new PipeLink[]{
+                new PipeLink(backward, forward, name), new PipeLink(forward, backward, name)};
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    @Override
+    public void close() {
+        in.closeReader();
+        out.closeWriter();
+    }
+
+    @Override
+    public String toString() {
+        return "pipe " + name;
+    }
+}
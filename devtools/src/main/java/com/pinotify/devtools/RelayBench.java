@@ -0,0 +1,181 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.devtools;
+
+import com.pinotify.core.Connector;
+import com.pinotify.core.RelayDiscovery;
+import com.pinotify.core.TcpConnector;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the Pi link against a PiEmulator: reconnect time, command latency, listener throughput,
+ * and recovery from dropped links. Options, all optional, are given as --name=value:
+ * <pre>
+ *   --transport=pipe        pipe for in-memory links, or socket for loopback TCP as the app's
+ *                           TCP transport opens it, found through RelayDiscovery.
+ *   --latency-ms=0          Latency the emulator adds to each frame.
+ *   --connect-latency-ms=0  Latency the emulator adds to each connect.
+ *   --connects=200          Reconnects to time.
+ *   --commands=20000        Commands to time.
+ *   --window=8              Commands in flight, as RPiBluetoothConnection.MAX_IN_FLIGHT.
+ *   --dismisses=100000      Dismisses to flood the listener with.
+ *   --drop-after=50         Commands per link in the fault injection run.
+ * </pre>
+ */
+public class RelayBench {
+    private static final long HELLO_TIMEOUT_MS = 2000L;
+    private static final int DISCOVERY_TIMEOUT_MS = 1500;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String transport = "pipe";
+        int connects = 200;
+        int commands = 20000;
+        int window = 8;
+        int dismisses = 100000;
+        int dropAfter = 50;
+        PiEmulator.Options options = new PiEmulator.Options();
+        for (String arg : args) {
+            String[] option = arg.split("=", 2);
+            String name = option[0];
+            String value = option.length == 2 ? option[1] : "";
+            if (name.equals("--transport")) {
+                transport = value;
+            } else if (name.equals("--latency-ms")) {
+                options.latencyMs = Long.parseLong(value);
+            } else if (name.equals("--connect-latency-ms")) {
+                options.connectLatencyMs = Long.parseLong(value);
+            } else if (name.equals("--connects")) {
+                connects = Integer.parseInt(value);
+            } else if (name.equals("--commands")) {
+                commands = Integer.parseInt(value);
+            } else if (name.equals("--window")) {
+                window = Integer.parseInt(value);
+            } else if (name.equals("--dismisses")) {
+                dismisses = Integer.parseInt(value);
+            } else if (name.equals("--drop-after")) {
+                dropAfter = Integer.parseInt(value);
+            } else {
+                System.err.println("Unknown option " + arg + "; see the RelayBench class comment");
+                System.exit(2);
+            }
+        }
+
+        PiEmulator emulator = new PiEmulator(options);
+        ServerSocket server = null;
+        Connector connector;
+        if (transport.equals("pipe")) {
+            connector = emulator.pipeConnector();
+        } else if (transport.equals("socket")) {
+            server = emulator.listen(0);
+            connector = discover(emulator, server.getLocalPort());
+        } else {
+            throw new IllegalArgumentException("Unknown transport " + transport);
+        }
+        System.out.println("Benchmarking the " + transport + " transport");
+
+        // Reconnects: connect and negotiate, as the connection does after losing a link.
+        Samples connectMs = new Samples();
+        for (int i = 0; i < connects; i++) {
+            long begin = System.nanoTime();
+            RelayClient client = new RelayClient(connector.connect());
+            if (client.hello(HELLO_TIMEOUT_MS)) {
+                connectMs.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+            }
+            client.close();
+        }
+        System.out.println("Reconnect: " + connectMs.format());
+
+        // Command latency, from writing a command until the Pi acks it.
+        RelayClient client = new RelayClient(connector.connect());
+        client.hello(HELLO_TIMEOUT_MS);
+        Samples ackUs = new Samples();
+        long begin = System.nanoTime();
+        int acked = client.sendCommands(commands, window, ackUs);
+        long elapsedNs = System.nanoTime() - begin;
+        System.out.println(String.format(Locale.US,
+                "Commands: %d acked, %.0f/s, ack latency p50=%dus p99=%dus max=%dus", acked,
+                acked * 1e9 / elapsedNs, ackUs.getPercentile(50), ackUs.getPercentile(99),
+                ackUs.getPercentile(100)));
+
+        // Listener throughput: the Pi floods the link with dismisses, each of which is acked.
+        begin = System.nanoTime();
+        emulator.pressButton(dismisses);
+        while (client.getDismisses() < dismisses && !client.isClosed()) {
+            Thread.sleep(1);
+        }
+        elapsedNs = System.nanoTime() - begin;
+        System.out.println(String.format(Locale.US, "Listener: %d dismisses in %.1fms, %.0f/s",
+                client.getDismisses(), elapsedNs / 1e6, client.getDismisses() * 1e9 / elapsedNs));
+        client.close();
+
+        // Fault injection: the Pi drops each link after dropAfter commands. Commands lost with a
+        // link are re-sent on the next one, as the connection re-sends its last state.
+        options.dropAfterCommands = dropAfter;
+        long droppedBefore = emulator.getDroppedLinks();
+        Samples recoveryMs = new Samples();
+        Samples faultAckUs = new Samples();
+        int remaining = Math.min(commands, 100 * dropAfter);
+        int delivered = 0;
+        while (remaining > 0) {
+            long lostAt = System.nanoTime();
+            client = new RelayClient(connector.connect());
+            if (!client.hello(HELLO_TIMEOUT_MS)) {
+                client.close();
+                continue;
+            }
+            if (delivered > 0) {
+                recoveryMs.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lostAt));
+            }
+            int batch = client.sendCommands(remaining, window, faultAckUs);
+            delivered += batch;
+            remaining -= batch;
+            client.close();
+        }
+        options.dropAfterCommands = 0;
+        System.out.println("Faults: " + delivered + " commands over " +
+                (emulator.getDroppedLinks() - droppedBefore) + " dropped links, recovery " +
+                recoveryMs.format());
+
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    /**
+     * Finds the emulator listening on tcpPort through RelayDiscovery, as the app's Find button
+     * does on the LAN.
+     */
+    private static Connector discover(PiEmulator emulator, int tcpPort) throws IOException {
+        DatagramSocket responder = emulator.answerDiscovery(0, tcpPort);
+        long begin = System.nanoTime();
+        List<RelayDiscovery.Relay> relays = RelayDiscovery.discover(
+                InetAddress.getLoopbackAddress(), responder.getLocalPort(), DISCOVERY_TIMEOUT_MS);
+        responder.close();
+        if (relays.isEmpty()) {
+            throw new IOException("Discovery found no emulator");
+        }
+        // Discovery always waits out its timeout, to hear from every Pi.
+        System.out.println(String.format(Locale.US, "Discovery: found %s in %dms",
+                relays.get(0), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin)));
+        return TcpConnector.parse(relays.get(0).getHostPort());
+    }
+}
@@ -0,0 +1,237 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.devtools;
+
+import com.pinotify.core.Link;
+import com.pinotify.protocol.FrameCodec;
+import com.pinotify.protocol.FrameDecoder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The tablet's side of the version 2 protocol over one link, reduced to what RelayBench measures:
+ * a HELLO exchange, numbered commands with several in flight, and acking dismisses.
+ * <p>
+ * RPiBluetoothConnection needs Android to run, so this stands in for its I/O thread and listener.
+ * Like them, it reads into a reused buffer and decodes with FrameDecoder.
+ */
+class RelayClient implements FrameDecoder.Handler {
+    private static final int READ_BUFFER_SIZE = 1024;
+
+    private final Link link;
+    private final OutputStream out;
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final byte[] readBuf = new byte[READ_BUFFER_SIZE];
+    private final byte[] writeBuf = new byte[FrameCodec.MAX_FRAME_LENGTH];
+    private final byte[] ackBuf = new byte[FrameCodec.MAX_FRAME_LENGTH];
+    private final Thread reader;
+    private final AtomicLong dismisses = new AtomicLong();
+    private volatile CountDownLatch helloLatch;
+    private volatile boolean closed;
+
+    // Guarded by this. When each command in flight was written, by SEQ, or 0.
+    private final long[] writtenAtNanos = new long[256];
+    private int inFlight;
+    private int nextSeq;
+    private Samples ackSamples;
+
+    RelayClient(Link link) throws IOException {
+        this.link = link;
+        out = link.getOutputStream();
+        final InputStream in = link.getInputStream();
+        reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read(in);
+            }
+        }, "RelayClient");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Negotiates version 2.
+     *
+     * @return true if the Pi answered the HELLO in time.
+     */
+    boolean hello(long timeoutMs) throws IOException {
+        CountDownLatch latch = new CountDownLatch(1);
+        helloLatch = latch;
+        int seq;
+        synchronized (this) {
+            seq = takeSeq();
+        }
+        write(writeBuf, FrameCodec.encode(writeBuf, 0, FrameCodec.TYPE_HELLO, seq,
+                new byte[]{(byte) FrameCodec.VERSION}, 0, 1));
+        try {
+            return latch.await(timeoutMs, TimeUnit.MILLISECONDS) && !closed;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Writes count commands, alternating blinks and stops, with up to window unacked, and waits
+     * for the last ack.
+     *
+     * @param acks Where the time from writing each command until its ack is recorded, in
+     *             microseconds.
+     * @return The number of commands acked before the link was lost, if it was.
+     */
+    int sendCommands(int count, int window, Samples acks) {
+        long acked;
+        synchronized (this) {
+            ackSamples = acks;
+        }
+        long ackedAtStart = acks.getCount();
+        for (int i = 0; i < count; i++) {
+            int seq;
+            synchronized (this) {
+                while (inFlight >= window && !closed) {
+                    await();
+                }
+                if (closed) {
+                    break;
+                }
+                seq = takeSeq();
+                writtenAtNanos[seq] = System.nanoTime();
+                inFlight++;
+            }
+            int len = i % 2 == 0 ?
+                    FrameCodec.encode(writeBuf, 0, FrameCodec.TYPE_BLINK, seq, 2, 1) :
+                    FrameCodec.encode(writeBuf, 0, FrameCodec.TYPE_STOP, seq);
+            try {
+                write(writeBuf, len);
+            } catch (IOException e) {
+                // The link was lost; commands in flight are lost with it.
+                close();
+                break;
+            }
+        }
+        synchronized (this) {
+            while (inFlight > 0 && !closed) {
+                await();
+            }
+            acked = acks.getCount() - ackedAtStart;
+        }
+        return (int) acked;
+    }
+
+    /**
+     * @return The dismisses received.
+     */
+    long getDismisses() {
+        return dismisses.get();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    void close() {
+        closed = true;
+        try {
+            link.close();
+        } catch (IOException e) {
+        }
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void onFrame(int type, int seq, byte[] payload, int payloadOff, int payloadLen) {
+        if (type == FrameCodec.TYPE_HELLO) {
+            CountDownLatch latch = helloLatch;
+            if (latch != null) {
+                latch.countDown();
+            }
+        } else if (type == FrameCodec.TYPE_ACK) {
+            onAck(seq);
+        } else if (type == FrameCodec.TYPE_DISMISS) {
+            dismisses.incrementAndGet();
+            try {
+                synchronized (ackBuf) {
+                    write(ackBuf, FrameCodec.encode(ackBuf, 0, FrameCodec.TYPE_ACK, seq));
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+    }
+
+    @Override
+    public void onBadFrame(byte b) {
+        close();
+    }
+
+    private synchronized void onAck(int seq) {
+        long writtenAt = writtenAtNanos[seq];
+        if (writtenAt == 0) {
+            return;
+        }
+        writtenAtNanos[seq] = 0;
+        inFlight--;
+        ackSamples.add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - writtenAt));
+        notifyAll();
+    }
+
+    private void read(InputStream in) {
+        try {
+            while (!closed) {
+                int len = in.read(readBuf);
+                if (len == -1) {
+                    break;
+                }
+                decoder.feed(readBuf, 0, len, this);
+            }
+        } catch (IOException e) {
+            // Closed.
+        }
+        close();
+        CountDownLatch latch = helloLatch;
+        if (latch != null) {
+            latch.countDown();
+        }
+    }
+
+    private void write(byte[] bytes, int len) throws IOException {
+        synchronized (out) {
+            out.write(bytes, 0, len);
+            out.flush();
+        }
+    }
+
+    private int takeSeq() {
+        int seq = nextSeq;
+        nextSeq = (nextSeq + 1) & 0xFF;
+        return seq;
+    }
+
+    private void await() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closed = true;
+        }
+    }
+}
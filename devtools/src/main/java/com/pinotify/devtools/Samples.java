@@ -0,0 +1,58 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.devtools;
+
+import java.util.Arrays;
+
+/**
+ * Collects latency samples and reports their percentiles. Thread safe.
+ */
+class Samples {
+    private long[] values = new long[1024];
+    private int count;
+
+    synchronized void add(long value) {
+        if (count == values.length) {
+            values = Arrays.copyOf(values, count * 2);
+        }
+        values[count++] = value;
+    }
+
+    synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * @param percentile 0 - 100.
+     * @return The sample at percentile, by nearest rank, or 0 if there are no samples.
+     */
+    synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100.0 * count);
+        return sorted[Math.max(0, Math.min(rank, count) - 1)];
+    }
+
+    /**
+     * @return The percentiles, as "p50=12ms p90=30ms p99=55ms max=80ms (n=1000)".
+     */
+    String format() {
+        return "p50=" + getPercentile(50) + "ms p90=" + getPercentile(90) + "ms p99=" +
+                getPercentile(99) + "ms max=" + getPercentile(100) + "ms (n=" + getCount() + ")";
+    }
+}
@@ -0,0 +1,379 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.pinotify.devtools;
+
+import com.pinotify.core.InboxLogic;
+import com.pinotify.core.Message;
+import com.pinotify.core.PollPolicy;
+import com.pinotify.core.SyncCoalescer;
+import com.pinotify.core.api.DeviceRequest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One simulated tablet, running the app's client pipeline against the backend.
+ * <p>
+ * The inbox rules, sync coalescing and poll policy are the app's own, from the core module. The
+ * glue around them follows the app's classes: pushes are shown provisionally and trigger a sync as
+ * in FirebasePushNotificationHandler, the displayed message is acked after a human-like delay and
+ * the next one shown as in StateMachine, undelivered acks are retried with backoff as in
+ * AckOutbox, and a 401 refreshes the token and retries once as in CachedTokenCredential. Poll
+ * intervals are divided by the time scale, so that a run of minutes covers hours of polling.
+ */
+class SimulatedDevice {
+    // As DeviceRequestCoordinator.PREFETCH_MESSAGES.
+    private static final long PREFETCH_MESSAGES = 10L;
+    // As AckOutbox.
+    private static final long INITIAL_RETRY_DELAY_MS = 1000L;
+    private static final long MAX_RETRY_DELAY_MS = 5L * 60L * 1000L;
+
+    private final String deviceId;
+    private final String fcmId;
+    private final DeviceApiClient client;
+    private final ScheduledExecutorService scheduler;
+    private final Executor network;
+    private final LoadGenerator.Stats stats;
+    private final long timeScale;
+    private final long ackDelayMs;
+    private final Random random = new Random();
+    private final MemoryPrefs prefs = new MemoryPrefs();
+
+    // Guarded by this.
+    private final SyncCoalescer coalescer = new SyncCoalescer();
+    private Message displayed;
+    private List<Message> queued = new ArrayList<Message>();
+    private long ackedUntilUtc;
+    // Acked by ID, and not yet delivered to the backend.
+    private final List<Long> ackedMessageIds = new ArrayList<Long>();
+    // Everything acked locally, as MessageHistory.isAcked.
+    private final Set<Long> ackedIds = new HashSet<Long>();
+    private final Set<Long> displayedIds = new HashSet<Long>();
+    private long deliveredAckedUntilUtc;
+    // When the oldest undelivered ack was made, or 0 if all were delivered.
+    private long oldestUndeliveredAckMs;
+    private long retryDelayMs = INITIAL_RETRY_DELAY_MS;
+    private boolean retryScheduled;
+    private int tokenVersion;
+    private ScheduledFuture<?> nextPoll;
+    private boolean stopped;
+
+    SimulatedDevice(String deviceId, DeviceApiClient client, ScheduledExecutorService scheduler,
+                    Executor network, LoadGenerator.Stats stats, long timeScale,
+                    long ackDelayMs) {
+        this.deviceId = deviceId;
+        this.fcmId = "fcm-" + deviceId;
+        this.client = client;
+        this.scheduler = scheduler;
+        this.network = network;
+        this.stats = stats;
+        this.timeScale = timeScale;
+        this.ackDelayMs = ackDelayMs;
+    }
+
+    String getDeviceId() {
+        return deviceId;
+    }
+
+    String getFcmId() {
+        return fcmId;
+    }
+
+    /**
+     * Registers with the backend, as the app does on start.
+     */
+    void start() {
+        requestSync(null);
+    }
+
+    synchronized void stop() {
+        stopped = true;
+        if (nextPoll != null) {
+            nextPoll.cancel(false);
+        }
+    }
+
+    /**
+     * @return The number of acks not yet delivered to the backend.
+     */
+    synchronized int getUndeliveredUpdates() {
+        return ackedMessageIds.size() + (ackedUntilUtc != deliveredAckedUntilUtc ? 1 : 0);
+    }
+
+    /**
+     * Handles a push, as FirebasePushNotificationHandler does.
+     */
+    void onPush(long pushId, Message pushed) {
+        Message message = copy(pushed);
+        message.provisional = true;
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            stats.pushes.incrementAndGet();
+            showPushedMessage(message);
+        }
+        requestSync(pushId);
+    }
+
+    private void requestSync(Long causedByPushId) {
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            if (!coalescer.onTrigger(causedByPushId)) {
+                stats.mergedTriggers.incrementAndGet();
+                return;
+            }
+        }
+        startSync(causedByPushId);
+    }
+
+    private void startSync(final Long causedByPushId) {
+        network.execute(new Runnable() {
+            @Override
+            public void run() {
+                sync(causedByPushId);
+            }
+        });
+    }
+
+    private void sync(Long causedByPushId) {
+        // Built when sent rather than when triggered, so that it carries the newest state.
+        DeviceRequest request = new DeviceRequest();
+        synchronized (this) {
+            request.deviceId = deviceId;
+            request.fcmId = fcmId;
+            request.ackedUntil = ackedUntilUtc;
+            request.ackedMessageIds.addAll(ackedMessageIds);
+            request.causedByPushId = causedByPushId;
+            request.maxMessages = PREFETCH_MESSAGES;
+        }
+        List<Message> unacked = null;
+        long begin = System.nanoTime();
+        try {
+            unacked = callWithAuth(request);
+            stats.rpcMs.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+        } catch (IOException e) {
+            stats.rpcFailures.incrementAndGet();
+        }
+        onSyncFinished(request, unacked);
+    }
+
+    /**
+     * Sends request, refreshing the token and retrying once on a 401.
+     */
+    private List<Message> callWithAuth(DeviceRequest request) throws IOException {
+        try {
+            return client.deviceBatchRequest(request, getToken());
+        } catch (DeviceApiClient.HttpError e) {
+            if (e.code != 401) {
+                throw e;
+            }
+            stats.tokenRefreshes.incrementAndGet();
+            synchronized (this) {
+                tokenVersion++;
+            }
+            return client.deviceBatchRequest(request, getToken());
+        }
+    }
+
+    private synchronized String getToken() {
+        return deviceId + "-token-" + tokenVersion;
+    }
+
+    private synchronized void onSyncFinished(DeviceRequest request, List<Message> unacked) {
+        long nowMs = System.currentTimeMillis();
+        if (unacked != null) {
+            onRequestSucceeded(request, nowMs);
+        } else {
+            onRequestFailed();
+        }
+        SyncCoalescer.FollowUp followUp = coalescer.onSyncFinished();
+        if (followUp != null) {
+            // The response may predate an ack made meanwhile.
+            stats.supersededResponses.incrementAndGet();
+            startSync(followUp.causedByPushId);
+            return;
+        }
+        boolean foundNewMessage = false;
+        if (unacked != null) {
+            for (Message message : unacked) {
+                if (!message.equals(displayed) && !queued.contains(message)) {
+                    foundNewMessage = true;
+                    break;
+                }
+            }
+            applyInbox(unacked);
+        }
+        boolean causedByPush = request.causedByPushId != null;
+        if (PollPolicy.recordSync(prefs, unacked != null, causedByPush, foundNewMessage, nowMs)) {
+            stats.lostPushesFound.incrementAndGet();
+        }
+        schedulePoll(PollPolicy.getIntervalAfterSyncMs(prefs, unacked != null, foundNewMessage,
+                displayed != null, nowMs) / timeScale);
+    }
+
+    /**
+     * As AckOutbox.onRequestSucceeded.
+     */
+    private void onRequestSucceeded(DeviceRequest request, long nowMs) {
+        retryDelayMs = INITIAL_RETRY_DELAY_MS;
+        deliveredAckedUntilUtc = request.ackedUntil;
+        ackedMessageIds.removeAll(request.ackedMessageIds);
+        if (oldestUndeliveredAckMs != 0 && getUndeliveredUpdates() == 0) {
+            stats.ackDeliveryMs.add(nowMs - oldestUndeliveredAckMs);
+            oldestUndeliveredAckMs = 0;
+        }
+    }
+
+    /**
+     * As AckOutbox.onRequestFailed.
+     */
+    private void onRequestFailed() {
+        if (getUndeliveredUpdates() == 0 || retryScheduled || stopped) {
+            return;
+        }
+        retryScheduled = true;
+        stats.retries.incrementAndGet();
+        long delayMs = retryDelayMs / 2 + (long) (random.nextDouble() * (retryDelayMs / 2));
+        retryDelayMs = Math.min(retryDelayMs * 2, MAX_RETRY_DELAY_MS);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedDevice.this) {
+                    retryScheduled = false;
+                }
+                requestSync(null);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void schedulePoll(long delayMs) {
+        if (stopped) {
+            return;
+        }
+        if (nextPoll != null) {
+            nextPoll.cancel(false);
+        }
+        nextPoll = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                stats.polls.incrementAndGet();
+                requestSync(null);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * As StateMachine.applySetInbox.
+     */
+    private void applyInbox(List<Message> unacked) {
+        List<Message> inbox = InboxLogic.mergeInbox(unacked, displayed, queued, ackedUntilUtc,
+                new InboxLogic.AckedFilter<Message>() {
+                    @Override
+                    public boolean isAcked(Message message) {
+                        return ackedIds.contains(message.id);
+                    }
+                });
+        if (inbox.isEmpty()) {
+            queued = inbox;
+            if (displayed != null) {
+                setDisplayed(null);
+            }
+            return;
+        }
+        queued = new ArrayList<Message>(inbox.subList(1, inbox.size()));
+        setDisplayed(inbox.get(0));
+    }
+
+    /**
+     * As StateMachine.applyShowPushedMessage.
+     */
+    private void showPushedMessage(Message message) {
+        if (message.timeSentUtc <= ackedUntilUtc || message.equals(displayed) ||
+                ackedIds.contains(message.id)) {
+            return;
+        }
+        if (displayed == null) {
+            setDisplayed(message);
+        } else if (InboxLogic.preempts(message, displayed)) {
+            InboxLogic.insertInDisplayOrder(queued, displayed);
+            setDisplayed(message);
+        } else {
+            InboxLogic.insertInDisplayOrder(queued, message);
+        }
+    }
+
+    private void setDisplayed(final Message message) {
+        boolean changed = message != null && !message.equals(displayed);
+        displayed = message;
+        if (!changed) {
+            return;
+        }
+        if (displayedIds.add(message.id)) {
+            stats.onDisplayed(message);
+        }
+        // Someone notices the lights and presses the button.
+        long delayMs = ackDelayMs / 2 + (long) (random.nextDouble() * ackDelayMs);
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ack(message);
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * As StateMachine.applyAckCurrentMessage, if message is still the one displayed.
+     */
+    private void ack(Message message) {
+        synchronized (this) {
+            if (stopped || displayed == null || !displayed.equals(message)) {
+                return;
+            }
+            if (InboxLogic.acksById(message)) {
+                ackedMessageIds.add(message.id);
+            } else if (InboxLogic.acksUntil(message)) {
+                ackedUntilUtc = Math.max(ackedUntilUtc, message.timeSentUtc);
+            }
+            ackedIds.add(message.id);
+            if (oldestUndeliveredAckMs == 0) {
+                oldestUndeliveredAckMs = System.currentTimeMillis();
+            }
+            stats.acks.incrementAndGet();
+            setDisplayed(InboxLogic.takeNext(queued, message, ackedUntilUtc));
+        }
+        requestSync(null);
+    }
+
+    private static Message copy(Message message) {
+        Message copy = new Message();
+        copy.sender = message.sender;
+        copy.message = message.message;
+        copy.timeSentUtc = message.timeSentUtc;
+        copy.id = message.id;
+        copy.priority = message.priority;
+        return copy;
+    }
+}